@@ -0,0 +1,104 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * GattLayer on top of the Android Bluetooth stack.
+ */
+class AndroidGattLayer implements GattLayer {
+    // Tag for logging
+    private static final String TAG = AndroidGattLayer.class.getSimpleName();
+
+    private final Context mContext;
+    private final BluetoothAdapter mBluetoothAdapter;
+
+    AndroidGattLayer(Context context, BluetoothAdapter bluetoothAdapter) {
+        mContext = context;
+        mBluetoothAdapter = bluetoothAdapter;
+    }
+
+    @Override
+    public Connection connect(String address, final Callback callback) {
+        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return null;
+        }
+
+        // Set by close(), after which events still queued for this connection are dropped
+        final AtomicBoolean closed = new AtomicBoolean(false);
+
+        // Callback for GATT server events.
+        BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                if (closed.get())
+                    return;
+
+                String address = gatt.getDevice().getAddress();
+                if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    Log.d(TAG, "Connected to GATT server. status = " + status);
+                    callback.onConnectionStateChange(address, true);
+                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    Log.d(TAG, "Disconnected from GATT server. status = " + status);
+                    callback.onConnectionStateChange(address, false);
+                }
+            }
+
+            @Override
+            public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+                if (closed.get())
+                    return;
+
+                boolean success = status == BluetoothGatt.GATT_SUCCESS;
+                if (!success)
+                    Log.w("BLE_RSSI", "Could not read remote RSSI!");
+
+                callback.onReadRemoteRssi(gatt.getDevice().getAddress(), rssi, success);
+            }
+        };
+
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        final BluetoothGatt gatt = device.connectGatt(mContext, false, gattCallback);
+        if (gatt == null)
+            return null;
+
+        Log.d(TAG, "Trying to create a new connection.");
+        return new Connection() {
+            @Override
+            public boolean readRemoteRssi() {
+                return gatt.readRemoteRssi();
+            }
+
+            @Override
+            public void disconnect() {
+                gatt.disconnect();
+            }
+
+            @Override
+            public boolean reconnect() {
+                // Reuses the client registration connectGatt() made, so it doesn't risk
+                // running out of GATT clients. But on an existing handle, connect() is an
+                // autoConnect style background connect, usually slower than a new
+                // direct connection.
+                return gatt.connect();
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+                gatt.close();
+            }
+        };
+    }
+}
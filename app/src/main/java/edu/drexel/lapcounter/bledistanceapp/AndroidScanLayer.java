@@ -0,0 +1,182 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ScanLayer on top of the Android Bluetooth stack. On Lollipop and later the scan is
+ * filtered by address in the controller, and results are batched when the controller
+ * supports it. Older phones fall back to startLeScan(), one result at a time.
+ */
+class AndroidScanLayer implements ScanLayer {
+    // Tag for logging
+    private static final String TAG = AndroidScanLayer.class.getSimpleName();
+
+    // How long the controller may hold on to results before delivering them as a batch
+    private static final long REPORT_DELAY_MILLIS = 250;
+
+    private final BluetoothAdapter mBluetoothAdapter;
+
+    // The running scan's ScanCallback or LeScanCallback. Results from any other scan are
+    // dropped. Scan callbacks don't take our lock, since the session manager calls us with
+    // its own lock held.
+    private volatile Object mScanCallback;
+
+    /**
+     * Results handed to the callback. Each scan has its own, reused for every batch.
+     */
+    private static class Batch {
+        String[] addresses = new String[16];
+        int[] rssi = new int[16];
+        long[] timestamps = new long[16];
+
+        void ensureCapacity(int count) {
+            if (count <= addresses.length)
+                return;
+
+            int size = Math.max(count, 2 * addresses.length);
+            addresses = new String[size];
+            rssi = new int[size];
+            timestamps = new long[size];
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        void put(int i, ScanResult result) {
+            addresses[i] = result.getDevice().getAddress();
+            rssi[i] = result.getRssi();
+            timestamps[i] = result.getTimestampNanos();
+        }
+    }
+
+    AndroidScanLayer(BluetoothAdapter bluetoothAdapter) {
+        mBluetoothAdapter = bluetoothAdapter;
+    }
+
+    @Override
+    public synchronized boolean startScan(String[] addresses, Callback callback) {
+        stopScan();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            return startFilteredScan(addresses, callback);
+        return startLegacyScan(addresses, callback);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public synchronized void stopScan() {
+        if (mScanCallback == null)
+            return;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+            // The scanner is gone if Bluetooth was turned off, and the scan with it
+            if (scanner != null)
+                scanner.stopScan((ScanCallback) mScanCallback);
+        } else {
+            mBluetoothAdapter.stopLeScan((BluetoothAdapter.LeScanCallback) mScanCallback);
+        }
+
+        mScanCallback = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean startFilteredScan(String[] addresses, final Callback callback) {
+        BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            Log.w(TAG, "Bluetooth is off. Unable to scan.");
+            return false;
+        }
+
+        List<ScanFilter> filters = new ArrayList<>();
+        for (String address : addresses)
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+
+        ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        if (mBluetoothAdapter.isOffloadedScanBatchingSupported())
+            settings.setReportDelay(REPORT_DELAY_MILLIS);
+
+        ScanCallback scanCallback = new ScanCallback() {
+            private final Batch mBatch = new Batch();
+
+            @Override
+            public synchronized void onScanResult(int callbackType, ScanResult result) {
+                if (mScanCallback != this)
+                    return;
+
+                mBatch.put(0, result);
+                callback.onScanResults(mBatch.addresses, mBatch.rssi, mBatch.timestamps, 1);
+            }
+
+            @Override
+            public synchronized void onBatchScanResults(List<ScanResult> results) {
+                if (mScanCallback != this)
+                    return;
+
+                int count = results.size();
+                mBatch.ensureCapacity(count);
+                for (int i = 0; i < count; i++)
+                    mBatch.put(i, results.get(i));
+                callback.onScanResults(mBatch.addresses, mBatch.rssi, mBatch.timestamps, count);
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                if (mScanCallback != this)
+                    return;
+
+                Log.w(TAG, "Scan failed. errorCode = " + errorCode);
+                mScanCallback = null;
+                callback.onScanFailed(errorCode);
+            }
+        };
+
+        mScanCallback = scanCallback;
+        scanner.startScan(filters, settings.build(), scanCallback);
+        return true;
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean startLegacyScan(String[] addresses, final Callback callback) {
+        final Set<String> wanted = new HashSet<>(Arrays.asList(addresses));
+
+        BluetoothAdapter.LeScanCallback scanCallback = new BluetoothAdapter.LeScanCallback() {
+            private final Batch mBatch = new Batch();
+
+            @Override
+            public synchronized void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                String address = device.getAddress();
+                if (mScanCallback != this || !wanted.contains(address))
+                    return;
+
+                mBatch.addresses[0] = address;
+                mBatch.rssi[0] = rssi;
+                mBatch.timestamps[0] = SystemClock.elapsedRealtimeNanos();
+                callback.onScanResults(mBatch.addresses, mBatch.rssi, mBatch.timestamps, 1);
+            }
+        };
+
+        // Set first, so results that arrive before startLeScan() returns aren't dropped
+        mScanCallback = scanCallback;
+        if (!mBluetoothAdapter.startLeScan(scanCallback)) {
+            mScanCallback = null;
+            return false;
+        }
+        return true;
+    }
+}
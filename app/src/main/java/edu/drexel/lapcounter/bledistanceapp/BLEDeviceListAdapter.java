@@ -9,40 +9,93 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
- * This class keeps track of BLE devices and creates the list of views for displaying them
+ * This class keeps track of BLE devices and creates the list of views for displaying them.
+ * Devices that haven't been heard for SILENT_MILLIS are dimmed, since they are probably
+ * out of range or switched off.
  */
 public class BLEDeviceListAdapter extends BaseAdapter {
 
+    // A device not heard for this long is shown as silent
+    public static final long SILENT_MILLIS = 5000;
+    private static final float SILENT_ALPHA = 0.4f;
+
+    private static class Entry {
+        final BluetoothDevice device;
+        int rssi;
+        long lastSeenMillis;
+        boolean silent = false;
+
+        Entry(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
     // In order to call get
     private Context mContext;
-    private ArrayList<BluetoothDevice> mDevices;
-    private ArrayList<Integer> mRssi;
+    // Devices in the order they were found, and by address
+    private ArrayList<Entry> mDevices;
+    private HashMap<String, Entry> mDevicesByAddress;
     private LayoutInflater mInflater;
 
     public BLEDeviceListAdapter(LayoutInflater inflater, Context context) {
         super();
         mDevices = new ArrayList<>();
-        mRssi = new ArrayList<>();
+        mDevicesByAddress = new HashMap<>();
         mInflater = inflater;
         mContext = context;
     }
 
-    public void addDevice(BluetoothDevice device, int rssi) {
-        if (!mDevices.contains(device)) {
-            mDevices.add(device);
-            mRssi.add(rssi);
+    /**
+     * Add a device, or update the RSSI and last-seen time of one we already have.
+     * Doesn't notify observers, so several updates can share one notification.
+     * @return true if the list changed
+     */
+    public boolean update(BluetoothDevice device, int rssi, long lastSeenMillis) {
+        Entry entry = mDevicesByAddress.get(device.getAddress());
+        if (entry == null) {
+            entry = new Entry(device);
+            mDevices.add(entry);
+            mDevicesByAddress.put(device.getAddress(), entry);
+        } else if (entry.rssi == rssi && !entry.silent) {
+            entry.lastSeenMillis = lastSeenMillis;
+            return false;
+        }
+
+        entry.rssi = rssi;
+        entry.lastSeenMillis = lastSeenMillis;
+        entry.silent = false;
+        return true;
+    }
+
+    /**
+     * Mark the devices that haven't been heard for SILENT_MILLIS as silent. Doesn't
+     * notify observers.
+     * @param nowMillis the current time, on the elapsedRealtime() clock
+     * @return true if the list changed
+     */
+    public boolean markSilent(long nowMillis) {
+        boolean changed = false;
+        for (int i = 0; i < mDevices.size(); i++) {
+            Entry entry = mDevices.get(i);
+            boolean silent = nowMillis - entry.lastSeenMillis > SILENT_MILLIS;
+            if (silent != entry.silent) {
+                entry.silent = silent;
+                changed = true;
+            }
         }
+        return changed;
     }
 
     public BluetoothDevice getDevice(int position) {
-        return mDevices.get(position);
+        return mDevices.get(position).device;
     }
 
     public void clear() {
         mDevices.clear();
-        mRssi.clear();
+        mDevicesByAddress.clear();
     }
 
     @Override
@@ -52,7 +105,7 @@ public class BLEDeviceListAdapter extends BaseAdapter {
 
     @Override
     public Object getItem(int position) {
-        return mDevices.get(position);
+        return mDevices.get(position).device;
     }
 
     @Override
@@ -60,6 +113,12 @@ public class BLEDeviceListAdapter extends BaseAdapter {
         return position;
     }
 
+    // Devices are only ever appended, so a position always refers to the same device
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         ViewHolder viewHolder;
@@ -78,8 +137,9 @@ public class BLEDeviceListAdapter extends BaseAdapter {
         }
 
         // Get info about this device
-        BluetoothDevice device = mDevices.get(position);
-        int rssi = mRssi.get(position);
+        Entry entry = mDevices.get(position);
+        BluetoothDevice device = entry.device;
+        int rssi = entry.rssi;
         String name = device.getName();
         String address = device.getAddress();
 
@@ -91,6 +151,7 @@ public class BLEDeviceListAdapter extends BaseAdapter {
         viewHolder.deviceName.setText(name);
         viewHolder.deviceAddress.setText(address);
         viewHolder.deviceRssi.setText(String.format("%d", rssi));
+        view.setAlpha(entry.silent ? SILENT_ALPHA : 1.0f);
 
         return view;
     }
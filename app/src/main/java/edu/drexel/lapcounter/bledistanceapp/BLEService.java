@@ -1,34 +1,132 @@
 package edu.drexel.lapcounter.bledistanceapp;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Owns the Bluetooth connections and the lap counting pipelines. Once asked to sample a
+ * device, the service polls it, counts its laps and reconnects to it by itself, running
+ * in the foreground until told to stop. Activities only bind to it to show the results,
+ * so nothing is lost while they are paused or gone.
+ */
 public class BLEService extends Service {
     // Tag for logging
     private static final String TAG = BLEService.class.getSimpleName();
 
-    // States of connection
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // How often to poll for RSSI, depending on where the swimmer is
+    public static final int RSSI_PERIOD_NORMAL = 500;
+    public static final int RSSI_PERIOD_FAST = 250;
+    public static final int RSSI_PERIOD_SLOW = 1000;
+
+    // The notification that keeps us in the foreground while sampling
+    private static final int NOTIFICATION_ID = 1;
+    private static final String NOTIFICATION_CHANNEL = "sampling";
+
+    // Stops sampling every device, from the notification
+    public static final String ACTION_STOP = "edu.drexel.lapcounter.bledistanceapp.ACTION_STOP";
+
+    // Session recordings. Each file holds about 18 hours of samples at 4 Hz.
+    private static final String SESSION_DIRECTORY = "sessions";
+    private static final int RECORDS_PER_FILE = 1 << 18;
+    private static final int MAX_SESSION_FILES = 8;
 
     // These are needed for making connections
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
 
-    // The GATT server. Most of this service interacts with this object
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
+    // GATT connections to every device, each with its own lap counting pipeline.
+    // Most of this service interacts with this object
+    private GattSessionManager mSessions;
+
+    // Filters and counts every device's samples, and calls our listeners, so neither the
+    // Bluetooth threads nor the main thread wait on it
+    private HandlerThread mPipelineThread;
+
+    // Records every RSSI sample and connection event so sessions can be analysed later
+    private SessionRecorder mRecorder;
+
+    // How long each sample spends in each stage, from the GATT callback to the screen
+    private final LatencyStats mLatency = new LatencyStats();
+
+    // What happens to our RSSI polls, and how often samples really arrive
+    private final PollTelemetry mTelemetry = new PollTelemetry();
+
+    // How quickly lost devices are reconnected to
+    private final ReconnectStats mReconnectStats = new ReconnectStats();
+
+    // In-process listeners. Replaced, never modified, so callbacks can iterate without locking.
+    private volatile Listener[] mListeners = new Listener[0];
+
+    // Whether to also publish events as broadcast Intents
+    private volatile boolean mBroadcastsEnabled = false;
+
+    // Devices we keep sampling until told to stop, mapped to whether we listen to them
+    // rather than connect to them. Only used on the main thread.
+    private final Map<String, Boolean> mSampling = new LinkedHashMap<>();
+
+    // Whether we are a started, foreground service
+    private boolean mForeground = false;
+
+    // Picks the RSSI period from where the swimmers are relative to their thresholds
+    private final AdaptivePollScheduler mPollScheduler =
+            new AdaptivePollScheduler(RSSI_PERIOD_FAST, RSSI_PERIOD_NORMAL, RSSI_PERIOD_SLOW);
+    private boolean mPolling = false;
+
+    // Last period chosen, so we only log changes
+    private int mRssiPeriod = 0;
+
+    // Messages for connection events handed from the pipeline thread to the main thread
+    private static final int MSG_CONNECTED = 1;
+    private static final int MSG_CONNECTION_CHANGED = 2;
+
+    // Runs polling and reconnects, and handles connection events, on the main thread
+    private final Handler mHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_CONNECTED:
+                    startPolling();
+                    return true;
+                case MSG_CONNECTION_CHANGED:
+                    runReconnects();
+                    return true;
+            }
+            return false;
+        }
+    });
+
+    /**
+     * Receives GATT events and lap counting updates for every device directly from the
+     * service. Methods are called on the service's pipeline thread, one at a time, so
+     * implementations should return quickly and hand off anything that touches the UI.
+     */
+    public interface Listener extends GattSessionManager.Listener {
+    }
 
     // Unique IDs for the Intents this server publishes
     public final static String ACTION_GATT_CONNECTED =
@@ -41,37 +139,158 @@ public class BLEService extends Service {
     // Tag for the RSSI data in the Intent payload
     public final static String EXTRA_RSSI =
             "com.example.bluetooth.le.EXTRA_RSSI";
+    // When the RSSI was sampled, in SystemClock.elapsedRealtimeNanos()
+    public final static String EXTRA_TIMESTAMP_NANOS =
+            "com.example.bluetooth.le.EXTRA_TIMESTAMP_NANOS";
+
+    // The session manager's clock: the one scan timestamps are on, and which keeps
+    // counting in deep sleep
+    private static final GattSessionManager.Clock ELAPSED_REALTIME =
+            new GattSessionManager.Clock() {
+                @Override
+                public long nanos() {
+                    return SystemClock.elapsedRealtimeNanos();
+                }
+            };
 
-    // Callback for GATT serverevents.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    // Records GATT events, then hands them to the session manager
+    private final GattLayer.Callback mGattCallback = new GattLayer.Callback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            // Publish a connect/disconnect message
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                mConnectionState = STATE_CONNECTED;
-                Log.d(TAG, "Connected to GATT server. status = " + status);
-                broadcastUpdate(ACTION_GATT_CONNECTED);
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                mConnectionState = STATE_DISCONNECTED;
-                Log.d(TAG, "Disconnected from GATT server. status = " + status);
-                broadcastUpdate(ACTION_GATT_DISCONNECTED);
-            }
+        public void onConnectionStateChange(String address, boolean connected) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (connected)
+                mRecorder.recordConnected(now, address);
+            else
+                mRecorder.recordDisconnected(now, address);
+
+            mSessions.onConnectionStateChange(address, connected, now);
 
+            // A device was lost, or an attempt finished: either may start an attempt
+            mHandler.sendEmptyMessage(MSG_CONNECTION_CHANGED);
         }
 
         @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d("BLE_RSSI", "Callback called successfully " + Integer.toString(rssi));
-                broadcastUpdate(ACTION_RSSI_AVAILABLE, rssi);
-            } else {
-                Log.w("BLE_RSSI", "Could not read remote RSSI!");
-            }
+        public void onReadRemoteRssi(String address, int rssi, boolean success) {
+            long received = System.nanoTime();
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (success)
+                mRecorder.recordRssi(now, address, rssi);
+
+            mSessions.onReadRemoteRssi(address, rssi, success, now, received);
+        }
+    };
+
+    // Records advertisements, then hands them to the session manager
+    private final ScanLayer.Callback mScanCallback = new ScanLayer.Callback() {
+        @Override
+        public void onScanResults(String[] addresses, int[] rssi, long[] timestampNanos,
+                                  int count) {
+            for (int i = 0; i < count; i++)
+                mRecorder.recordRssi(timestampNanos[i], addresses[i], rssi[i]);
+
+            mSessions.onScanResults(addresses, rssi, timestampNanos, count);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            mSessions.onScanFailed(errorCode);
+
+            // The session manager retries it in a while
+            runScan();
+        }
+    };
+
+    // Publishes the session manager's events to our listeners
+    private final GattSessionManager.Listener mSessionListener = new GattSessionManager.Listener() {
+        @Override
+        public void onConnected(String address) {
+            mHandler.obtainMessage(MSG_CONNECTED, address).sendToTarget();
+
+            Listener[] listeners = mListeners;
+            for (int i = 0; i < listeners.length; i++)
+                listeners[i].onConnected(address);
+
+            broadcastUpdate(ACTION_GATT_CONNECTED);
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            Listener[] listeners = mListeners;
+            for (int i = 0; i < listeners.length; i++)
+                listeners[i].onDisconnected(address);
+
+            broadcastUpdate(ACTION_GATT_DISCONNECTED);
+        }
+
+        @Override
+        public void onRssi(String address, int rssi, long timestampNanos) {
+            Listener[] listeners = mListeners;
+            for (int i = 0; i < listeners.length; i++)
+                listeners[i].onRssi(address, rssi, timestampNanos);
+
+            broadcastUpdate(ACTION_RSSI_AVAILABLE, rssi, timestampNanos);
         }
 
+        @Override
+        public void onLapUpdate(String address) {
+            Listener[] listeners = mListeners;
+            for (int i = 0; i < listeners.length; i++)
+                listeners[i].onLapUpdate(address);
+        }
     };
 
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mRecorder = new SessionRecorder(new File(getFilesDir(), SESSION_DIRECTORY),
+                                        RECORDS_PER_FILE, MAX_SESSION_FILES);
+        if (!mRecorder.start())
+            Log.w(TAG, "Unable to start recording the session.");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            Log.d(TAG, "onStartCommand() - Stopping from the notification.");
+            disconnect();
+        }
+
+        // If we are killed, the connections are gone too. There is nothing to restart.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacksAndMessages(null);
+        close();
+        if (mPipelineThread != null)
+            mPipelineThread.quitSafely();
+        mRecorder.stop();
+        super.onDestroy();
+    }
+
+    /**
+     * Print the sample counters, poll savings and stage latencies, for
+     * adb shell dumpsys activity service edu.drexel.lapcounter.bledistanceapp/.BLEService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Samples received: " + getSamplesReceived());
+        writer.println("Samples processed: " + getSamplesProcessed());
+        writer.println("Samples dropped: " + getSamplesDropped());
+        writer.println("Scan failures: " + (mSessions == null ? 0 : mSessions.getScanFailures()));
+        writer.println();
+        writer.print(mPollScheduler.format());
+        writer.println();
+        writer.print(mTelemetry.format(System.nanoTime()));
+        writer.println();
+        writer.print(mReconnectStats.format());
+        writer.println();
+        writer.print(mLatency.format());
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -79,8 +298,9 @@ public class BLEService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        // Make sure we close our Bluetooth connections
-        close();
+        // Make sure we close our Bluetooth connections, unless we are still sampling
+        if (mSampling.isEmpty())
+            close();
         return super.onUnbind(intent);
     }
 
@@ -91,6 +311,48 @@ public class BLEService extends Service {
         BLEService getService() {
             return BLEService.this;
         }
+
+        /**
+         * Start delivering GATT events to a listener. Adding a listener twice has no effect.
+         */
+        void addListener(Listener listener) {
+            synchronized (BLEService.this) {
+                Listener[] listeners = mListeners;
+                for (Listener l : listeners) {
+                    if (l == listener)
+                        return;
+                }
+
+                Listener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+                updated[listeners.length] = listener;
+                mListeners = updated;
+            }
+        }
+
+        void removeListener(Listener listener) {
+            synchronized (BLEService.this) {
+                Listener[] listeners = mListeners;
+                for (int i = 0; i < listeners.length; i++) {
+                    if (listeners[i] != listener)
+                        continue;
+
+                    Listener[] updated = new Listener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, updated, 0, i);
+                    System.arraycopy(listeners, i + 1, updated, i, updated.length - i);
+                    mListeners = updated;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Also publish events as ACTION_ broadcasts, for receivers that still use them.
+         * Off by default, since every broadcast allocates an Intent and goes through
+         * the system.
+         */
+        void setBroadcastsEnabled(boolean enabled) {
+            mBroadcastsEnabled = enabled;
+        }
     }
     private final IBinder mBinder = new LocalBinder();
 
@@ -116,16 +378,90 @@ public class BLEService extends Service {
             return false;
         }
 
+        if (mSessions == null) {
+            // Route events through our callbacks, so they are recorded on the way in
+            final GattLayer gatt = new AndroidGattLayer(this, mBluetoothAdapter);
+            final ScanLayer scanner = new AndroidScanLayer(mBluetoothAdapter);
+
+            GattLayer recordedGatt = new GattLayer() {
+                @Override
+                public Connection connect(String address, Callback callback) {
+                    return gatt.connect(address, mGattCallback);
+                }
+            };
+            ScanLayer recordedScanner = new ScanLayer() {
+                @Override
+                public boolean startScan(String[] addresses, Callback callback) {
+                    return scanner.startScan(addresses, mScanCallback);
+                }
+
+                @Override
+                public void stopScan() {
+                    scanner.stopScan();
+                }
+            };
+
+            // Each device starts with the settings it was last tuned with
+            final DeviceSettingsStore settings =
+                    ((LapCounterApplication) getApplication()).getDeviceSettings();
+            GattSessionManager.PipelineFactory pipelines =
+                    new GattSessionManager.PipelineFactory() {
+                @Override
+                public LapPipeline newPipeline(String address) {
+                    return settings.peek(address).newPipeline();
+                }
+            };
+
+            mPipelineThread = new HandlerThread("LapPipelines");
+            mPipelineThread.start();
+            final Handler pipelineHandler = new Handler(mPipelineThread.getLooper());
+
+            mSessions = new GattSessionManager(recordedGatt, recordedScanner, pipelines,
+                                               mSessionListener);
+            mSessions.setPipelineExecutor(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    pipelineHandler.post(command);
+                }
+            });
+            mSessions.setClock(ELAPSED_REALTIME);
+            mSessions.setLatencyStats(mLatency);
+            mSessions.setPollTelemetry(mTelemetry);
+            mSessions.setReconnectStats(mReconnectStats);
+        }
+
         return true;
     }
 
     /**
-     * Use the GATT object to request an update to the RSSI
+     * Request an update to the RSSI of the connected devices, round-robin.
      */
     public void requestRssi() {
-        if (mConnectionState == STATE_CONNECTED) {
-            mBluetoothGatt.readRemoteRssi();
-        }
+        if (mSessions != null)
+            mSessions.pollRssi(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Replace a device's lap counter, starting its count over.
+     */
+    public void setLapCounter(String address, SlidingWindowCounter lapCounter) {
+        if (mSessions != null)
+            mSessions.setLapCounter(address, lapCounter);
+    }
+
+    /**
+     * Change a device's lap counter threshold, keeping its count.
+     */
+    public void setThreshold(String address, double threshold) {
+        if (mSessions != null)
+            mSessions.setThreshold(address, threshold);
+    }
+
+    /**
+     * @return the device's current lap counting output, or null if it is unknown
+     */
+    public LapSnapshot getSnapshot(String address) {
+        return mSessions == null ? null : mSessions.getSnapshot(address);
     }
 
     /**
@@ -133,6 +469,9 @@ public class BLEService extends Service {
      * @param action
      */
     private void broadcastUpdate(final String action) {
+        if (!mBroadcastsEnabled)
+            return;
+
         final Intent intent = new Intent(action);
         sendBroadcast(intent);
     }
@@ -141,78 +480,309 @@ public class BLEService extends Service {
      * Broadcast an intent for device RSSI update
      * @param action
      * @param rssi
+     * @param timestampNanos
      */
-    private void broadcastUpdate(final String action, int rssi) {
+    private void broadcastUpdate(final String action, int rssi, long timestampNanos) {
+        if (!mBroadcastsEnabled)
+            return;
+
         final Intent intent = new Intent(action);
         intent.putExtra(EXTRA_RSSI, rssi);
+        intent.putExtra(EXTRA_TIMESTAMP_NANOS, timestampNanos);
         sendBroadcast(intent);
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. Other devices stay
+     * connected, up to the session manager's connection limit.
      *
      * @param address The device address of the destination device.
      *
      * @return Return true if the connection is initiated successfully. The connection result
-     *         is reported asynchronously through the
-     *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     *         callback.
+     *         is reported asynchronously through Listener.onConnected().
      */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
+        if (mBluetoothAdapter == null || mSessions == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
-        if (mConnectionState == STATE_CONNECTING) {
-            // We've already made a connect request.
-            Log.d(TAG, "connect() - returned early because mConnectionState == STATE_CONNECTING");
+        // Keep a connection we already have
+        Boolean listening = mSampling.put(address, false);
+        startForeground();
+        if (Boolean.FALSE.equals(listening) && mSessions.isConnected(address))
             return true;
-        }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        if (!mSessions.connect(address, SystemClock.elapsedRealtimeNanos()))
+            return false;
 
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
+        // Watch the attempt, so it is retried if it fails or takes too long
+        runReconnects();
+        return true;
+    }
+
+    /**
+     * Listens to the advertisements of a Bluetooth LE device instead of connecting to it.
+     * Samples arrive as often as the device advertises, with no connection to set up or
+     * lose. Any connection to the device is closed.
+     *
+     * @param address The device address of the device to listen to.
+     *
+     * @return Return true if scanning started, or will start shortly: scan restarts are
+     *         rate limited. Listener.onConnected() is called once the device is heard,
+     *         and Listener.onDisconnected() once it goes silent.
+     */
+    public boolean listen(final String address) {
+        if (mBluetoothAdapter == null || mSessions == null || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
-        // Release resources for a previously instantiated mBluetoothGatt.
-        close();
+        mSampling.put(address, true);
+        startForeground();
+        boolean listening = mSessions.listen(address, SystemClock.elapsedRealtimeNanos());
 
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+        // Start the scan later if the restart was held back, or failed
+        runScan();
+        return listening;
+    }
 
-        Log.d(TAG, "Trying to create a new connection.");
-        mConnectionState = STATE_CONNECTING;
-        return true;
+    public boolean isConnected(String address) {
+        return mSessions != null && mSessions.isConnected(address);
+    }
+
+    /**
+     * @return true if the device is being listened to rather than connected to
+     */
+    public boolean isListening(String address) {
+        return mSessions != null && mSessions.isListening(address);
+    }
+
+    /**
+     * Disconnects one device, cancels a pending connection to it, or stops listening to it. The disconnection result
+     * is reported asynchronously through Listener.onDisconnected().
+     */
+    public void disconnect(String address) {
+        if (mBluetoothAdapter == null || mSessions == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+
+        mSampling.remove(address);
+        mSessions.disconnect(address);
+        stopForegroundIfIdle();
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * Disconnects or stops listening to every device.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null || mSessions == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
 
-        mBluetoothGatt.disconnect();
+        mSampling.clear();
+        mSessions.disconnectAll();
+        stopForegroundIfIdle();
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
+     * After using the BLE devices, the app must call this method to ensure resources are
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        if (mSessions == null) {
+            return;
+        }
+        mSampling.clear();
+        stopForegroundIfIdle();
+        mSessions.closeAll();
+    }
+
+    /**
+     * @return the stage timings of every device's samples. Whoever shows a snapshot
+     *         records the render stages.
+     */
+    public LatencyStats getLatencyStats() {
+        return mLatency;
+    }
+
+    public PollTelemetry getPollTelemetry() {
+        return mTelemetry;
+    }
+
+    public ReconnectStats getReconnectStats() {
+        return mReconnectStats;
+    }
+
+    /**
+     * @return how many RSSI samples reached us, over all devices
+     */
+    public long getSamplesReceived() {
+        return mSessions == null ? 0 : mSessions.getSamplesReceived();
+    }
+
+    /**
+     * @return how many RSSI samples went through a lap counting pipeline
+     */
+    public long getSamplesProcessed() {
+        return mSessions == null ? 0 : mSessions.getSamplesProcessed();
+    }
+
+    /**
+     * @return how many RSSI samples were thrown away: null or stale readings, or
+     *         readings for a device we weren't sampling
+     */
+    public long getSamplesDropped() {
+        return mSessions == null ? 0 : mSessions.getSamplesDropped();
+    }
+
+    /**
+     * Start the reconnect attempts that are due now, and come back for the rest.
+     */
+    private void runReconnects() {
+        mHandler.removeCallbacks(mRunReconnects);
+        mHandler.post(mRunReconnects);
+    }
+
+    private final Runnable mRunReconnects = new Runnable() {
+        @Override
+        public void run() {
+            if (mSessions == null)
+                return;
+
+            long delay = mSessions.runReconnects(SystemClock.elapsedRealtimeNanos());
+            if (delay >= 0)
+                mHandler.postDelayed(this, (delay + 999999) / 1000000);
+        }
+    };
+
+    /**
+     * Start the scan if it was held back, and come back if it still is.
+     */
+    private void runScan() {
+        mHandler.removeCallbacks(mRunScan);
+        mHandler.post(mRunScan);
+    }
+
+    private final Runnable mRunScan = new Runnable() {
+        @Override
+        public void run() {
+            if (mSessions == null)
+                return;
+
+            long delay = mSessions.runScan(SystemClock.elapsedRealtimeNanos());
+            if (delay >= 0)
+                mHandler.postDelayed(this, (delay + 999999) / 1000000);
+        }
+    };
+
+    private void startPolling() {
+        if (mPolling)
+            return;
+
+        mPolling = true;
+        mHandler.post(mPollRssi);
+    }
+
+    // Polls the RSSI of the connected devices until none is left
+    private final Runnable mPollRssi = new Runnable() {
+        @Override
+        public void run() {
+            if (mSessions == null || mSessions.getConnectedCount() == 0) {
+                stopPolling();
+                return;
+            }
+
+            mSessions.pollRssi(SystemClock.elapsedRealtimeNanos());
+            mHandler.postDelayed(this, nextPollPeriod());
+        }
+    };
+
+    private void stopPolling() {
+        mPolling = false;
+        mHandler.removeCallbacks(mPollRssi);
+
+        // The counts run for the life of the service, and are in the dump too
+        if (mPollScheduler.getPollCount() > 0)
+            Log.d(TAG, "stopPolling() - " + mPollScheduler.format().trim());
+    }
+
+    /**
+     * Poll as often as the connected device closest to a lap decision needs.
+     */
+    private int nextPollPeriod() {
+        LapSnapshot urgent = null;
+        int shortest = Integer.MAX_VALUE;
+        for (Map.Entry<String, Boolean> entry : mSampling.entrySet()) {
+            if (entry.getValue() || !mSessions.isConnected(entry.getKey()))
+                continue;
+
+            LapSnapshot snapshot = mSessions.getSnapshot(entry.getKey());
+            int period = mPollScheduler.periodFor(snapshot);
+            if (period < shortest) {
+                shortest = period;
+                urgent = snapshot;
+            }
+        }
+
+        // While only listening, samples arrive by themselves. We only poll to notice when
+        // a device goes silent.
+        int period = urgent == null ? RSSI_PERIOD_SLOW : mPollScheduler.nextPeriod(urgent);
+        mTelemetry.recordRequestedInterval(period * 1000000L);
+        if (period != mRssiPeriod) {
+            mRssiPeriod = period;
+            Log.d(TAG, "nextPollPeriod() - set RSSI period to " + period + " ms.");
+        }
+        return period;
+    }
+
+    /**
+     * Become a started, foreground service, so we keep sampling while no activity is
+     * visible, or bound.
+     */
+    private void startForeground() {
+        if (mForeground)
             return;
+
+        startService(new Intent(this, BLEService.class));
+        startForeground(NOTIFICATION_ID, buildNotification());
+        mForeground = true;
+    }
+
+    private void stopForegroundIfIdle() {
+        if (!mForeground || !mSampling.isEmpty())
+            return;
+
+        stopForeground(true);
+        stopSelf();
+        mForeground = false;
+    }
+
+    private Notification buildNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(
+                    NOTIFICATION_CHANNEL, getString(R.string.notification_channel_sampling),
+                    NotificationManager.IMPORTANCE_LOW);
+            NotificationManager manager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(channel);
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+
+        PendingIntent open = PendingIntent.getActivity(
+                this, 0, new Intent(this, ScanActivity.class), 0);
+        PendingIntent stop = PendingIntent.getService(
+                this, 0, new Intent(this, BLEService.class).setAction(ACTION_STOP), 0);
+
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.notification_sampling))
+                .setContentIntent(open)
+                .setOngoing(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .addAction(0, getString(R.string.menu_disconnect), stop)
+                .build();
     }
 }
@@ -0,0 +1,267 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.TextView;
+
+/**
+ * Fits the distance model for one device from live readings. The user holds the
+ * device at a measured distance, enters it and records for a while, then repeats at
+ * a few other distances. The fit and its 95% confidence intervals update with every
+ * reading, and "Use Fit" hands the model back to the caller.
+ */
+public class CalibrationActivity extends AppCompatActivity {
+    // For logging
+    private final static String TAG = CalibrationActivity.class.getSimpleName();
+
+    // Labels for data from the intent
+    public static final String EXTRAS_DEVICE_NAME = LapCountActivity.EXTRAS_DEVICE_NAME;
+    public static final String EXTRAS_DEVICE_ADDRESS = LapCountActivity.EXTRAS_DEVICE_ADDRESS;
+
+    // Labels for the fitted LogarithmicModel in the result
+    public static final String EXTRAS_OFFSET = "OFFSET";
+    public static final String EXTRAS_SCALE = "SCALE";
+
+    // Name and MAC address of the device being calibrated
+    private String mDeviceName;
+    private String mDeviceAddress;
+
+    // Text fields to populate
+    private TextView mViewRssi;
+    private TextView mViewSampleCount;
+    private TextView mViewOffset;
+    private TextView mViewScale;
+    private TextView mViewResidual;
+    private Button mRecordButton;
+    private Button mUseButton;
+
+    // Distance the device is held at, and whether its readings go into the fit
+    private double mDistance = 0.0;
+    private boolean mRecording = false;
+
+    private final LogarithmicFit mFit = new LogarithmicFit();
+
+    // The service for getting bluetooth updates
+    private BLEService mBleService;
+    private BLEService.LocalBinder mBleBinder;
+
+    // Handler for requesting the RSSI from the BLE Service
+    private final Handler mHandler = new Handler();
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mBleBinder = (BLEService.LocalBinder) service;
+            mBleService = mBleBinder.getService();
+            mBleBinder.addListener(mGattListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mBleService = null;
+            mBleBinder = null;
+        }
+    };
+
+    // Message for a reading handed from the pipeline thread to the UI thread. The RSSI
+    // travels in arg1, so handing it over doesn't allocate.
+    private static final int MSG_RSSI = 1;
+
+    private final Handler mRssiHandler = new Handler(Looper.getMainLooper(),
+                                                     new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (msg.what != MSG_RSSI)
+                return false;
+
+            onRssi(msg.arg1);
+            return true;
+        }
+    });
+
+    private final BLEService.Listener mGattListener = new BLEService.Listener() {
+        @Override
+        public void onConnected(String address) {
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+        }
+
+        @Override
+        public void onRssi(String address, int rssi, long timestampNanos) {
+            if (address.equals(mDeviceAddress))
+                mRssiHandler.obtainMessage(MSG_RSSI, rssi, 0).sendToTarget();
+        }
+
+        @Override
+        public void onLapUpdate(String address) {
+        }
+    };
+
+    // Polls the RSSI while recording, in case the lap counter isn't polling fast
+    private final Runnable mRequestRssi = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRecording)
+                return;
+
+            if (mBleService != null)
+                mBleService.requestRssi();
+            mHandler.postDelayed(this, BLEService.RSSI_PERIOD_FAST);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_calibration);
+
+        // Get the device info from the intent
+        Intent intent = getIntent();
+        mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
+        mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+
+        // Get the views we can update
+        mViewRssi = findViewById(R.id.device_rssi);
+        mViewSampleCount = findViewById(R.id.sample_count);
+        mViewOffset = findViewById(R.id.fit_offset);
+        mViewScale = findViewById(R.id.fit_scale);
+        mViewResidual = findViewById(R.id.fit_residual);
+        mRecordButton = findViewById(R.id.btn_record);
+        mUseButton = findViewById(R.id.btn_use_fit);
+
+        // Display the device name and address
+        TextView viewName = findViewById(R.id.device_name);
+        TextView viewAddress = findViewById(R.id.device_address);
+        viewName.setText(mDeviceName);
+        viewAddress.setText(mDeviceAddress);
+        mViewRssi.setText(R.string.no_data);
+        renderFit();
+
+        // Set the title bar and add a back button
+        getSupportActionBar().setTitle(R.string.title_calibration);
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+
+        Intent gattServiceIntent = new Intent(this, BLEService.class);
+        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Readings taken while we can't be seen shouldn't go into the fit
+        stopRecording();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mBleBinder != null)
+            mBleBinder.removeListener(mGattListener);
+        unbindService(mServiceConnection);
+        mBleService = null;
+        mBleBinder = null;
+        mHandler.removeCallbacksAndMessages(null);
+        mRssiHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            onBackPressed();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    public void toggleRecording(View view) {
+        if (mRecording) {
+            stopRecording();
+            return;
+        }
+
+        EditText distanceEditor = findViewById(R.id.edit_distance);
+        Editable d = distanceEditor.getText();
+        if (TextUtils.isEmpty(d))
+            return;
+
+        double distance = Double.parseDouble(d.toString());
+        if (distance <= 0.0) {
+            distanceEditor.setText("");
+            return;
+        }
+
+        mDistance = distance;
+        mRecording = true;
+        mRecordButton.setText(R.string.label_btn_stop);
+        mHandler.post(mRequestRssi);
+        Log.d(TAG, String.format("Recording at %.2f m.", mDistance));
+    }
+
+    public void resetFit(View view) {
+        stopRecording();
+        mFit.reset();
+        renderFit();
+    }
+
+    public void useFit(View view) {
+        if (!mFit.hasFit())
+            return;
+
+        Intent result = new Intent();
+        result.putExtra(EXTRAS_OFFSET, mFit.getOffset());
+        result.putExtra(EXTRAS_SCALE, mFit.getScale());
+        setResult(RESULT_OK, result);
+        Log.d(TAG, String.format("Using rssi = %.2f + %.2f * ln(dist) from %d samples.",
+                                 mFit.getOffset(), mFit.getScale(), mFit.getSampleCount()));
+        finish();
+    }
+
+    private void stopRecording() {
+        mRecording = false;
+        mRecordButton.setText(R.string.label_btn_record);
+        mHandler.removeCallbacks(mRequestRssi);
+    }
+
+    private void onRssi(int rssi) {
+        mViewRssi.setText(String.format("%d dBm", rssi));
+        if (!mRecording)
+            return;
+
+        mFit.addSample(mDistance, rssi);
+        renderFit();
+    }
+
+    private void renderFit() {
+        mViewSampleCount.setText(Long.toString(mFit.getSampleCount()));
+        mUseButton.setEnabled(mFit.hasFit());
+
+        if (!mFit.hasFit()) {
+            mViewOffset.setText(R.string.no_data);
+            mViewScale.setText(R.string.no_data);
+            mViewResidual.setText(R.string.no_data);
+            return;
+        }
+
+        mViewOffset.setText(String.format("%.1f +/- %.1f", mFit.getOffset(),
+                                          mFit.getOffsetInterval()));
+        mViewScale.setText(String.format("%.1f +/- %.1f", mFit.getScale(),
+                                         mFit.getScaleInterval()));
+        mViewResidual.setText(String.format("%.1f dBm", mFit.getResidualStdDev()));
+    }
+}
@@ -0,0 +1,136 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a DeviceSettingsCache in a file, so every device we have tuned starts with its
+ * own settings instead of the defaults.
+ *
+ * All file access happens in order on one background thread: the file is read once by
+ * load(), and rewritten after every put(). Lookups through get() are queued behind the
+ * load, so they always see the saved settings.
+ */
+class DeviceSettingsStore {
+    // Tag for logging
+    private static final String TAG = DeviceSettingsStore.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives a device's settings on the main thread.
+     */
+    interface Callback {
+        void onSettingsLoaded(String address, DeviceSettings settings);
+    }
+
+    private final AtomicFile mFile;
+    private final DeviceSettingsCache mCache = new DeviceSettingsCache();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    DeviceSettingsStore(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Start reading the saved settings in the background.
+     */
+    void load() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        });
+    }
+
+    /**
+     * Look up a device's settings once they are loaded.
+     */
+    void get(final String address, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DeviceSettings settings = mCache.get(address);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSettingsLoaded(address, settings);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the device's settings if they are loaded, otherwise DeviceSettings.DEFAULTS.
+     *         Never blocks.
+     */
+    DeviceSettings peek(String address) {
+        return mCache.get(address);
+    }
+
+    /**
+     * Remember a device's settings and save them in the background.
+     */
+    void put(final String address, final DeviceSettings settings) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCache.put(address, settings);
+                write();
+            }
+        });
+    }
+
+    private void read() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(mFile.openRead(), UTF_8));
+            mCache.read(reader);
+            Log.d(TAG, "Loaded settings for " + mCache.size() + " devices.");
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No saved device settings yet.");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read device settings", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+            }
+        }
+    }
+
+    private void write() {
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            Writer writer = new OutputStreamWriter(out, UTF_8);
+            mCache.write(writer);
+            writer.flush();
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save device settings", e);
+            if (out != null)
+                mFile.failWrite(out);
+        }
+    }
+}
@@ -1,24 +1,26 @@
 package edu.drexel.lapcounter.bledistanceapp;
 
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
 import android.support.v7.app.AppCompatActivity;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class LapCountActivity extends AppCompatActivity {
     // For logging
     private final static String TAG = LapCountActivity.class.getSimpleName();
@@ -27,12 +29,8 @@ public class LapCountActivity extends AppCompatActivity {
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
 
-    // How often to poll for RSSI and update its TextView.
-    public static final int RSSI_PERIOD_NORMAL = 500;
-    public static final int RSSI_PERIOD_FAST = 250;
-
-    // How often a reconnect should be attempted.
-    public static final int RECONNECT_PERIOD = 1000;
+    // Request code for CalibrationActivity
+    private static final int REQUEST_CALIBRATION = 1;
 
     // Name and MAC address of the selected Bluetooth device
     private String mDeviceName;
@@ -44,119 +42,207 @@ public class LapCountActivity extends AppCompatActivity {
     private TextView mViewName;
     private TextView mViewAddress;
     private TextView mViewRssiFiltered;
+    private TextView mViewDistance;
     private TextView mViewLapCount;
     private TextView mViewThreshold;
     private TextView mSlidingWindowState;
+    private TextView mViewSamples;
 
     // Whether we are connected to the device
     private boolean mConnected = false;
 
-    // Whether we disconnected by pressing the "Disconnect" menu item.
-    private boolean mManuallyDisconnected = false;
-
-    // Handler for requesting the RSSI from the BLE Service
-    private Handler mHandler = new Handler();
+    // Whether we listen to the device's advertisements instead of connecting to it
+    private boolean mListening = false;
 
     // The service for getting bluetooth updates
     private BLEService mBleService;
+    private BLEService.LocalBinder mBleBinder;
 
-    // Filter for RSSI values since they are noisy
-    private MovingAverage mRssiFilter = new MovingAverage(10);
+    // Whether GATT events should currently be delivered to us
+    private boolean mResumed = false;
 
-    private Double threshold = 60.0;
-    private int windowSize = 3;
+    // The device's saved settings. We wait for them before sampling, so the pipeline
+    // starts with them.
+    private DeviceSettingsStore mSettingsStore;
+    private DeviceSettings mSettings = DeviceSettings.DEFAULTS;
+    private boolean mSettingsLoaded = false;
 
-    private int mConnectionCount = 0;
+    // Distance model from mSettings, or null until the device is calibrated
+    private DistanceEstimator mDistanceModel = null;
+
+    // Latest output of our device's lap counting pipeline, which runs in BLEService.
+    // Fetched once per frame, on the UI thread.
+    private LapSnapshot mLatestSnapshot = LapSnapshot.EMPTY;
 
-    // Try our new sliding window lap counter. x ft threshold, sliding window size n
-    private SlidingWindowCounter mLapCounter = new SlidingWindowCounter(threshold, windowSize);
+    // Whether a frame has been requested to render the pipeline's output. Samples that
+    // arrive before the frame are coalesced into it.
+    private final AtomicBoolean mFramePending = new AtomicBoolean(false);
 
-    private final DisconnectChecker mDisconnectChecker = new DisconnectChecker();
+    // The snapshot rendered last, so its latency is only recorded once
+    private LapSnapshot mRenderedSnapshot = null;
+
+    // Number of connections, for the UI
+    private int mConnectionCount = 0;
 
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
-            mBleService = ((BLEService.LocalBinder) service).getService();
+            mBleBinder = (BLEService.LocalBinder) service;
+            mBleService = mBleBinder.getService();
             if (!mBleService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+
+            if (mResumed)
+                attachToService();
+
             // Automatically connects to the device upon successful start-up initialization.
-            mBleService.connect(mDeviceAddress);
+            if (mSettingsLoaded)
+                startSampling();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             mBleService = null;
+            mBleBinder = null;
         }
     };
 
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Messages for GATT events handed from the pipeline thread to the UI thread, and
+    // for scheduling a frame on the UI thread.
+    private static final int MSG_CONNECTED = 1;
+    private static final int MSG_DISCONNECTED = 2;
+    private static final int MSG_SCHEDULE_FRAME = 3;
+
+    // Handles connection events on the UI thread. Messages come from a pool, so handing
+    // an event over doesn't allocate.
+    private final Handler mGattEventHandler = new Handler(Looper.getMainLooper(),
+                                                          new Handler.Callback() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-
-            if (BLEService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
-                mConnectionCount++;
-                mDisconnectChecker.reset();
-
-                if (mConnectionCount > 1) {
-                    String s = String.format("%s (%d)", getString(R.string.reconnected),
-                                             mConnectionCount);
-                    updateConnectionState(s);
-                    log_thread("Reconnected.");
-                } else {
-                    updateConnectionState(R.string.connected);
-                }
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_CONNECTED:
+                    onGattConnected();
+                    return true;
+                case MSG_DISCONNECTED:
+                    onGattDisconnected();
+                    return true;
+                case MSG_SCHEDULE_FRAME:
+                    Choreographer.getInstance().postFrameCallback(mFrameCallback);
+                    return true;
+            }
+            return false;
+        }
+    });
 
-                invalidateOptionsMenu();
-                scheduleRssiRequest();
-            } else if (BLEService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                Log.d(TAG, "Received a disconnect event.");
-                mConnected = false;
-                updateConnectionState(R.string.disconnected);
-                invalidateOptionsMenu();
-                clearUI();
-                mRssiFilter.clear();
-                mLapCounter.onDisconnect();
-
-
-                if (mManuallyDisconnected) {
-                    // So this disconnect event corresponds to us manually disconnecting.
-                    // Reset this flag so we can track future manual disconnects.
-                    mManuallyDisconnected = false;
-                    Log.d(TAG, "Cleared flag for manual disconnect.");
-                } else {
-                    // Otherwise, this disconnect event corresponds to something else, e.g.,
-                    // going out of range.
-                    // Let's try to reconnect.
-                    log_thread("Scheduling a reconnect.");
-                    scheduleReconnect();
-                }
-            } else if (BLEService.ACTION_RSSI_AVAILABLE.equals(action)) {
-                int rssi = intent.getIntExtra(BLEService.EXTRA_RSSI, 0);
-
-                // I'm going to leave this commented out for now.
-                // Manually calling disconnect() on the GATT server causes the server to emit false
-                // connect events almost immediately after the disconnect(), even if the BLE
-                // device is dead. These spurious connects /sometimes/ make reconnects
-                // more spotty, less reliable, and slow.
-//                if (mDisconnectChecker.shouldDisconnect(rssi)) {
-//                    log_thread("mDisconnectChecker.shouldDisconnect(rssi) == true");
-//                    mBleService.disconnect();
-//                    return;
-//                }
-
-                mViewRssi.setText(String.format("%d dBm", rssi));
-
-                // Filter out null RSSI values
-                if (rssi != 0)
-                    updateLapCount(rssi);
+    // Renders the latest snapshot once per frame
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Clear the flag first, so an update after this point gets its own frame
+            mFramePending.set(false);
+            LapSnapshot latest = mBleService == null
+                    ? null : mBleService.getSnapshot(mDeviceAddress);
+            if (latest != null)
+                mLatestSnapshot = latest;
+            LapSnapshot snapshot = mLatestSnapshot;
+            render(snapshot);
+
+            // The views are updated; they are drawn later in this frame
+            if (snapshot != mRenderedSnapshot && snapshot.countedNanos != 0 && mBleService != null) {
+                long now = System.nanoTime();
+                LatencyStats latency = mBleService.getLatencyStats();
+                latency.record(LatencyStats.Stage.RENDER, now - snapshot.countedNanos);
+                latency.record(LatencyStats.Stage.END_TO_END, now - snapshot.receivedNanos);
             }
+            mRenderedSnapshot = snapshot;
+        }
+    };
+
+    private final BLEService.Listener mGattListener = new BLEService.Listener() {
+        @Override
+        public void onConnected(String address) {
+            if (!address.equals(mDeviceAddress))
+                return;
+
+            mGattEventHandler.sendEmptyMessage(MSG_CONNECTED);
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            if (address.equals(mDeviceAddress))
+                mGattEventHandler.sendEmptyMessage(MSG_DISCONNECTED);
+        }
+
+        @Override
+        public void onRssi(String address, int rssi, long timestampNanos) {
+            // Stale RSSI after a dropout never gets here; the session manager holds the
+            // last live reading without disconnecting, since disconnecting by hand made
+            // reconnects worse.
+        }
+
+        @Override
+        public void onLapUpdate(String address) {
+            if (address.equals(mDeviceAddress))
+                requestFrame();
         }
     };
 
+    /**
+     * Start receiving events from the service, and catch up on what we missed while paused.
+     */
+    private void attachToService() {
+        mBleBinder.addListener(mGattListener);
+
+        // The service kept sampling while we were away
+        mListening = mBleService.isListening(mDeviceAddress);
+        if (mBleService.isConnected(mDeviceAddress) != mConnected) {
+            mConnected = !mConnected;
+            updateConnectionState(mConnected ? R.string.connected : R.string.disconnected);
+            invalidateOptionsMenu();
+        }
+
+        requestFrame();
+    }
+
+    private void onGattConnected() {
+        mConnected = true;
+        mConnectionCount++;
+
+        if (mConnectionCount > 1) {
+            String s = String.format("%s (%d)", getString(R.string.reconnected),
+                                     mConnectionCount);
+            updateConnectionState(s);
+            log_thread("Reconnected.");
+        } else {
+            updateConnectionState(R.string.connected);
+        }
+
+        invalidateOptionsMenu();
+    }
+
+    private void onGattDisconnected() {
+        Log.d(TAG, "Received a disconnect event.");
+        mConnected = false;
+        updateConnectionState(R.string.disconnected);
+        invalidateOptionsMenu();
+
+        // BLEService reconnects by itself, or finds a listened-to device again, unless
+        // we asked it to stop
+        if (mListening)
+            log_thread("Lost the device's advertisements. Waiting to hear it again.");
+    }
+
+    /**
+     * Request a frame to render the pipeline's latest output, unless one is already
+     * pending. Called from any thread.
+     */
+    private void requestFrame() {
+        if (mFramePending.compareAndSet(false, true))
+            mGattEventHandler.sendEmptyMessage(MSG_SCHEDULE_FRAME);
+    }
+
     private void log_thread(String format, Object... args) {
         String s = String.format(format, args);
         s = String.format("[Thread %d] %s", Thread.currentThread().getId(), s);
@@ -179,30 +265,57 @@ public class LapCountActivity extends AppCompatActivity {
         mViewName = findViewById(R.id.device_name);
         mViewRssi = findViewById(R.id.device_rssi);
         mViewRssiFiltered = findViewById(R.id.device_rssi_filtered);
+        mViewDistance = findViewById(R.id.device_distance);
         mViewLapCount = findViewById(R.id.lap_count);
         mViewThreshold = findViewById(R.id.threshold);
         mSlidingWindowState = findViewById(R.id.sliding_window_state);
+        mViewSamples = findViewById(R.id.sample_counts);
 
         // Display the device name and address
         mViewName.setText(mDeviceName);
         mViewAddress.setText(mDeviceAddress);
-        mViewThreshold.setText(Double.toString(threshold));
+        mViewThreshold.setText(Double.toString(mSettings.threshold));
 
         // Set the title bar and add a back button
         getSupportActionBar().setTitle(R.string.title_lap_count);
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
 
+        // Load the device's settings while the service starts up
+        mSettingsStore = ((LapCounterApplication) getApplication()).getDeviceSettings();
+        mSettingsStore.get(mDeviceAddress, new DeviceSettingsStore.Callback() {
+            @Override
+            public void onSettingsLoaded(String address, DeviceSettings settings) {
+                onDeviceSettingsLoaded(settings);
+            }
+        });
+
         Intent gattServiceIntent = new Intent(this,BLEService.class);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
     }
 
+    private void onDeviceSettingsLoaded(DeviceSettings settings) {
+        if (isDestroyed())
+            return;
+
+        mSettings = settings;
+        mSettingsLoaded = true;
+        mDistanceModel = settings.newDistanceEstimator();
+        mViewThreshold.setText(Double.toString(settings.threshold));
+
+        if (mBleService != null)
+            startSampling();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
 
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
-        if (mBleService != null) {
-            final boolean result = mBleService.connect(mDeviceAddress);
+        mResumed = true;
+        if (mBleBinder != null)
+            attachToService();
+
+        if (mBleService != null && mSettingsLoaded) {
+            final boolean result = startSampling();
             Log.d(TAG, "Connect request result=" + result);
         }
     }
@@ -210,7 +323,16 @@ public class LapCountActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
+        mResumed = false;
+        if (mBleBinder != null)
+            mBleBinder.removeListener(mGattListener);
+
+        // Remember where the filter was
+        LapSnapshot snapshot = mLatestSnapshot;
+        if (mSettingsLoaded && snapshot.hasSample) {
+            mSettings = mSettings.withFilteredRssi(snapshot.filteredRssi);
+            mSettingsStore.put(mDeviceAddress, mSettings);
+        }
     }
 
     @Override
@@ -218,18 +340,22 @@ public class LapCountActivity extends AppCompatActivity {
         super.onDestroy();
         unbindService(mServiceConnection);
         mBleService = null;
+        mBleBinder = null;
+        mGattEventHandler.removeCallbacksAndMessages(null);
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.device_connection, menu);
         if (mConnected) {
-            menu.findItem(R.id.menu_connect).setVisible(false);
+            menu.findItem(R.id.menu_connect).setVisible(mListening);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
         } else {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_listen).setVisible(!mListening);
         return true;
     }
 
@@ -237,12 +363,28 @@ public class LapCountActivity extends AppCompatActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch(item.getItemId()) {
             case R.id.menu_connect:
+                mListening = false;
                 mBleService.connect(mDeviceAddress);
+                invalidateOptionsMenu();
+                return true;
+            case R.id.menu_listen:
+                mListening = true;
+                mBleService.listen(mDeviceAddress);
+                invalidateOptionsMenu();
                 return true;
             case R.id.menu_disconnect:
-                mManuallyDisconnected = true;
+                mListening = false;
                 Log.d(TAG, "onOptionsItemSelected() - The user manually disconnected.");
-                mBleService.disconnect();
+                mBleService.disconnect(mDeviceAddress);
+                return true;
+            case R.id.menu_calibrate:
+                Intent intent = new Intent(this, CalibrationActivity.class);
+                intent.putExtra(CalibrationActivity.EXTRAS_DEVICE_NAME, mDeviceName);
+                intent.putExtra(CalibrationActivity.EXTRAS_DEVICE_ADDRESS, mDeviceAddress);
+                startActivityForResult(intent, REQUEST_CALIBRATION);
+                return true;
+            case R.id.menu_latency:
+                startActivity(new Intent(this, LatencyActivity.class));
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -251,6 +393,24 @@ public class LapCountActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != REQUEST_CALIBRATION || resultCode != RESULT_OK)
+            return;
+
+        double offset = data.getDoubleExtra(CalibrationActivity.EXTRAS_OFFSET, 0.0);
+        double scale = data.getDoubleExtra(CalibrationActivity.EXTRAS_SCALE, 0.0);
+        if (scale == 0.0)
+            return;
+
+        mSettings = mSettings.withModel(offset, scale);
+        mSettingsStore.put(mDeviceAddress, mSettings);
+        mDistanceModel = mSettings.newDistanceEstimator();
+        log_thread("Calibrated: rssi = %.2f + %.2f * ln(dist).", offset, scale);
+        render(mLatestSnapshot);
+    }
+
     public void updateThreshold(View view){
         EditText thresholdEditor = findViewById(R.id.edit_threshold);
         Editable t = thresholdEditor.getText();
@@ -259,86 +419,56 @@ public class LapCountActivity extends AppCompatActivity {
             return;
         }
 
-        this.threshold = Double.parseDouble(t.toString());
-        mLapCounter = new SlidingWindowCounter(threshold, windowSize);
+        double threshold = Double.parseDouble(t.toString());
+        mSettings = mSettings.withThreshold(threshold);
+        mSettingsStore.put(mDeviceAddress, mSettings);
+        if (mBleService != null)
+            mBleService.setThreshold(mDeviceAddress, threshold);
 
         thresholdEditor.setText("");
         mViewThreshold.setText(Double.toString(threshold));
     }
 
-    private void scheduleRssiRequest() {
-        int period = RSSI_PERIOD_NORMAL;
-        if (mLapCounter.getState() == SlidingWindowCounter.State.UNKNOWN) {
-            period = RSSI_PERIOD_FAST;
-            log_thread("scheduleRssiRequest() - set RSSI period to fast (%d) because sliding " +
-                       "window state is unknown.", RSSI_PERIOD_FAST);
-        }
-
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                // Stop if we are no longer connected
-                if (!mConnected) {
-                    Log.d(TAG, "mConnected is false. I won't be scheduling another RSSI " +
-                               "request for now.");
-                    return;
-                }
-
-                // Request an update of the RSSI.
-                if (mBleService != null)
-                    mBleService.requestRssi();
-
-                // Schedule another RSSI request.
-                scheduleRssiRequest();
-            }
-        }, period);
+    /**
+     * Start getting samples from the device, by connecting to it or by listening to it.
+     */
+    private boolean startSampling() {
+        if (mListening)
+            return mBleService.listen(mDeviceAddress);
+        return mBleService.connect(mDeviceAddress);
     }
 
-    private void scheduleReconnect() {
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (mConnected) {
-                    Log.w(TAG, "scheduleReconnect() called when mConnected is true. _Probably_ " +
-                               "harmless, as a connect event could have fired between calls to " +
-                               "scheduleReconnect().");
-                    return;
-                }
-
-                if (mBleService.connect(mDeviceAddress)) {
-                    return;
-                }
-
-                Log.w(TAG, "scheduleReconnect() - Connection attempt failed. Scheduling another " +
-                           "reconnect.");
-                scheduleReconnect();
+    /**
+     * Show a snapshot of the pipeline's output.
+     */
+    private void render(LapSnapshot snapshot) {
+        if (snapshot.hasSample) {
+            mViewRssi.setText(String.format("%d dBm", snapshot.rssi));
+            mViewRssiFiltered.setText(String.format("%.1f dBm", snapshot.filteredRssi));
+            if (mDistanceModel != null) {
+                double distance = mDistanceModel.getDistance(snapshot.filteredRssi);
+                mViewDistance.setText(String.format("%.1f m", distance));
+            } else {
+                mViewDistance.setText(R.string.no_data);
             }
-        }, RECONNECT_PERIOD);
-    }
-
-    private void updateLapCount(int rssi) {
-        double filteredRssi = mRssiFilter.filter(rssi);
-        mViewRssiFiltered.setText(String.format("%.1f dBm", filteredRssi));
-
-        // Note: I am taking the absolute value of the RSSI so I do not have to change
-        // the logic of the underlying lap counter
-        int lapCount = mLapCounter.updateCount(Math.abs(filteredRssi));
-        mViewLapCount.setText(String.format("%d Laps", lapCount));
-
-        boolean windowsFull = mLapCounter.windowIsFull() && mRssiFilter.windowIsFull();
-        if (mLapCounter.getState() == SlidingWindowCounter.State.UNKNOWN && windowsFull) {
-            log_thread("updateLapCount() - Windows are full. SlidingWindowCounter should now " +
-                       "pick a state.");
-            boolean isReconnect = mConnectionCount > 1;
-            mLapCounter.pickZone(isReconnect);
+        } else {
+            clearUI();
         }
 
-        mSlidingWindowState.setText(mLapCounter.getState().toString());
+        mViewLapCount.setText(String.format("%d Laps", snapshot.lapCount));
+        mSlidingWindowState.setText(snapshot.state.toString());
+
+        if (mBleService != null) {
+            mViewSamples.setText(String.format("%d / %d / %d", mBleService.getSamplesReceived(),
+                                               mBleService.getSamplesProcessed(),
+                                               mBleService.getSamplesDropped()));
+        }
     }
 
     private void clearUI() {
         mViewRssi.setText(R.string.no_data);
         mViewRssiFiltered.setText(R.string.no_data);
+        mViewDistance.setText(R.string.no_data);
     }
 
     private void updateConnectionState(final int resourceId) {
@@ -358,13 +488,4 @@ public class LapCountActivity extends AppCompatActivity {
             }
         });
     }
-
-    // Subscribe to different BLE events from our custom service
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BLEService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BLEService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BLEService.ACTION_RSSI_AVAILABLE);
-        return intentFilter;
-    }
 }
@@ -0,0 +1,46 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import android.app.Application;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * App-wide setup. Routes log messages from the lap counting core to logcat, and starts
+ * loading the saved device settings so they are ready by the time a device is picked.
+ */
+public class LapCounterApplication extends Application {
+    private static final String DEVICE_SETTINGS_FILE = "device_settings.txt";
+
+    private DeviceSettingsStore mDeviceSettings;
+
+    private static final LapLog.Sink ANDROID_LOG_SINK = new LapLog.Sink() {
+        @Override
+        public void d(String tag, String msg) {
+            Log.d(tag, msg);
+        }
+
+        @Override
+        public void w(String tag, String msg) {
+            Log.w(tag, msg);
+        }
+
+        @Override
+        public void e(String tag, String msg) {
+            Log.e(tag, msg);
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        LapLog.setSink(ANDROID_LOG_SINK);
+
+        mDeviceSettings = new DeviceSettingsStore(new File(getFilesDir(), DEVICE_SETTINGS_FILE));
+        mDeviceSettings.load();
+    }
+
+    DeviceSettingsStore getDeviceSettings() {
+        return mDeviceSettings;
+    }
+}
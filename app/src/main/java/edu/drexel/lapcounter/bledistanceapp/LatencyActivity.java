@@ -0,0 +1,119 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.support.v7.app.AppCompatActivity;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * Debug screen with BLEService's sample counters, poll telemetry (see PollTelemetry),
+ * reconnect times (see ReconnectStats) and per-stage latency histograms (see
+ * LatencyStats). The same numbers are in the
+ * service's dumpsys output.
+ */
+public class LatencyActivity extends AppCompatActivity {
+    // How often the table is refreshed
+    private static final int REFRESH_PERIOD = 1000;
+
+    private TextView mViewCounts;
+    private TextView mViewTable;
+
+    // The service for getting bluetooth updates
+    private BLEService mBleService;
+
+    private final Handler mHandler = new Handler();
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mBleService = ((BLEService.LocalBinder) service).getService();
+            refresh();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mBleService = null;
+        }
+    };
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            mHandler.postDelayed(this, REFRESH_PERIOD);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_latency);
+
+        mViewCounts = findViewById(R.id.sample_counts);
+        mViewTable = findViewById(R.id.latency_table);
+
+        // Set the title bar and add a back button
+        getSupportActionBar().setTitle(R.string.title_latency);
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+
+        Intent gattServiceIntent = new Intent(this, BLEService.class);
+        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mHandler.post(mRefresh);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        unbindService(mServiceConnection);
+        mBleService = null;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            onBackPressed();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    public void resetLatency(View view) {
+        if (mBleService == null)
+            return;
+
+        mBleService.getLatencyStats().clear();
+        mBleService.getPollTelemetry().clear();
+        mBleService.getReconnectStats().clear();
+        refresh();
+    }
+
+    private void refresh() {
+        if (mBleService == null)
+            return;
+
+        mViewCounts.setText(String.format("Samples: %d received, %d processed, %d dropped",
+                                          mBleService.getSamplesReceived(),
+                                          mBleService.getSamplesProcessed(),
+                                          mBleService.getSamplesDropped()));
+        mViewTable.setText(mBleService.getPollTelemetry().format(System.nanoTime()) + "\n" +
+                           mBleService.getReconnectStats().format() + "\n" +
+                           mBleService.getLatencyStats().format());
+    }
+}
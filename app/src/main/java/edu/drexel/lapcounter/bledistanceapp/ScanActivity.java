@@ -9,6 +9,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
@@ -33,6 +34,9 @@ public class ScanActivity extends AppCompatActivity {
     // Scanning lasts 10 seconds
     private static final int SCAN_PERIOD = 10000;
 
+    // How often scan results are published to the list
+    private static final int PUBLISH_PERIOD = 250;
+
     // Bluetooth adapter for sccanning for devices
     private BluetoothAdapter mBluetoothAdapter;
 
@@ -45,6 +49,11 @@ public class ScanActivity extends AppCompatActivity {
     // Handle scan schedule
     private boolean mScanning = false;
     private Handler mHandler = new Handler();
+
+    // Scan results waiting to be published. A crowded room produces hundreds of
+    // advertisements a second, far more than the list needs to redraw.
+    private final ScanResultBuffer mScanResults = new ScanResultBuffer();
+
     private BluetoothAdapter.LeScanCallback mLeScanCallback =
             new BluetoothAdapter.LeScanCallback() {
         @Override
@@ -52,17 +61,17 @@ public class ScanActivity extends AppCompatActivity {
             if (TextUtils.isEmpty(device.getName()))
                 return;
 
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    String logMessage = String.format("Found Device %s %d", device.getName(), rssi);
-                    Log.d(TAG, logMessage);
+            mScanResults.add(device, rssi, SystemClock.elapsedRealtime());
+        }
+    };
 
-                    // Maybe add a device to the list
-                    mDeviceListAdapter.addDevice(device, rssi);
-                    mDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+    // Publishes buffered scan results to the list, with at most one change notification
+    private final Runnable mPublishResults = new Runnable() {
+        @Override
+        public void run() {
+            publishScanResults();
+            if (mScanning)
+                mHandler.postDelayed(this, PUBLISH_PERIOD);
         }
     };
 
@@ -136,7 +145,7 @@ public class ScanActivity extends AppCompatActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                mDeviceListAdapter.clear();
+                clearDevices();
                 scanBLEDevices(true);
                 break;
             case R.id.menu_stop_scan:
@@ -150,7 +159,7 @@ public class ScanActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
         scanBLEDevices(false);
-        mDeviceListAdapter.clear();
+        clearDevices();
     }
 
     @Override
@@ -240,6 +249,24 @@ public class ScanActivity extends AppCompatActivity {
         }
     }
 
+    private void publishScanResults() {
+        int count = mDeviceListAdapter.getCount();
+        boolean changed = mScanResults.drainTo(mDeviceListAdapter);
+        changed |= mDeviceListAdapter.markSilent(SystemClock.elapsedRealtime());
+        if (!changed)
+            return;
+
+        if (mDeviceListAdapter.getCount() != count)
+            Log.d(TAG, "Found " + (mDeviceListAdapter.getCount() - count) + " new devices.");
+        mDeviceListAdapter.notifyDataSetChanged();
+    }
+
+    private void clearDevices() {
+        mScanResults.clear();
+        mDeviceListAdapter.clear();
+        mDeviceListAdapter.notifyDataSetChanged();
+    }
+
     /**
      * Enable/disable scanning for BLE devices
      * @param enable true to start the scan, false to stop the scan
@@ -252,6 +279,7 @@ public class ScanActivity extends AppCompatActivity {
                 public void run() {
                     mScanning = false;
                     mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                    publishScanResults();
                     invalidateOptionsMenu();
                 }
             }, SCAN_PERIOD);
@@ -259,10 +287,13 @@ public class ScanActivity extends AppCompatActivity {
             // Start scanning
             mScanning = true;
             mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mHandler.removeCallbacks(mPublishResults);
+            mHandler.postDelayed(mPublishResults, PUBLISH_PERIOD);
         } else {
             // Stop scanning
             mScanning = false;
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mHandler.removeCallbacks(mPublishResults);
         }
 
         invalidateOptionsMenu();
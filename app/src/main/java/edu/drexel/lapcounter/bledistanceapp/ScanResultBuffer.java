@@ -0,0 +1,66 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Collects scan results on the Bluetooth thread, so they can be handed to the UI in
+ * batches. Only the latest result per device is kept until the next drain.
+ */
+class ScanResultBuffer {
+
+    private static class Result {
+        final BluetoothDevice device;
+        int rssi;
+        long lastSeenMillis;
+        boolean pending = false;
+
+        Result(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    // Every device heard, by address, so a busy scan doesn't allocate per result
+    private final HashMap<String, Result> mResults = new HashMap<>();
+
+    // Devices heard since the last drain
+    private final ArrayList<Result> mPending = new ArrayList<>();
+
+    synchronized void add(BluetoothDevice device, int rssi, long nowMillis) {
+        Result result = mResults.get(device.getAddress());
+        if (result == null) {
+            result = new Result(device);
+            mResults.put(device.getAddress(), result);
+        }
+
+        result.rssi = rssi;
+        result.lastSeenMillis = nowMillis;
+        if (!result.pending) {
+            result.pending = true;
+            mPending.add(result);
+        }
+    }
+
+    /**
+     * Hand everything heard since the last drain to the adapter.
+     * @return true if the adapter's contents changed
+     */
+    synchronized boolean drainTo(BLEDeviceListAdapter adapter) {
+        boolean changed = false;
+        for (int i = 0; i < mPending.size(); i++) {
+            Result result = mPending.get(i);
+            result.pending = false;
+            changed |= adapter.update(result.device, result.rssi, result.lastSeenMillis);
+        }
+
+        mPending.clear();
+        return changed;
+    }
+
+    synchronized void clear() {
+        mResults.clear();
+        mPending.clear();
+    }
+}
@@ -0,0 +1,34 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of filtering one RSSI sample with the spike prefilter in front of the app's
+ * moving average. Compare with MovingAverageBenchmark.
+ */
+@State(Scope.Thread)
+public class HampelFilterBenchmark {
+    @Param({"5", "9", "31"})
+    public int windowSize;
+
+    private HampelFilter mFilter;
+    private int[] mTrace;
+    private int mIndex = 0;
+
+    @Setup
+    public void setup() {
+        mFilter = new HampelFilter(new MovingAverage(LapPipeline.DEFAULT_FILTER_WINDOW),
+                                   windowSize, 3.0);
+        mTrace = RssiTraces.swim(42);
+    }
+
+    @Benchmark
+    public double filter() {
+        mIndex = (mIndex + 1) & RssiTraces.MASK;
+        return mFilter.filter(mTrace[mIndex]);
+    }
+}
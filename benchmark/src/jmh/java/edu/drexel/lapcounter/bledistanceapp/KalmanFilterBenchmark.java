@@ -0,0 +1,29 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of filtering one RSSI sample with the Kalman filter. Compare with
+ * MovingAverageBenchmark.
+ */
+@State(Scope.Thread)
+public class KalmanFilterBenchmark {
+    private KalmanFilter mFilter;
+    private int[] mTrace;
+    private int mIndex = 0;
+
+    @Setup
+    public void setup() {
+        mFilter = new KalmanFilter();
+        mTrace = RssiTraces.swim(42);
+    }
+
+    @Benchmark
+    public double filter() {
+        mIndex = (mIndex + 1) & RssiTraces.MASK;
+        return mFilter.filter(mTrace[mIndex]);
+    }
+}
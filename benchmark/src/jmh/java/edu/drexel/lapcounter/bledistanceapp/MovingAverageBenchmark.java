@@ -0,0 +1,32 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of filtering one RSSI sample.
+ */
+@State(Scope.Thread)
+public class MovingAverageBenchmark {
+    @Param({"3", "10", "100", "500"})
+    public int windowSize;
+
+    private MovingAverage mFilter;
+    private int[] mTrace;
+    private int mIndex = 0;
+
+    @Setup
+    public void setup() {
+        mFilter = new MovingAverage(windowSize);
+        mTrace = RssiTraces.swim(42);
+    }
+
+    @Benchmark
+    public double filter() {
+        mIndex = (mIndex + 1) & RssiTraces.MASK;
+        return mFilter.filter(mTrace[mIndex]);
+    }
+}
@@ -0,0 +1,55 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The per-sample work GattSessionManager does for each RSSI reading, minus the
+ * listeners. With timeWindows set, the pipeline is the app's: a TimeWindowAverage and a
+ * timed counter, fed a timestamp every nominal sample period. Otherwise it windows by
+ * sample count. With latencyStats set, the pipeline also records its stage latencies,
+ * as it does in the app.
+ */
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    @Param({"10", "100", "500"})
+    public int filterWindowSize;
+
+    @Param({"3", "10", "100"})
+    public int counterWindowSize;
+
+    @Param({"false", "true"})
+    public boolean timeWindows;
+
+    @Param({"false", "true"})
+    public boolean latencyStats;
+
+    private LapPipeline mPipeline;
+    private int[] mTrace;
+    private int mIndex = 0;
+    private long mNow = 0;
+
+    @Setup
+    public void setup() {
+        if (timeWindows) {
+            mPipeline = LapPipeline.timed(60.0, counterWindowSize, filterWindowSize);
+        } else {
+            mPipeline = new LapPipeline(new MovingAverage(filterWindowSize),
+                                        new SlidingWindowCounter(60.0, counterWindowSize));
+        }
+        if (latencyStats)
+            mPipeline.setLatencyStats(new LatencyStats());
+        mTrace = RssiTraces.swim(42);
+    }
+
+    @Benchmark
+    public int onRssi() {
+        mIndex = (mIndex + 1) & RssiTraces.MASK;
+        mNow += LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS;
+        mPipeline.onRssi(mTrace[mIndex], mNow, 0);
+        return mPipeline.getLapCount();
+    }
+}
@@ -0,0 +1,40 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import java.util.Random;
+
+/**
+ * Synthetic RSSI traces for the benchmarks.
+ */
+final class RssiTraces {
+    // Length of a generated trace. A power of 2 so benchmarks can wrap with a mask.
+    static final int LENGTH = 1 << 14;
+    static final int MASK = LENGTH - 1;
+
+    // Samples it takes to swim from the phone to the far wall
+    private static final int SAMPLES_PER_LENGTH = 60;
+
+    private RssiTraces() {
+    }
+
+    /**
+     * A swimmer going back and forth: RSSI ramps between about -40 and -90 dBm
+     * with gaussian noise and the occasional dropped (0) reading.
+     * @param seed seed for the noise
+     * @return LENGTH RSSI readings in dBm
+     */
+    static int[] swim(long seed) {
+        Random random = new Random(seed);
+        int[] trace = new int[LENGTH];
+
+        for (int i = 0; i < LENGTH; i++) {
+            int phase = i % (2 * SAMPLES_PER_LENGTH);
+            if (phase >= SAMPLES_PER_LENGTH)
+                phase = 2 * SAMPLES_PER_LENGTH - phase;
+
+            double rssi = -40.0 - 50.0 * phase / SAMPLES_PER_LENGTH + 4.0 * random.nextGaussian();
+            trace[i] = random.nextInt(50) == 0 ? 0 : (int) Math.round(rssi);
+        }
+
+        return trace;
+    }
+}
@@ -0,0 +1,54 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of updating the lap counter with one filtered sample. With timed set, the
+ * counter windows by time like the app's, and gets a sample every nominal sample period.
+ */
+@State(Scope.Thread)
+public class SlidingWindowCounterBenchmark {
+    @Param({"3", "10", "100", "500"})
+    public int windowSize;
+
+    @Param({"false", "true"})
+    public boolean timed;
+
+    private SlidingWindowCounter mCounter;
+    private double[] mFiltered;
+    private int mIndex = 0;
+    private long mNow = 0;
+
+    @Setup
+    public void setup() {
+        mCounter = timed
+                ? SlidingWindowCounter.timed(60.0, LapPipeline.windowNanos(windowSize))
+                : new SlidingWindowCounter(60.0, windowSize);
+
+        int[] trace = RssiTraces.swim(42);
+        MovingAverage filter = new MovingAverage(10);
+        mFiltered = new double[trace.length];
+        for (int i = 0; i < trace.length; i++)
+            mFiltered[i] = Math.abs(filter.filter(trace[i]));
+
+        // Start in a known zone so the counter exercises its state transitions.
+        for (mIndex = 0; !mCounter.windowIsFull(); mIndex++)
+            mCounter.updateCount(mFiltered[mIndex], nextTimestamp());
+        mCounter.pickZone(false);
+    }
+
+    @Benchmark
+    public int updateCount() {
+        mIndex = (mIndex + 1) & RssiTraces.MASK;
+        return mCounter.updateCount(mFiltered[mIndex], nextTimestamp());
+    }
+
+    private long nextTimestamp() {
+        mNow += LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS;
+        return mNow;
+    }
+}
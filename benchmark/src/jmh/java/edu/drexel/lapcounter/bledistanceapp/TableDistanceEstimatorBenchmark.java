@@ -0,0 +1,34 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of converting one filtered RSSI value to a distance through a table. Compare
+ * with LogarithmicModelBenchmark.
+ */
+@State(Scope.Thread)
+public class TableDistanceEstimatorBenchmark {
+    private DistanceEstimator mTable;
+    private double[] mFiltered;
+    private int mIndex = 0;
+
+    @Setup
+    public void setup() {
+        mTable = new TableDistanceEstimator(new LogarithmicModel(-55.0, -10.0));
+
+        int[] trace = RssiTraces.swim(42);
+        MovingAverage filter = new MovingAverage(10);
+        mFiltered = new double[trace.length];
+        for (int i = 0; i < trace.length; i++)
+            mFiltered[i] = filter.filter(trace[i]);
+    }
+
+    @Benchmark
+    public double getDistance() {
+        mIndex = (mIndex + 1) & RssiTraces.MASK;
+        return mTable.getDistance(mFiltered[mIndex]);
+    }
+}
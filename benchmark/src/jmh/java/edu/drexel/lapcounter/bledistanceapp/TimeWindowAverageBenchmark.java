@@ -0,0 +1,36 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of filtering one RSSI sample with the time windowed average the app uses.
+ * Samples arrive every nominal sample period. Compare with MovingAverageBenchmark.
+ */
+@State(Scope.Thread)
+public class TimeWindowAverageBenchmark {
+    // In samples at the nominal period
+    @Param({"3", "10", "100", "500"})
+    public int windowSize;
+
+    private TimeWindowAverage mFilter;
+    private int[] mTrace;
+    private int mIndex = 0;
+    private long mNow = 0;
+
+    @Setup
+    public void setup() {
+        mFilter = new TimeWindowAverage(LapPipeline.windowNanos(windowSize));
+        mTrace = RssiTraces.swim(42);
+    }
+
+    @Benchmark
+    public double filter() {
+        mIndex = (mIndex + 1) & RssiTraces.MASK;
+        mNow += LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS;
+        return mFilter.filter(mTrace[mIndex], mNow);
+    }
+}
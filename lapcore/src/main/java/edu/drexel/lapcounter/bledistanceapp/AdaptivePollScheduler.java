@@ -0,0 +1,137 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import java.util.Locale;
+
+/**
+ * Picks how long to wait before the next RSSI poll, based on where the swimmer is
+ * relative to the lap counter's threshold.
+ *
+ * Polling is fast while the zone is unknown, while the distance is close to the
+ * threshold, and while the swimmer is turning around (the distance stops changing)
+ * short of a zone's depths, since that is when a lap is decided. Deep in the NEAR or
+ * FAR zone and not heading for the threshold, it slows down to save radio and CPU
+ * wakeups.
+ *
+ * It also keeps track of how many polls it saved compared to the fixed schedule
+ * it replaces: the normal period, or the fast period while the zone is unknown.
+ * The counters may be read from any thread.
+ */
+public class AdaptivePollScheduler {
+    // Within this many units of the threshold, poll as fast as possible
+    public static final double DEFAULT_NEAR_BAND = 5.0;
+    // Farther than this from the threshold, the swimmer is deep in a zone
+    public static final double DEFAULT_DEEP_BAND = 15.0;
+    // A window delta smaller than this means the swimmer is about to change direction
+    public static final double DEFAULT_TURN_BAND = 1.0;
+
+    private final int mFastPeriod;
+    private final int mNormalPeriod;
+    private final int mSlowPeriod;
+
+    private final double mNearBand;
+    private final double mDeepBand;
+    private final double mTurnBand;
+
+    // Polls scheduled, and how many the fixed schedule would have made in the same time
+    private long mPolls = 0;
+    private double mBaselinePolls = 0.0;
+
+    /**
+     * @param fastPeriod shortest time between polls in ms
+     * @param normalPeriod usual time between polls in ms
+     * @param slowPeriod longest time between polls in ms
+     */
+    public AdaptivePollScheduler(int fastPeriod, int normalPeriod, int slowPeriod) {
+        this(fastPeriod, normalPeriod, slowPeriod, DEFAULT_NEAR_BAND, DEFAULT_DEEP_BAND,
+             DEFAULT_TURN_BAND);
+    }
+
+    public AdaptivePollScheduler(int fastPeriod, int normalPeriod, int slowPeriod,
+                                 double nearBand, double deepBand, double turnBand) {
+        mFastPeriod = fastPeriod;
+        mNormalPeriod = normalPeriod;
+        mSlowPeriod = slowPeriod;
+        mNearBand = nearBand;
+        mDeepBand = deepBand;
+        mTurnBand = turnBand;
+    }
+
+    /**
+     * Pick the delay before the next poll, and count the poll.
+     * @param snapshot the latest pipeline output
+     * @return the delay in ms
+     */
+    public synchronized int nextPeriod(LapSnapshot snapshot) {
+        int period = periodFor(snapshot);
+
+        int baseline = snapshot.state == SlidingWindowCounter.State.UNKNOWN
+                ? mFastPeriod : mNormalPeriod;
+        mPolls++;
+        mBaselinePolls += (double) period / baseline;
+
+        return period;
+    }
+
+    /**
+     * Pick the delay nextPeriod() would, without counting a poll. Useful to find the
+     * device that needs polling most urgently.
+     * @return the delay in ms
+     */
+    public int periodFor(LapSnapshot snapshot) {
+        if (!snapshot.hasSample || snapshot.state == SlidingWindowCounter.State.UNKNOWN)
+            return mFastPeriod;
+
+        double margin = snapshot.distance - snapshot.threshold;
+        if (Math.abs(margin) < mNearBand)
+            return mFastPeriod;
+
+        boolean turning = Math.abs(snapshot.windowDelta) < mTurnBand;
+        boolean movingAway = (margin > 0) == (snapshot.windowDelta > 0);
+
+        // Deep inside a zone, and not heading for the threshold. This includes resting
+        // at either wall.
+        if (Math.abs(margin) > mDeepBand)
+            return turning || movingAway ? mSlowPeriod : mNormalPeriod;
+
+        // The direction is about to flip
+        if (turning)
+            return mFastPeriod;
+
+        return mNormalPeriod;
+    }
+
+    public synchronized long getPollCount() {
+        return mPolls;
+    }
+
+    /**
+     * @return how many polls the fixed schedule would have made in the same time
+     */
+    public synchronized double getBaselinePollCount() {
+        return mBaselinePolls;
+    }
+
+    /**
+     * @return the fraction of the fixed schedule's polls that were saved. Negative if
+     *         we polled more.
+     */
+    public synchronized double getSavedFraction() {
+        if (mBaselinePolls == 0.0)
+            return 0.0;
+        return 1.0 - mPolls / mBaselinePolls;
+    }
+
+    public synchronized void reset() {
+        mPolls = 0;
+        mBaselinePolls = 0.0;
+    }
+
+    /**
+     * @return the polls made, the polls the fixed schedule would have made, and the
+     *         percentage saved
+     */
+    public synchronized String format() {
+        return String.format(Locale.US, "polls %d, fixed schedule %.0f, saved %.1f%%%n",
+                             mPolls, mBaselinePolls, 100 * getSavedFraction());
+    }
+}
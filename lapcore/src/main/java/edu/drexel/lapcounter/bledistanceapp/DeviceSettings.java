@@ -0,0 +1,75 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Everything tuned for one device: its lap counter threshold and window sizes, its
+ * calibrated distance model, and where its filter last was. Immutable, so it can be
+ * handed between threads and kept in a DeviceSettingsCache.
+ */
+public final class DeviceSettings {
+    // Settings for a device we have never tuned
+    public static final DeviceSettings DEFAULTS =
+            new DeviceSettings(LapPipeline.DEFAULT_THRESHOLD, LapPipeline.DEFAULT_COUNTER_WINDOW,
+                               LapPipeline.DEFAULT_FILTER_WINDOW, Double.NaN, Double.NaN,
+                               Double.NaN);
+
+    public final double threshold;
+    public final int counterWindow;
+    public final int filterWindow;
+    // LogarithmicModel coefficients, NaN until the device is calibrated
+    public final double modelOffset;
+    public final double modelScale;
+    // The last filtered RSSI seen from the device, NaN if there was none
+    public final double filteredRssi;
+
+    public DeviceSettings(double threshold, int counterWindow, int filterWindow,
+                          double modelOffset, double modelScale, double filteredRssi) {
+        this.threshold = threshold;
+        this.counterWindow = counterWindow;
+        this.filterWindow = filterWindow;
+        this.modelOffset = modelOffset;
+        this.modelScale = modelScale;
+        this.filteredRssi = filteredRssi;
+    }
+
+    public boolean hasModel() {
+        return !Double.isNaN(modelOffset) && !Double.isNaN(modelScale) && modelScale != 0.0;
+    }
+
+    public boolean hasFilteredRssi() {
+        return !Double.isNaN(filteredRssi);
+    }
+
+    public DeviceSettings withThreshold(double threshold) {
+        return new DeviceSettings(threshold, counterWindow, filterWindow, modelOffset,
+                                  modelScale, filteredRssi);
+    }
+
+    public DeviceSettings withModel(double offset, double scale) {
+        return new DeviceSettings(threshold, counterWindow, filterWindow, offset, scale,
+                                  filteredRssi);
+    }
+
+    public DeviceSettings withFilteredRssi(double filteredRssi) {
+        return new DeviceSettings(threshold, counterWindow, filterWindow, modelOffset,
+                                  modelScale, filteredRssi);
+    }
+
+    /**
+     * @return a lap counting pipeline with these settings, starting from the remembered
+     *         filtered RSSI if there is one
+     */
+    public LapPipeline newPipeline() {
+        LapPipeline pipeline = LapPipeline.timed(threshold, counterWindow, filterWindow);
+        pipeline.seed(filteredRssi);
+        return pipeline;
+    }
+
+    /**
+     * @return the calibrated distance model as a lookup table, or null if there is none
+     */
+    public DistanceEstimator newDistanceEstimator() {
+        if (!hasModel())
+            return null;
+        return new TableDistanceEstimator(new LogarithmicModel(modelOffset, modelScale));
+    }
+}
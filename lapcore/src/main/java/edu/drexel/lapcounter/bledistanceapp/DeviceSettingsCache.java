@@ -0,0 +1,114 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * DeviceSettings for the most recently used devices, keyed by MAC address. When the
+ * cache is full, the device used longest ago is evicted.
+ *
+ * The cache is saved as text, one device per line, least recently used first, so
+ * reading it back restores the order:
+ *
+ *   # FORMAT_HEADER
+ *   address threshold counterWindow filterWindow modelOffset modelScale filteredRssi
+ *
+ * Unknown values are written as NaN. Lines that don't parse are skipped.
+ */
+public class DeviceSettingsCache {
+    // Tag for logging
+    private static final String TAG = DeviceSettingsCache.class.getSimpleName();
+
+    public static final String FORMAT_HEADER = "# lapcounter device settings v1";
+
+    // Enough for a club's worth of tags
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private static final int FIELD_COUNT = 7;
+
+    private final LinkedHashMap<String, DeviceSettings> mSettings;
+
+    public DeviceSettingsCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DeviceSettingsCache(final int capacity) {
+        // Access order, so the eldest entry is the least recently used one
+        mSettings = new LinkedHashMap<String, DeviceSettings>(capacity + 1, 1.0f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DeviceSettings> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the device's settings, or DeviceSettings.DEFAULTS for an unknown device.
+     *         A known device becomes the most recently used one.
+     */
+    public synchronized DeviceSettings get(String address) {
+        DeviceSettings settings = mSettings.get(address);
+        return settings == null ? DeviceSettings.DEFAULTS : settings;
+    }
+
+    public synchronized boolean contains(String address) {
+        return mSettings.containsKey(address);
+    }
+
+    public synchronized void put(String address, DeviceSettings settings) {
+        mSettings.put(address, settings);
+    }
+
+    public synchronized int size() {
+        return mSettings.size();
+    }
+
+    public synchronized void clear() {
+        mSettings.clear();
+    }
+
+    /**
+     * Add the devices saved by write(). Devices already in the cache are replaced.
+     */
+    public synchronized void read(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] fields = line.split("\\s+");
+            if (fields.length != FIELD_COUNT) {
+                LapLog.w(TAG, "read() - Skipping malformed line: " + line);
+                continue;
+            }
+
+            try {
+                DeviceSettings settings = new DeviceSettings(Double.parseDouble(fields[1]),
+                                                             Integer.parseInt(fields[2]),
+                                                             Integer.parseInt(fields[3]),
+                                                             Double.parseDouble(fields[4]),
+                                                             Double.parseDouble(fields[5]),
+                                                             Double.parseDouble(fields[6]));
+                mSettings.put(fields[0], settings);
+            } catch (NumberFormatException e) {
+                LapLog.w(TAG, "read() - Skipping malformed line: " + line);
+            }
+        }
+    }
+
+    public synchronized void write(Writer writer) throws IOException {
+        writer.write(FORMAT_HEADER);
+        writer.write('\n');
+        for (Map.Entry<String, DeviceSettings> entry : mSettings.entrySet()) {
+            DeviceSettings s = entry.getValue();
+            writer.write(String.format(Locale.US, "%s %s %d %d %s %s %s\n", entry.getKey(),
+                                       s.threshold, s.counterWindow, s.filterWindow,
+                                       s.modelOffset, s.modelScale, s.filteredRssi));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * The parts of the Bluetooth GATT stack the lap counter uses. The app implements
+ * this on top of BluetoothGatt; tests can substitute a fake.
+ */
+public interface GattLayer {
+
+    /**
+     * Receives events for connections made through the layer. Events may arrive on
+     * any thread.
+     */
+    interface Callback {
+        void onConnectionStateChange(String address, boolean connected);
+
+        /**
+         * @param success false if the read failed, in which case rssi is meaningless
+         */
+        void onReadRemoteRssi(String address, int rssi, boolean success);
+    }
+
+    /**
+     * A GATT connection to one device.
+     */
+    interface Connection {
+        /**
+         * Start an RSSI read. The result arrives through Callback.onReadRemoteRssi().
+         * @return false if the read could not be started
+         */
+        boolean readRemoteRssi();
+
+        /**
+         * Disconnect. The result arrives through Callback.onConnectionStateChange().
+         */
+        void disconnect();
+
+        /**
+         * Connect again on this connection after it was lost, rather than opening a new
+         * one. This may be slower than a new connection: on Android it is a background
+         * connect, as if autoConnect were set. The result arrives through
+         * Callback.onConnectionStateChange().
+         * @return false if connecting could not be started
+         */
+        boolean reconnect();
+
+        /**
+         * Release the connection. No more callbacks are delivered for it.
+         */
+        void close();
+    }
+
+    /**
+     * Start connecting to a device.
+     * @return the new connection, or null if connecting could not be started
+     */
+    Connection connect(String address, Callback callback);
+}
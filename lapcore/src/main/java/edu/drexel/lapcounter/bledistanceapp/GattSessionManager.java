@@ -0,0 +1,1204 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Manages concurrent GATT connections to several devices, e.g. one tag per swimmer
+ * in a lane. Each device has its own LapPipeline, which keeps its lap count across
+ * disconnects, and its filter and counter state across short ones.
+ *
+ * RSSI reads are spread across connected devices by a round-robin poller. A
+ * connection only ever has one read outstanding, and at most maxReadsInFlight
+ * reads are outstanding overall. When the cap cuts a poll short, the devices that
+ * missed out are polled first next time.
+ *
+ * A device can instead be listened to passively: its pipeline is fed the RSSI of its
+ * advertisements, heard by a ScanLayer, with no connection at all. That gives more
+ * samples per second, no connect or reconnect cost, and doesn't count against the
+ * connection limit. A listened-to device counts as connected while it is being heard,
+ * and disconnected once it has been silent for ADVERTISEMENT_TIMEOUT_NANOS.
+ *
+ * Android lets an app start only MAX_SCAN_STARTS scans per SCAN_START_WINDOW_NANOS, and
+ * ignores the starts past that. So the scan is only restarted when a device is added to
+ * it; a device that is dropped stays in the scan until the next restart, and its
+ * advertisements are dropped here. Restarts less than SCAN_RESTART_DELAY_NANOS apart,
+ * or past the limit, are held back and coalesced, and a failed scan is retried after
+ * SCAN_RETRY_NANOS. runScan() starts whatever was held back once it is allowed.
+ *
+ * A device connect() was called for is reconnected to whenever its connection is lost
+ * or fails, until disconnect() is called.
+ * Attempts are started by runReconnects(), spaced out by a ReconnectBackoff. Attempts
+ * started within DEFAULT_REUSE_NANOS of losing the connection reuse it. On Android that
+ * is a background, autoConnect style connect: it saves registering a new GATT client,
+ * but it is usually slower than a new direct connection, so it is only worth it while
+ * the device may come straight back. After that the connection is closed and a new one
+ * opened. ReconnectStats times the two kinds of attempt separately. At most
+ * DEFAULT_MAX_CONNECT_ATTEMPTS attempts are pending at once. An attempt that hasn't
+ * finished after DEFAULT_CONNECT_TIMEOUT_NANOS counts as failed, and its connection is
+ * closed, so a late callback from it can't be taken for the next attempt's.
+ *
+ * RSSI read from a connection is checked by a StaleSampleDetector first. Stale samples
+ * aren't counted: the pipeline holds its last live reading in their place, and the
+ * connection is left to the stack.
+ *
+ * Every nowNanos and sample timestamp is on the manager's Clock, the same clock scan
+ * timestamps are on: SystemClock.elapsedRealtimeNanos() in the app. The overloads that
+ * don't take a time read it. Only read round trips and LatencyStats use
+ * System.nanoTime().
+ *
+ * The manager's state is guarded by its lock, so GATT and scan callbacks can arrive on
+ * any thread. The pipeline work a callback brings, filtering and counting a sample and
+ * telling the listener, is queued under the lock and done without it on the pipeline
+ * executor. So polling, reconnecting and reading snapshots never wait for a sample to be
+ * counted. Listener methods are called on the executor, one at a time and in the order
+ * the events happened, and may call back into the manager.
+ */
+public class GattSessionManager implements GattLayer.Callback, ScanLayer.Callback {
+    // Tag for logging
+    private static final String TAG = GattSessionManager.class.getSimpleName();
+
+    // Android phones typically manage about 7 concurrent BLE connections
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+    public static final int DEFAULT_MAX_READS_IN_FLIGHT = 4;
+    // An RSSI read whose callback hasn't arrived after this long is given up on
+    public static final long DEFAULT_READ_TIMEOUT_NANOS = 2000000000L;
+    // A listened-to device that hasn't advertised for this long counts as disconnected
+    public static final long ADVERTISEMENT_TIMEOUT_NANOS = 3000000000L;
+    // Phones only make a couple of connections at a time; more attempts just queue up
+    public static final int DEFAULT_MAX_CONNECT_ATTEMPTS = 2;
+    // A connection attempt that hasn't finished after this long is cancelled
+    public static final long DEFAULT_CONNECT_TIMEOUT_NANOS = 10000000000L;
+    // Attempts started this long after the connection was lost open a new connection
+    // instead of reusing the lost one
+    public static final long DEFAULT_REUSE_NANOS = 2000000000L;
+    // Android ignores scans started past this many in this long
+    public static final int MAX_SCAN_STARTS = 5;
+    public static final long SCAN_START_WINDOW_NANOS = 30000000000L;
+    // Scan restarts closer together than this are coalesced into one
+    public static final long SCAN_RESTART_DELAY_NANOS = 1000000000L;
+    // How long to wait before starting a scan again after it failed
+    public static final long SCAN_RETRY_NANOS = 5000000000L;
+
+    /**
+     * The monotonic clock the manager's times are on.
+     */
+    public interface Clock {
+        long nanos();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanos() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Receives per-device events.
+     */
+    public interface Listener {
+        void onConnected(String address);
+
+        void onDisconnected(String address);
+
+        /**
+         * @param timestampNanos when the sample was taken, on the manager's clock
+         */
+        void onRssi(String address, int rssi, long timestampNanos);
+
+        /**
+         * The device's pipeline produced new output. getSnapshot() has it. Updates come
+         * with every sample, so fetch the snapshot only when it is needed, e.g. once per
+         * frame.
+         */
+        void onLapUpdate(String address);
+    }
+
+    /**
+     * Creates the pipeline for a newly seen device.
+     */
+    public interface PipelineFactory {
+        LapPipeline newPipeline(String address);
+    }
+
+    public static final PipelineFactory DEFAULT_PIPELINES = new PipelineFactory() {
+        @Override
+        public LapPipeline newPipeline(String address) {
+            return new LapPipeline();
+        }
+    };
+
+    /**
+     * Does pipeline work on the thread that queued it, once it has released the lock.
+     */
+    public static final Executor CALLING_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // States of connection
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_CONNECTED = 2;
+
+    // Kinds of pipeline work
+    private static final int WORK_CONNECTED = 0;
+    private static final int WORK_DISCONNECTED = 1;
+    // We stopped sampling the device, so its pipeline starts over when it is back
+    private static final int WORK_STOPPED = 2;
+    private static final int WORK_RSSI = 3;
+    private static final int WORK_STALE = 4;
+    // Publish the pipeline's output
+    private static final int WORK_UPDATE = 5;
+    private static final int WORK_LAP_COUNTER = 6;
+    private static final int WORK_THRESHOLD = 7;
+    private static final int WORK_LATENCY_STATS = 8;
+
+    /**
+     * One piece of pipeline work. The queue reuses them, so queueing a sample doesn't
+     * allocate.
+     */
+    private static class Work {
+        DeviceSession session;
+        int type;
+        int rssi;
+        long timestampNanos;
+        long receivedNanos;
+        double threshold;
+        Object object;
+
+        void copyTo(Work other) {
+            other.session = session;
+            other.type = type;
+            other.rssi = rssi;
+            other.timestampNanos = timestampNanos;
+            other.receivedNanos = receivedNanos;
+            other.threshold = threshold;
+            other.object = object;
+        }
+    }
+
+    private static class DeviceSession {
+        final String address;
+        // Only touched by pipeline work
+        final LapPipeline pipeline;
+        // The pipeline's latest output
+        final LapSnapshot.Buffer output = new LapSnapshot.Buffer();
+
+        GattLayer.Connection connection;
+        int state = STATE_DISCONNECTED;
+
+        boolean readInFlight = false;
+        long readStartNanos = 0;
+        // When the read started, in System.nanoTime(), to time its round trip
+        long readSentNanos = 0;
+        final StaleSampleDetector staleness = new StaleSampleDetector();
+
+        // Whether to reconnect if the connection is lost: set by connect(), cleared by
+        // disconnect() and listen()
+        boolean reconnect = false;
+        // Whether the device was connected, was lost, and hasn't been reconnected yet.
+        // Retries of a first connection that failed don't count.
+        boolean lost = false;
+        long lostNanos = 0;
+        // When the pending attempt started, and whether it reused the lost connection
+        long attemptStartNanos = 0;
+        boolean attemptReused = false;
+        // When the next attempt is due
+        boolean attemptDue = false;
+        long attemptDueNanos = 0;
+        // Failed attempts since the device was lost
+        int failedAttempts = 0;
+
+        // Whether samples come from advertisements instead of a connection
+        boolean listening = false;
+        long lastHeardNanos = 0;
+        boolean updatePending = false;
+
+        // When the last sample arrived, for PollTelemetry. 0 after a disconnect, and
+        // after switching between listening and connecting, so the gap isn't counted
+        // as a sample interval.
+        long lastSampleNanos = 0;
+
+        DeviceSession(String address, LapPipeline pipeline) {
+            this.address = address;
+            this.pipeline = pipeline;
+        }
+    }
+
+    private final GattLayer mGatt;
+    private final ScanLayer mScanner;
+    private final PipelineFactory mPipelines;
+    private final Listener mListener;
+    private final int mMaxConnections;
+    private final int mMaxReadsInFlight;
+    private final long mReadTimeoutNanos;
+
+    // Sessions in the order devices were added, for round-robin polling, and by address
+    private final List<DeviceSession> mSessions = new ArrayList<>();
+    private final Map<String, DeviceSession> mSessionsByAddress = new HashMap<>();
+
+    // Index of the session to poll first next time
+    private int mPollCursor = 0;
+    private int mReadsInFlight = 0;
+
+    // RSSI samples that reached us, went through a pipeline, and were thrown away:
+    // for a device we aren't sampling, or a null or stale reading
+    private long mSamplesReceived = 0;
+    private long mSamplesProcessed = 0;
+    private long mSamplesDropped = 0;
+
+    // Where pipelines record their stage timings, or null
+    private LatencyStats mLatency;
+
+    // Where poll outcomes and sample intervals are recorded, or null
+    private PollTelemetry mTelemetry;
+
+    // The addresses the running scan is filtered to, or null if there is no scan
+    private String[] mScanAddresses;
+    // Whether the scan needs restarting, but that has been held back
+    private boolean mScanPending = false;
+    // When the last MAX_SCAN_STARTS scans were started, oldest at mScanStartIndex
+    private final long[] mScanStarts = new long[MAX_SCAN_STARTS];
+    private int mScanStartCount = 0;
+    private int mScanStartIndex = 0;
+    // Earliest time a failed scan may be started again
+    private long mScanRetryNanos = 0;
+    private long mScanFailures = 0;
+
+    // Pipeline work waiting for the executor, oldest at mWorkHead
+    private Work[] mWork = new Work[0];
+    private int mWorkHead = 0;
+    private int mWorkCount = 0;
+    // Whether mRunWork has been handed to the executor and hasn't finished
+    private boolean mWorkScheduled = false;
+    private Executor mPipelineExecutor = CALLING_THREAD;
+
+    // Read by the overloads that don't take a time, without the lock
+    private volatile Clock mClock = SYSTEM_CLOCK;
+    private ReconnectBackoff mBackoff = new ReconnectBackoff();
+    // Where reconnect times are recorded, or null
+    private ReconnectStats mReconnectStats;
+
+    public GattSessionManager(GattLayer gatt, PipelineFactory pipelines, Listener listener) {
+        this(gatt, null, pipelines, listener);
+    }
+
+    /**
+     * @param scanner used to listen to devices passively, or null if that isn't supported
+     */
+    public GattSessionManager(GattLayer gatt, ScanLayer scanner, PipelineFactory pipelines,
+                              Listener listener) {
+        this(gatt, scanner, pipelines, listener, DEFAULT_MAX_CONNECTIONS,
+             DEFAULT_MAX_READS_IN_FLIGHT, DEFAULT_READ_TIMEOUT_NANOS);
+    }
+
+    public GattSessionManager(GattLayer gatt, ScanLayer scanner, PipelineFactory pipelines,
+                              Listener listener, int maxConnections, int maxReadsInFlight,
+                              long readTimeoutNanos) {
+        mGatt = gatt;
+        mScanner = scanner;
+        mPipelines = pipelines;
+        mListener = listener;
+        mMaxConnections = maxConnections;
+        mMaxReadsInFlight = maxReadsInFlight;
+        mReadTimeoutNanos = readTimeoutNanos;
+    }
+
+    /**
+     * Connect to a device, replacing any previous connection to it.
+     * @return true if the connection is initiated successfully. The result is reported
+     *         through Listener.onConnected().
+     */
+    public synchronized boolean connect(String address) {
+        return connect(address, mClock.nanos());
+    }
+
+    /**
+     * Connect to a device, replacing any previous connection to it. Once connected, it is
+     * reconnected to whenever it is lost, until disconnect() is called.
+     * @param nowNanos the current monotonic time, on the manager's clock
+     * @return true if the connection is initiated successfully. The result is reported
+     *         through Listener.onConnected().
+     */
+    public synchronized boolean connect(String address, long nowNanos) {
+        if (address == null)
+            return false;
+
+        DeviceSession session = mSessionsByAddress.get(address);
+
+        if (session != null && session.state == STATE_CONNECTING) {
+            // We've already made a connect request.
+            LapLog.d(TAG, "connect() - already connecting to " + address);
+            session.reconnect = true;
+            return true;
+        }
+
+        if (session == null && openConnectionCount() >= mMaxConnections) {
+            LapLog.w(TAG, "connect() - already at the limit of " + mMaxConnections +
+                          " connections, not connecting to " + address);
+            return false;
+        }
+
+        if (session == null)
+            session = addSession(address);
+
+        if (session.listening) {
+            session.listening = false;
+            session.lastSampleNanos = 0;
+            updateScan(nowNanos);
+        }
+
+        // Release resources for a previous connection.
+        closeConnection(session);
+
+        stopReconnecting(session);
+
+        session.connection = mGatt.connect(address, this);
+        if (session.connection == null) {
+            LapLog.w(TAG, "connect() - unable to connect to " + address);
+            return false;
+        }
+
+        session.state = STATE_CONNECTING;
+        session.reconnect = true;
+        session.attemptStartNanos = nowNanos;
+        session.attemptReused = false;
+        return true;
+    }
+
+    /**
+     * Listen to a device's advertisements instead of connecting to it. Any connection to
+     * it is closed; if it was connected, it stays connected as long as it is heard.
+     * @param nowNanos the current monotonic time, on the manager's clock
+     * @return true if the scan is running, or will be once runScan() is allowed to
+     *         restart it. The device is reported through Listener.onConnected() once it
+     *         is heard.
+     */
+    public synchronized boolean listen(String address, long nowNanos) {
+        if (address == null || mScanner == null)
+            return false;
+
+        DeviceSession session = mSessionsByAddress.get(address);
+        if (session == null)
+            session = addSession(address);
+
+        if (session.listening)
+            return true;
+
+        boolean connected = session.state == STATE_CONNECTED;
+        closeConnection(session);
+        stopReconnecting(session);
+
+        session.listening = true;
+        session.lastSampleNanos = 0;
+        if (connected) {
+            // Carry on from the connection without telling anyone
+            session.state = STATE_CONNECTED;
+            session.lastHeardNanos = nowNanos;
+        }
+
+        if (!updateScan(nowNanos)) {
+            LapLog.w(TAG, "listen() - unable to start scanning for " + address);
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized boolean isListening(String address) {
+        DeviceSession session = mSessionsByAddress.get(address);
+        return session != null && session.listening;
+    }
+
+    /**
+     * Disconnect from a device, or stop listening to it. Its pipeline and lap count are kept.
+     */
+    public void disconnect(String address) {
+        synchronized (this) {
+            DeviceSession session = mSessionsByAddress.get(address);
+            if (session == null)
+                return;
+
+            stopReconnecting(session);
+            if (session.listening) {
+                session.listening = false;
+                updateScan(mClock.nanos());
+                lostDevice(session, false);
+            } else if (session.connection != null) {
+                session.connection.disconnect();
+            }
+        }
+        runWork();
+    }
+
+    public void disconnectAll() {
+        synchronized (this) {
+            boolean wasListening = false;
+            for (DeviceSession session : mSessions) {
+                stopReconnecting(session);
+                if (session.listening) {
+                    session.listening = false;
+                    wasListening = true;
+                    lostDevice(session, false);
+                } else if (session.connection != null) {
+                    session.connection.disconnect();
+                }
+            }
+
+            if (wasListening)
+                updateScan(mClock.nanos());
+        }
+        runWork();
+    }
+
+    /**
+     * Close every connection and forget every device.
+     */
+    public synchronized void closeAll() {
+        for (DeviceSession session : mSessions)
+            closeConnection(session);
+
+        if (mScanner != null)
+            mScanner.stopScan();
+        mScanAddresses = null;
+        mScanPending = false;
+
+        mSessions.clear();
+        mSessionsByAddress.clear();
+        mPollCursor = 0;
+    }
+
+    /**
+     * Start RSSI reads on connected devices, round-robin. Also notices listened-to devices
+     * that have gone silent.
+     * @param nowNanos the current monotonic time, on the manager's clock
+     * @return how many reads were started
+     */
+    public int pollRssi(long nowNanos) {
+        int started;
+        synchronized (this) {
+            started = poll(nowNanos);
+        }
+        runWork();
+        return started;
+    }
+
+    private int poll(long nowNanos) {
+        int count = mSessions.size();
+        if (count == 0)
+            return 0;
+
+        // Give up on reads whose callback never came, and on devices we no longer hear
+        for (int i = 0; i < count; i++) {
+            DeviceSession session = mSessions.get(i);
+            if (session.listening) {
+                if (session.state == STATE_CONNECTED
+                        && nowNanos - session.lastHeardNanos > ADVERTISEMENT_TIMEOUT_NANOS) {
+                    LapLog.d(TAG, "pollRssi() - stopped hearing " + session.address);
+                    lostDevice(session, true);
+                }
+            } else if (session.readInFlight && nowNanos - session.readStartNanos > mReadTimeoutNanos) {
+                LapLog.w(TAG, "pollRssi() - RSSI read timed out for " + session.address);
+                session.staleness.onReadTimeout();
+                finishRead(session);
+                recordEvent(PollTelemetry.Event.TIMEOUT);
+            }
+        }
+
+        int started = 0;
+        int next = mPollCursor;
+        for (int i = 0; i < count && mReadsInFlight < mMaxReadsInFlight; i++) {
+            int index = (mPollCursor + i) % count;
+            DeviceSession session = mSessions.get(index);
+            next = (index + 1) % count;
+
+            if (session.state != STATE_CONNECTED || session.listening || session.readInFlight)
+                continue;
+
+            if (session.connection.readRemoteRssi()) {
+                session.readInFlight = true;
+                session.readStartNanos = nowNanos;
+                session.readSentNanos = System.nanoTime();
+                mReadsInFlight++;
+                started++;
+                recordEvent(PollTelemetry.Event.POLL);
+            } else {
+                recordEvent(PollTelemetry.Event.REJECTED);
+            }
+        }
+
+        // Next time, start with the first device we didn't get to
+        mPollCursor = next;
+        return started;
+    }
+
+    /**
+     * Start the scan restart that was held back, if it is allowed now.
+     * @param nowNanos the current monotonic time, on the manager's clock
+     * @return how long until this should be called again, or -1 if nothing is waiting.
+     *         listen(), disconnect() and scan failures can leave a restart waiting.
+     */
+    public synchronized long runScan(long nowNanos) {
+        if (!mScanPending)
+            return -1;
+
+        updateScan(nowNanos);
+        return mScanPending ? Math.max(1, scanDelay(nowNanos)) : -1;
+    }
+
+    /**
+     * Start the reconnect attempts that are due, oldest first, up to the limit on pending
+     * attempts. Also cancels attempts that have taken too long.
+     * @param nowNanos the current monotonic time, on the manager's clock
+     * @return how long until this should be called again, or -1 if nothing is waiting.
+     *         Connection events can make attempts due sooner.
+     */
+    public synchronized long runReconnects(long nowNanos) {
+        int pending = 0;
+        for (DeviceSession session : mSessions) {
+            if (session.state != STATE_CONNECTING)
+                continue;
+
+            if (nowNanos - session.attemptStartNanos > DEFAULT_CONNECT_TIMEOUT_NANOS) {
+                LapLog.w(TAG, "runReconnects() - connecting to " + session.address + " timed out");
+                // Closed rather than disconnected, so its callbacks stop here
+                closeConnection(session);
+                if (session.reconnect)
+                    attemptFailed(session, nowNanos, true);
+            } else {
+                pending++;
+            }
+        }
+
+        while (pending < DEFAULT_MAX_CONNECT_ATTEMPTS) {
+            DeviceSession oldest = null;
+            for (DeviceSession session : mSessions) {
+                if (session.attemptDue && session.attemptDueNanos <= nowNanos
+                        && (oldest == null || session.attemptDueNanos < oldest.attemptDueNanos))
+                    oldest = session;
+            }
+            if (oldest == null)
+                break;
+
+            if (startAttempt(oldest, nowNanos))
+                pending++;
+        }
+
+        // Wake up for the next attempt that falls due, or the next timeout. An attempt
+        // that is due but held back by the limit waits for a connection event.
+        long next = Long.MAX_VALUE;
+        for (DeviceSession session : mSessions) {
+            if (session.state == STATE_CONNECTING)
+                next = Math.min(next, session.attemptStartNanos + DEFAULT_CONNECT_TIMEOUT_NANOS + 1);
+            else if (session.attemptDue && session.attemptDueNanos > nowNanos)
+                next = Math.min(next, session.attemptDueNanos);
+        }
+        return next == Long.MAX_VALUE ? -1 : next - nowNanos;
+    }
+
+    /**
+     * Replace a device's lap counter, starting its count over.
+     */
+    public void setLapCounter(String address, SlidingWindowCounter lapCounter) {
+        synchronized (this) {
+            DeviceSession session = mSessionsByAddress.get(address);
+            if (session == null)
+                return;
+
+            queueWork(session, WORK_LAP_COUNTER).object = lapCounter;
+            queueWork(session, WORK_UPDATE);
+        }
+        runWork();
+    }
+
+    /**
+     * Change a device's lap counter threshold, keeping its count.
+     */
+    public void setThreshold(String address, double threshold) {
+        synchronized (this) {
+            DeviceSession session = mSessionsByAddress.get(address);
+            if (session == null)
+                return;
+
+            queueWork(session, WORK_THRESHOLD).threshold = threshold;
+            queueWork(session, WORK_UPDATE);
+        }
+        runWork();
+    }
+
+    /**
+     * @return the device's latest pipeline output, or null for an unknown device. Work
+     *         still queued for the executor isn't in it yet. The same snapshot is returned
+     *         until the output changes.
+     */
+    public synchronized LapSnapshot getSnapshot(String address) {
+        DeviceSession session = mSessionsByAddress.get(address);
+        return session == null ? null : session.output.get();
+    }
+
+    public synchronized boolean isConnected(String address) {
+        DeviceSession session = mSessionsByAddress.get(address);
+        return session != null && session.state == STATE_CONNECTED;
+    }
+
+    /**
+     * Time every pipeline's stages, now and for devices added later.
+     */
+    public void setLatencyStats(LatencyStats latency) {
+        synchronized (this) {
+            mLatency = latency;
+            for (DeviceSession session : mSessions)
+                queueWork(session, WORK_LATENCY_STATS).object = latency;
+        }
+        runWork();
+    }
+
+    /**
+     * Set where pipeline work is done. The executor is only ever given one task at a
+     * time. Defaults to CALLING_THREAD.
+     */
+    public synchronized void setPipelineExecutor(Executor executor) {
+        mPipelineExecutor = executor;
+    }
+
+    public synchronized void setPollTelemetry(PollTelemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    /**
+     * Set the clock the overloads without a time read. Defaults to SYSTEM_CLOCK.
+     */
+    public synchronized void setClock(Clock clock) {
+        mClock = clock;
+    }
+
+    public synchronized void setReconnectBackoff(ReconnectBackoff backoff) {
+        mBackoff = backoff;
+    }
+
+    public synchronized void setReconnectStats(ReconnectStats stats) {
+        mReconnectStats = stats;
+    }
+
+    public synchronized long getSamplesReceived() {
+        return mSamplesReceived;
+    }
+
+    public synchronized long getSamplesProcessed() {
+        return mSamplesProcessed;
+    }
+
+    public synchronized long getSamplesDropped() {
+        return mSamplesDropped;
+    }
+
+    /**
+     * @return how many scans failed, or could not be started
+     */
+    public synchronized long getScanFailures() {
+        return mScanFailures;
+    }
+
+    public synchronized int getConnectedCount() {
+        int connected = 0;
+        for (DeviceSession session : mSessions) {
+            if (session.state == STATE_CONNECTED)
+                connected++;
+        }
+        return connected;
+    }
+
+    @Override
+    public void onConnectionStateChange(String address, boolean connected) {
+        onConnectionStateChange(address, connected, mClock.nanos());
+    }
+
+    /**
+     * Failed connection attempts that will be retried aren't reported to the listener,
+     * which already knows the device is disconnected.
+     * @param nowNanos when the event arrived, on the manager's clock
+     */
+    public void onConnectionStateChange(String address, boolean connected, long nowNanos) {
+        synchronized (this) {
+            connectionStateChanged(address, connected, nowNanos);
+        }
+        runWork();
+    }
+
+    private void connectionStateChanged(String address, boolean connected, long nowNanos) {
+        DeviceSession session = mSessionsByAddress.get(address);
+        if (session == null || session.listening)
+            return;
+
+        if (connected) {
+            if (session.lost && mReconnectStats != null) {
+                mReconnectStats.recordReconnect(nowNanos - session.lostNanos,
+                                                nowNanos - session.attemptStartNanos,
+                                                session.attemptReused);
+            }
+            stopReconnecting(session);
+            session.reconnect = true;
+
+            session.state = STATE_CONNECTED;
+            session.staleness.reset();
+            queueWork(session, WORK_CONNECTED).timestampNanos = nowNanos;
+        } else {
+            boolean wasConnected = session.state == STATE_CONNECTED;
+            boolean attempting = session.state == STATE_CONNECTING;
+            session.state = STATE_DISCONNECTED;
+            finishRead(session);
+
+            if (session.reconnect && wasConnected) {
+                session.lost = true;
+                session.lostNanos = nowNanos;
+                session.failedAttempts = 0;
+                scheduleAttempt(session, nowNanos);
+            } else if (session.reconnect && attempting) {
+                attemptFailed(session, nowNanos, false);
+            }
+
+            // Keep quiet about attempts that will be retried
+            if (!wasConnected && session.reconnect)
+                return;
+
+            session.lastSampleNanos = 0;
+            queueWork(session, WORK_DISCONNECTED).timestampNanos = nowNanos;
+        }
+
+        queueWork(session, WORK_UPDATE);
+    }
+
+    @Override
+    public void onReadRemoteRssi(String address, int rssi, boolean success) {
+        onReadRemoteRssi(address, rssi, success, 0);
+    }
+
+    /**
+     * The reading is timestamped with the manager's clock.
+     * @param receivedNanos when the GATT callback delivered the reading, in
+     *                      System.nanoTime(), for LatencyStats. 0 if unknown.
+     */
+    public void onReadRemoteRssi(String address, int rssi, boolean success,
+                                 long receivedNanos) {
+        onReadRemoteRssi(address, rssi, success,
+                         mClock.nanos(), receivedNanos);
+    }
+
+    /**
+     * @param timestampNanos when the reading was taken, on the manager's clock
+     * @param receivedNanos when the GATT callback delivered the reading, in
+     *                      System.nanoTime(), for LatencyStats. 0 if unknown.
+     */
+    public void onReadRemoteRssi(String address, int rssi, boolean success,
+                                 long timestampNanos, long receivedNanos) {
+        synchronized (this) {
+            rssiRead(address, rssi, success, timestampNanos, receivedNanos);
+        }
+        runWork();
+    }
+
+    private void rssiRead(String address, int rssi, boolean success, long timestampNanos,
+                          long receivedNanos) {
+        if (success)
+            mSamplesReceived++;
+
+        DeviceSession session = mSessionsByAddress.get(address);
+        if (session == null || session.listening) {
+            if (success)
+                mSamplesDropped++;
+            return;
+        }
+
+        long roundTrip = session.readInFlight && receivedNanos != 0
+                ? receivedNanos - session.readSentNanos : 0;
+        finishRead(session);
+        if (!success) {
+            recordEvent(PollTelemetry.Event.GATT_ERROR);
+            return;
+        }
+
+        recordSample(session, timestampNanos);
+        if (rssi != 0 && session.staleness.isStale(rssi, timestampNanos, roundTrip)) {
+            mSamplesDropped++;
+            recordEvent(PollTelemetry.Event.STALE);
+            queueWork(session, WORK_STALE).timestampNanos = timestampNanos;
+            queueWork(session, WORK_UPDATE);
+            return;
+        }
+
+        ingest(session, rssi, timestampNanos, receivedNanos);
+        queueWork(session, WORK_UPDATE);
+    }
+
+    @Override
+    public void onScanResults(String[] addresses, int[] rssi, long[] timestampNanos,
+                              int count) {
+        synchronized (this) {
+            scanResults(addresses, rssi, timestampNanos, count);
+        }
+        runWork();
+    }
+
+    private void scanResults(String[] addresses, int[] rssi, long[] timestampNanos,
+                             int count) {
+        // Feed every sample to its pipeline, oldest first
+        mSamplesReceived += count;
+        for (int i = 0; i < count; i++) {
+            DeviceSession session = mSessionsByAddress.get(addresses[i]);
+            if (session == null || !session.listening) {
+                mSamplesDropped++;
+                continue;
+            }
+
+            if (session.state != STATE_CONNECTED) {
+                session.state = STATE_CONNECTED;
+                queueWork(session, WORK_CONNECTED).timestampNanos = timestampNanos[i];
+            }
+
+            session.lastHeardNanos = timestampNanos[i];
+            recordSample(session, timestampNanos[i]);
+            ingest(session, rssi[i], timestampNanos[i], 0);
+            session.updatePending = true;
+        }
+
+        // Then publish one update per device for the whole batch
+        for (int i = 0; i < count; i++) {
+            DeviceSession session = mSessionsByAddress.get(addresses[i]);
+            if (session != null && session.updatePending) {
+                session.updatePending = false;
+                queueWork(session, WORK_UPDATE);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onScanFailed(int errorCode) {
+        LapLog.w(TAG, "onScanFailed() - errorCode = " + errorCode);
+        scanFailed(mClock.nanos());
+    }
+
+    private void recordEvent(PollTelemetry.Event event) {
+        if (mTelemetry != null)
+            mTelemetry.record(event, System.nanoTime());
+    }
+
+    /**
+     * @param sampleNanos when the sample arrived, on the manager's clock
+     */
+    private void recordSample(DeviceSession session, long sampleNanos) {
+        if (mTelemetry == null)
+            return;
+
+        recordEvent(PollTelemetry.Event.SAMPLE);
+        if (session.lastSampleNanos != 0)
+            mTelemetry.recordSampleInterval(sampleNanos - session.lastSampleNanos);
+        session.lastSampleNanos = sampleNanos;
+    }
+
+    private void ingest(DeviceSession session, int rssi, long timestampNanos,
+                        long receivedNanos) {
+        // The pipeline only turns away null readings
+        if (rssi != 0)
+            mSamplesProcessed++;
+        else
+            mSamplesDropped++;
+
+        Work work = queueWork(session, WORK_RSSI);
+        work.rssi = rssi;
+        work.timestampNanos = timestampNanos;
+        work.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Queue pipeline work for a device, to be done once runWork() is called without the
+     * lock.
+     * @return the work, to fill in
+     */
+    private Work queueWork(DeviceSession session, int type) {
+        if (mWorkCount == mWork.length) {
+            // Grow, oldest first
+            Work[] work = new Work[Math.max(16, mWork.length * 2)];
+            for (int i = 0; i < mWorkCount; i++)
+                work[i] = mWork[(mWorkHead + i) % mWork.length];
+            for (int i = mWorkCount; i < work.length; i++)
+                work[i] = new Work();
+            mWork = work;
+            mWorkHead = 0;
+        }
+
+        Work work = mWork[(mWorkHead + mWorkCount) % mWork.length];
+        mWorkCount++;
+        work.session = session;
+        work.type = type;
+        work.object = null;
+        return work;
+    }
+
+    /**
+     * Have the executor do the queued pipeline work, unless it already is. Called
+     * without the lock.
+     */
+    private void runWork() {
+        Executor executor;
+        synchronized (this) {
+            if (mWorkCount == 0 || mWorkScheduled)
+                return;
+            mWorkScheduled = true;
+            executor = mPipelineExecutor;
+        }
+        executor.execute(mRunWork);
+    }
+
+    private final Runnable mRunWork = new Runnable() {
+        // The work being done. Only touched by the one running task.
+        private final Work mCurrent = new Work();
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (GattSessionManager.this) {
+                    if (mWorkCount == 0) {
+                        mWorkScheduled = false;
+                        return;
+                    }
+                    Work next = mWork[mWorkHead];
+                    next.copyTo(mCurrent);
+                    next.session = null;
+                    next.object = null;
+                    mWorkHead = (mWorkHead + 1) % mWork.length;
+                    mWorkCount--;
+                }
+
+                doWork(mCurrent);
+            }
+        }
+    };
+
+    private void doWork(Work work) {
+        DeviceSession session = work.session;
+        LapPipeline pipeline = session.pipeline;
+        switch (work.type) {
+            case WORK_CONNECTED:
+                pipeline.onConnected(work.timestampNanos);
+                mListener.onConnected(session.address);
+                break;
+            case WORK_DISCONNECTED:
+                pipeline.onDisconnected(work.timestampNanos);
+                mListener.onDisconnected(session.address);
+                break;
+            case WORK_STOPPED:
+                pipeline.onDisconnected();
+                mListener.onDisconnected(session.address);
+                break;
+            case WORK_RSSI:
+                mListener.onRssi(session.address, work.rssi, work.timestampNanos);
+                pipeline.onRssi(work.rssi, work.timestampNanos, work.receivedNanos);
+                break;
+            case WORK_STALE:
+                pipeline.onStale(work.timestampNanos);
+                break;
+            case WORK_UPDATE:
+                pipeline.publish(session.output);
+                mListener.onLapUpdate(session.address);
+                break;
+            case WORK_LAP_COUNTER:
+                pipeline.setLapCounter((SlidingWindowCounter) work.object);
+                break;
+            case WORK_THRESHOLD:
+                pipeline.setThreshold(work.threshold);
+                break;
+            case WORK_LATENCY_STATS:
+                pipeline.setLatencyStats((LatencyStats) work.object);
+                break;
+        }
+    }
+
+    private DeviceSession addSession(String address) {
+        DeviceSession session = new DeviceSession(address, mPipelines.newPipeline(address));
+        // No work has been queued for the pipeline yet, so it is safe to touch here
+        session.pipeline.setLatencyStats(mLatency);
+        session.pipeline.publish(session.output);
+        mSessions.add(session);
+        mSessionsByAddress.put(address, session);
+        return session;
+    }
+
+    /**
+     * Make sure the scan covers the devices we are listening to. The scan is restarted
+     * only to add devices, and only when scanDelay() allows it; otherwise the restart is
+     * left pending for runScan().
+     * @return false if a scan was needed but could not be started
+     */
+    private boolean updateScan(long nowNanos) {
+        List<String> addresses = new ArrayList<>();
+        for (DeviceSession session : mSessions) {
+            if (session.listening)
+                addresses.add(session.address);
+        }
+
+        if (addresses.isEmpty()) {
+            if (mScanAddresses != null)
+                mScanner.stopScan();
+            mScanAddresses = null;
+            mScanPending = false;
+            return true;
+        }
+
+        if (mScanAddresses != null && Arrays.asList(mScanAddresses).containsAll(addresses)) {
+            mScanPending = false;
+            return true;
+        }
+
+        mScanPending = true;
+        if (scanDelay(nowNanos) > 0)
+            return true;
+
+        mScanPending = false;
+        mScanStarts[(mScanStartIndex + mScanStartCount) % MAX_SCAN_STARTS] = nowNanos;
+        if (mScanStartCount < MAX_SCAN_STARTS)
+            mScanStartCount++;
+        else
+            mScanStartIndex = (mScanStartIndex + 1) % MAX_SCAN_STARTS;
+
+        String[] scanAddresses = addresses.toArray(new String[addresses.size()]);
+        if (!mScanner.startScan(scanAddresses, this)) {
+            scanFailed(nowNanos);
+            return false;
+        }
+        mScanAddresses = scanAddresses;
+        return true;
+    }
+
+    /**
+     * @return how long until a scan may be started, or 0 if it may be started now
+     */
+    private long scanDelay(long nowNanos) {
+        long allowed = mScanRetryNanos;
+        if (mScanStartCount > 0) {
+            int newest = (mScanStartIndex + mScanStartCount - 1) % MAX_SCAN_STARTS;
+            allowed = Math.max(allowed, mScanStarts[newest] + SCAN_RESTART_DELAY_NANOS);
+        }
+        if (mScanStartCount == MAX_SCAN_STARTS)
+            allowed = Math.max(allowed, mScanStarts[mScanStartIndex] + SCAN_START_WINDOW_NANOS);
+        return Math.max(0, allowed - nowNanos);
+    }
+
+    /**
+     * The scan stopped, or never started. Try again after SCAN_RETRY_NANOS.
+     */
+    private void scanFailed(long nowNanos) {
+        mScanFailures++;
+        mScanAddresses = null;
+        mScanPending = true;
+        mScanRetryNanos = nowNanos + SCAN_RETRY_NANOS;
+    }
+
+    /**
+     * A listened-to device went silent, or we stopped listening to it.
+     * @param silent whether it went silent, in which case its pipeline state is kept in
+     *               case it is heard again soon
+     */
+    private void lostDevice(DeviceSession session, boolean silent) {
+        if (session.state != STATE_CONNECTED) {
+            session.state = STATE_DISCONNECTED;
+            return;
+        }
+
+        session.state = STATE_DISCONNECTED;
+        session.lastSampleNanos = 0;
+        if (silent)
+            queueWork(session, WORK_DISCONNECTED).timestampNanos = session.lastHeardNanos;
+        else
+            queueWork(session, WORK_STOPPED);
+        queueWork(session, WORK_UPDATE);
+    }
+
+    private void finishRead(DeviceSession session) {
+        if (session.readInFlight) {
+            session.readInFlight = false;
+            mReadsInFlight--;
+        }
+    }
+
+    /**
+     * Start an attempt to reconnect, on the lost connection if it may still be reused.
+     * @return true if the attempt started
+     */
+    private boolean startAttempt(DeviceSession session, long nowNanos) {
+        session.attemptDue = false;
+
+        boolean reused = session.connection != null
+                && session.lost && nowNanos - session.lostNanos < DEFAULT_REUSE_NANOS
+                && session.connection.reconnect();
+        if (!reused) {
+            closeConnection(session);
+            session.connection = mGatt.connect(session.address, this);
+        }
+
+        if (mReconnectStats != null)
+            mReconnectStats.recordAttempt(reused);
+
+        if (session.connection == null) {
+            LapLog.w(TAG, "startAttempt() - unable to connect to " + session.address);
+            attemptFailed(session, nowNanos, false);
+            return false;
+        }
+
+        session.state = STATE_CONNECTING;
+        session.attemptStartNanos = nowNanos;
+        session.attemptReused = reused;
+        return true;
+    }
+
+    private void attemptFailed(DeviceSession session, long nowNanos, boolean timedOut) {
+        if (mReconnectStats != null)
+            mReconnectStats.recordFailure(timedOut);
+
+        session.failedAttempts++;
+        scheduleAttempt(session, nowNanos);
+    }
+
+    private void scheduleAttempt(DeviceSession session, long nowNanos) {
+        long delay = mBackoff.delayNanos(session.failedAttempts);
+        // A retry is always due after now, so runReconnects() tries each device at most
+        // once per pass even when connect() keeps failing straight away
+        if (session.failedAttempts > 0)
+            delay = Math.max(1, delay);
+
+        session.attemptDue = true;
+        session.attemptDueNanos = nowNanos + delay;
+    }
+
+    private void stopReconnecting(DeviceSession session) {
+        session.reconnect = false;
+        session.lost = false;
+        session.attemptDue = false;
+        session.failedAttempts = 0;
+    }
+
+    private void closeConnection(DeviceSession session) {
+        if (session.connection == null)
+            return;
+
+        session.connection.close();
+        session.connection = null;
+        session.state = STATE_DISCONNECTED;
+        finishRead(session);
+    }
+
+    private int openConnectionCount() {
+        int open = 0;
+        for (DeviceSession session : mSessions) {
+            if (session.connection != null)
+                open++;
+        }
+        return open;
+    }
+}
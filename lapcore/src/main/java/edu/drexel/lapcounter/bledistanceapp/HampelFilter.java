@@ -0,0 +1,170 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Removes single-sample RSSI spikes, e.g. from a splash or the swimmer's body blocking
+ * the signal, before they reach another LowPassFilter.
+ *
+ * Each sample is compared with the median of the last N samples. If it is more than
+ * threshold scaled deviations away, where the scale comes from the median absolute
+ * deviation (MAD) of the window, it is replaced by the median. A threshold of 0
+ * replaces every sample, which makes this a running median filter.
+ *
+ * Chain it in front of any filter:
+ *     new HampelFilter(new MovingAverage(10), 7, 3.0)
+ *
+ * Samples are rounded to whole dBm for the window statistics, which are kept in an
+ * OrderStatistics over the RSSI range R (256 values). Per sample, sliding the window
+ * and finding the median take O(log R) steps. The MAD is a binary search over the
+ * deviation, with two O(log R) counts per step, so it takes O(log^2 R): at most 8
+ * steps of 16 tree reads. decay() rebuilds the statistics in O(R + N log R) for a
+ * window of N. Nothing is allocated after construction.
+ */
+public class HampelFilter implements LowPassFilter {
+    // RSSI range tracked by the window statistics. Values outside are clamped.
+    private static final int MIN_RSSI = -128;
+    private static final int MAX_RSSI = 127;
+
+    // Converts a MAD to a standard deviation for normally distributed noise
+    private static final double MAD_SCALE = 1.4826;
+
+    // Deviations smaller than this are never outliers, so a window of identical
+    // readings (MAD of 0) doesn't reject every change
+    private static final double MIN_DEVIATION = 1.0;
+
+    private final LowPassFilter mNext;
+    private final double mThreshold;
+
+    // The window, as rounded values in a ring, plus their order statistics
+    private final int[] mWindow;
+    private int mHead = 0;
+    private int mCount = 0;
+    private final OrderStatistics mStats = new OrderStatistics(MIN_RSSI, MAX_RSSI);
+    // Scratch space for decay(), so it doesn't allocate
+    private final int[] mKept;
+
+    private long mRejected = 0;
+
+    /**
+     * @param next the filter that receives the cleaned samples
+     * @param windowSize how many recent samples the median is taken over
+     * @param threshold how many scaled MADs away from the median a sample may be before
+     *                  it is replaced. 3 is the usual choice; 0 gives a median filter.
+     */
+    public HampelFilter(LowPassFilter next, int windowSize, double threshold) {
+        mNext = next;
+        mThreshold = threshold;
+        mWindow = new int[Math.max(windowSize, 1)];
+        mKept = new int[mWindow.length];
+    }
+
+    @Override
+    public double filter(double value) {
+        return mNext.filter(slide(value));
+    }
+
+    @Override
+    public double filter(double value, long timestampNanos) {
+        return mNext.filter(slide(value), timestampNanos);
+    }
+
+    /**
+     * Add a value to the window.
+     * @return the value, or the median if it is an outlier
+     */
+    private double slide(double value) {
+        int rounded = mStats.clamp((int) Math.round(value));
+
+        // Slide the window
+        if (mCount == mWindow.length)
+            mStats.remove(mWindow[mHead]);
+        else
+            mCount++;
+
+        mWindow[mHead] = rounded;
+        mStats.add(rounded);
+        mHead = (mHead + 1) % mWindow.length;
+
+        return clean(value);
+    }
+
+    private double clean(double value) {
+        int median = mStats.select((mCount - 1) / 2);
+        double deviation = Math.abs(value - median);
+        if (deviation == 0.0)
+            return value;
+
+        double limit = Math.max(mThreshold * MAD_SCALE * mad(median),
+                                mThreshold * MIN_DEVIATION);
+        if (deviation <= limit)
+            return value;
+
+        mRejected++;
+        return median;
+    }
+
+    /**
+     * @return the (lower) median absolute deviation of the window from its median
+     */
+    private int mad(int median) {
+        // Smallest d such that at least half of the window lies within median +/- d
+        int wanted = (mCount - 1) / 2 + 1;
+        int low = 0;
+        int high = MAX_RSSI - MIN_RSSI;
+        while (low < high) {
+            int d = (low + high) >>> 1;
+            int within = mStats.countAtMost(median + d) - mStats.countAtMost(median - d - 1);
+            if (within >= wanted)
+                high = d;
+            else
+                low = d + 1;
+        }
+        return low;
+    }
+
+    @Override
+    public boolean windowIsFull() {
+        return mCount == mWindow.length && mNext.windowIsFull();
+    }
+
+    @Override
+    public void clear() {
+        mStats.clear();
+        mHead = 0;
+        mCount = 0;
+        mNext.clear();
+    }
+
+    /**
+     * Keep only the newest retained fraction of the window, and decay the next filter.
+     */
+    @Override
+    public void decay(double retained) {
+        int keep = (int) Math.round(Math.max(0.0, Math.min(1.0, retained)) * mCount);
+        if (keep != mCount) {
+            // Re-add the newest values, oldest first, at the start of the ring
+            for (int i = 0; i < keep; i++) {
+                int index = mHead - keep + i;
+                if (index < 0)
+                    index += mWindow.length;
+                mKept[i] = mWindow[index];
+            }
+
+            mStats.clear();
+            for (int i = 0; i < keep; i++) {
+                mWindow[i] = mKept[i];
+                mStats.add(mKept[i]);
+            }
+            mCount = keep;
+            mHead = keep;
+        }
+
+        mNext.decay(retained);
+    }
+
+    /**
+     * @return how many samples have been replaced by the median
+     */
+    public long getRejectedCount() {
+        return mRejected;
+    }
+}
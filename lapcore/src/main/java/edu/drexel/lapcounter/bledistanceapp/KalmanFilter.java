@@ -0,0 +1,165 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * A scalar Kalman filter with a constant velocity model: the RSSI is assumed to
+ * change at a steady rate, disturbed by random accelerations, and each reading is
+ * the true value plus noise.
+ *
+ * Since it tracks the rate of change, it follows a swimmer's steady approach or
+ * retreat without the lag of a moving average, and a turn shows up within a few
+ * samples instead of half a window later. The price is some overshoot after a turn,
+ * and more noise than a long average lets through.
+ *
+ * Time is measured in LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS periods. Each step
+ * predicts across the time since the previous reading, so a late reading moves the
+ * estimate further along and is trusted less. Readings filtered without a timestamp
+ * are taken to be one nominal period after the one before.
+ *
+ * One filter step is a handful of multiplies on primitive fields, so filtering
+ * never allocates.
+ */
+public class KalmanFilter implements LowPassFilter {
+    // Defaults, picked with the compare tool on synthetic 4 Hz swim traces with 4 dBm
+    // of noise: they roughly halve the lag of MovingAverage(10) without extra laps.
+    // Retune on real recordings.
+    public static final double DEFAULT_PROCESS_NOISE = 0.002;
+    public static final double DEFAULT_MEASUREMENT_NOISE = 16.0;
+
+    // Samples needed before the velocity estimate means anything
+    private static final int MIN_SAMPLES = 3;
+
+    // Variance of the random acceleration, in (dBm/period^2)^2
+    private final double mProcessNoise;
+    // Variance of a reading around the true RSSI, in dBm^2
+    private final double mMeasurementNoise;
+
+    private int mCount = 0;
+
+    // When the last reading was taken, and whether the gap before the next one is to be
+    // cut out, as it is after decay()
+    private long mLastNanos = 0;
+    private boolean mGapPending = false;
+
+    // State estimate: RSSI and its rate of change per period
+    private double mValue = 0.0;
+    private double mVelocity = 0.0;
+
+    // Covariance of the estimate
+    private double mP00 = 0.0;
+    private double mP01 = 0.0;
+    private double mP11 = 0.0;
+
+    public KalmanFilter() {
+        this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+    }
+
+    /**
+     * @param processNoise how much the rate of change may wander per nominal period.
+     *                     Larger values follow turns faster but smooth less.
+     * @param measurementNoise variance of the RSSI readings
+     */
+    public KalmanFilter(double processNoise, double measurementNoise) {
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+    }
+
+    @Override
+    public double filter(double value) {
+        return filter(value, mLastNanos + LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS);
+    }
+
+    @Override
+    public double filter(double value, long timestampNanos) {
+        if (mCount == 0) {
+            // Start at the first reading, knowing nothing about the velocity
+            mValue = value;
+            mVelocity = 0.0;
+            mP00 = mMeasurementNoise;
+            mP01 = 0.0;
+            mP11 = mMeasurementNoise;
+            mCount = 1;
+            mLastNanos = timestampNanos;
+            mGapPending = false;
+            return mValue;
+        }
+
+        // Predict ahead to this reading. F = [1 dt; 0 1], and the random acceleration
+        // adds Q = q [dt^4/4 dt^3/2; dt^3/2 dt^2].
+        double dt = 1.0;
+        if (!mGapPending) {
+            dt = Math.max(0, timestampNanos - mLastNanos)
+                    / (double) LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS;
+        }
+        mLastNanos = timestampNanos;
+        mGapPending = false;
+
+        double dt2 = dt * dt;
+        double q = mProcessNoise;
+        mValue += mVelocity * dt;
+        mP00 += 2 * dt * mP01 + dt2 * mP11 + q * dt2 * dt2 / 4;
+        mP01 += dt * mP11 + q * dt2 * dt / 2;
+        mP11 += q * dt2;
+
+        // Correct with the reading
+        double s = mP00 + mMeasurementNoise;
+        double k0 = mP00 / s;
+        double k1 = mP01 / s;
+        double residual = value - mValue;
+
+        mValue += k0 * residual;
+        mVelocity += k1 * residual;
+
+        mP11 -= k1 * mP01;
+        mP01 -= k0 * mP01;
+        mP00 -= k0 * mP00;
+
+        if (mCount < MIN_SAMPLES)
+            mCount++;
+        return mValue;
+    }
+
+    @Override
+    public boolean windowIsFull() {
+        return mCount >= MIN_SAMPLES;
+    }
+
+    @Override
+    public void clear() {
+        mCount = 0;
+        mValue = 0.0;
+        mVelocity = 0.0;
+        mP00 = 0.0;
+        mP01 = 0.0;
+        mP11 = 0.0;
+        mGapPending = false;
+    }
+
+    /**
+     * Keep the estimate, but with less confidence: its covariance grows and its
+     * velocity shrinks as less is retained, since the swimmer may have turned. The next
+     * reading is taken to be one nominal period on, so the velocity isn't carried across
+     * the gap.
+     */
+    @Override
+    public void decay(double retained) {
+        if (retained <= 0.0 || mCount == 0) {
+            clear();
+            return;
+        }
+
+        retained = Math.min(1.0, retained);
+        mVelocity *= retained;
+        mP00 /= retained;
+        mP01 /= retained;
+        mP11 /= retained;
+        mCount = Math.max(1, Math.min(mCount, (int) Math.round(retained * MIN_SAMPLES)));
+        mGapPending = true;
+    }
+
+    /**
+     * @return the estimated rate of change of the RSSI, in dBm per nominal period
+     */
+    public double getVelocity() {
+        return mVelocity;
+    }
+}
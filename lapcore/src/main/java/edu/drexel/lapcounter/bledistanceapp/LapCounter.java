@@ -0,0 +1,36 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Turns filtered distances into a lap count. LapPipeline needs more than this (zones,
+ * state, holding over stale samples), so it takes a SlidingWindowCounter.
+ */
+public interface LapCounter {
+    /**
+     * Given the current distance value in meters,
+     * update the state of the lap counter.
+     * @param dist the most recent filtered distance in meters.
+     * @return the updated lap count.
+     */
+    int updateCount(double dist);
+
+    /**
+     * Update the lap counter with a distance and when it was sampled. Counters that
+     * window by time need this; the others ignore the timestamp.
+     * @param dist the most recent filtered distance in meters.
+     * @param timestampNanos when it was sampled, on a monotonic clock
+     * @return the updated lap count.
+     */
+    int updateCount(double dist, long timestampNanos);
+
+    /**
+     * Reset state, but not the lap count.
+     */
+    void onDisconnect();
+
+    /**
+     * Carry on after a short disconnect, keeping the state and the lap count, but only
+     * some of the recent movement.
+     * @param retained how much of the movement to keep, from 0 to 1
+     */
+    void resume(double retained);
+}
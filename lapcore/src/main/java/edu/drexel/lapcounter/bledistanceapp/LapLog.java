@@ -0,0 +1,61 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Logging facade for the lap counting core.
+ *
+ * The core does not depend on Android, so log messages go to a pluggable Sink.
+ * The app installs one that forwards to android.util.Log. Until a sink is set,
+ * messages are dropped.
+ */
+public final class LapLog {
+
+    /**
+     * Destination for log messages.
+     */
+    public interface Sink {
+        void d(String tag, String msg);
+
+        void w(String tag, String msg);
+
+        void e(String tag, String msg);
+    }
+
+    private static final Sink NO_OP = new Sink() {
+        @Override
+        public void d(String tag, String msg) {
+        }
+
+        @Override
+        public void w(String tag, String msg) {
+        }
+
+        @Override
+        public void e(String tag, String msg) {
+        }
+    };
+
+    private static volatile Sink sSink = NO_OP;
+
+    private LapLog() {
+    }
+
+    /**
+     * Set where log messages go.
+     * @param sink the new sink, or null to drop all messages
+     */
+    public static void setSink(Sink sink) {
+        sSink = sink == null ? NO_OP : sink;
+    }
+
+    public static void d(String tag, String msg) {
+        sSink.d(tag, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        sSink.w(tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        sSink.e(tag, msg);
+    }
+}
@@ -0,0 +1,326 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * The per-sample lap counting pipeline: RSSI goes through a LowPassFilter, and its
+ * absolute value drives a SlidingWindowCounter. Once both windows are full, the
+ * counter picks its starting zone.
+ *
+ * The filter can be any LowPassFilter, but the counter has to be a SlidingWindowCounter.
+ * Picking a zone, holding over stale samples and reporting the counter's state all go
+ * beyond the LapCounter interface.
+ *
+ * LapCountActivity and the offline tools share this class, so recorded sessions
+ * are replayed exactly the way the app counts them live.
+ *
+ * Given timestamps, a disconnect doesn't clear anything at first. If the device is
+ * back within the warm restart limit, the filter and counter carry on from where they
+ * were, keeping exp(-gap / WARM_RESTART_DECAY_NANOS) of their history, so counting
+ * resumes after a few samples instead of two full windows. After a longer gap they
+ * start over, as they always do without timestamps.
+ *
+ * Each sample carries the time it was taken, and the app's filter and counter window
+ * by time, so late or missing samples don't change how much of the swim they cover.
+ * The window sizes are still given in samples at NOMINAL_SAMPLE_PERIOD_NANOS, the rate
+ * they were tuned at. Samples given without a timestamp are taken to be one nominal
+ * period apart.
+ */
+public class LapPipeline {
+    // Tag for logging
+    private static final String TAG = LapPipeline.class.getSimpleName();
+
+    // Defaults used by the app
+    public static final double DEFAULT_THRESHOLD = 60.0;
+    public static final int DEFAULT_COUNTER_WINDOW = 3;
+    public static final int DEFAULT_FILTER_WINDOW = 10;
+    // The polling period the window sizes were tuned at
+    public static final long NOMINAL_SAMPLE_PERIOD_NANOS = 250000000L;
+    // Longest disconnect the filter and counter state survive
+    public static final long DEFAULT_WARM_RESTART_LIMIT_NANOS = 10000000000L;
+    // How quickly state kept across a disconnect loses its weight
+    public static final long WARM_RESTART_DECAY_NANOS = 4000000000L;
+
+    // Filter for RSSI values since they are noisy
+    private final LowPassFilter mRssiFilter;
+    private SlidingWindowCounter mLapCounter;
+
+    // How many times we have connected. Any connection after the first is a reconnect.
+    private int mConnectionCount = 0;
+
+    // Whether we are disconnected with the filter and counter state kept, and since when
+    private boolean mSuspended = false;
+    private long mDisconnectedNanos = 0;
+    private long mWarmRestartLimitNanos = DEFAULT_WARM_RESTART_LIMIT_NANOS;
+
+    // Output of the most recent sample
+    private boolean mHasSample = false;
+    private int mRssi = 0;
+    private double mFilteredRssi = 0.0;
+    private int mLapCount = 0;
+    private long mTimestampNanos = 0;
+    // The last non-null RSSI, which stale samples hold, or 0 if there is none
+    private int mLiveRssi = 0;
+
+    // Where to record how long each stage takes, or null to not time them
+    private LatencyStats mLatency;
+    private long mReceivedNanos = 0;
+    private long mCountedNanos = 0;
+
+    /**
+     * Create a pipeline with the app's default settings.
+     */
+    public LapPipeline() {
+        this(new TimeWindowAverage(windowNanos(DEFAULT_FILTER_WINDOW)),
+             SlidingWindowCounter.timed(DEFAULT_THRESHOLD, windowNanos(DEFAULT_COUNTER_WINDOW)));
+    }
+
+    public LapPipeline(LowPassFilter rssiFilter, SlidingWindowCounter lapCounter) {
+        mRssiFilter = rssiFilter;
+        mLapCounter = lapCounter;
+    }
+
+    /**
+     * Create a pipeline whose filter and counter window by time.
+     * @param counterWindow the counter window, in samples at the nominal period
+     * @param filterWindow the moving average window, in samples at the nominal period
+     */
+    public static LapPipeline timed(double threshold, int counterWindow, int filterWindow) {
+        return new LapPipeline(new TimeWindowAverage(windowNanos(filterWindow)),
+                               SlidingWindowCounter.timed(threshold, windowNanos(counterWindow)));
+    }
+
+    /**
+     * @return how long a window of this many samples lasts at the nominal period
+     */
+    public static long windowNanos(int samples) {
+        return samples * NOMINAL_SAMPLE_PERIOD_NANOS;
+    }
+
+    public void onConnected() {
+        mConnectionCount++;
+        if (mSuspended) {
+            mSuspended = false;
+            restartCold();
+        }
+    }
+
+    /**
+     * @param nowNanos the current monotonic time, on the same clock as the disconnect
+     */
+    public void onConnected(long nowNanos) {
+        if (!mSuspended) {
+            onConnected();
+            return;
+        }
+
+        mConnectionCount++;
+        mSuspended = false;
+
+        long gap = nowNanos - mDisconnectedNanos;
+        if (gap < 0 || gap > mWarmRestartLimitNanos) {
+            restartCold();
+            return;
+        }
+
+        double retained = Math.exp(-(double) gap / WARM_RESTART_DECAY_NANOS);
+        LapLog.d(TAG, String.format("onConnected() - Back after %.1f s, keeping %.0f%% of " +
+                                    "the state.", gap / 1e9, 100 * retained));
+        mRssiFilter.decay(retained);
+        mLapCounter.resume(retained);
+    }
+
+    public void onDisconnected() {
+        mHasSample = false;
+        mSuspended = false;
+        restartCold();
+    }
+
+    /**
+     * Keep the filter and counter state, in case the device is back soon.
+     * @param nowNanos the current monotonic time
+     */
+    public void onDisconnected(long nowNanos) {
+        if (mWarmRestartLimitNanos <= 0) {
+            onDisconnected();
+            return;
+        }
+
+        mHasSample = false;
+        if (!mSuspended) {
+            mSuspended = true;
+            mDisconnectedNanos = nowNanos;
+        }
+    }
+
+    /**
+     * @param limitNanos the longest disconnect to carry on from, or 0 to always start
+     *                   over
+     */
+    public void setWarmRestartLimit(long limitNanos) {
+        mWarmRestartLimitNanos = limitNanos;
+    }
+
+    private void restartCold() {
+        mRssiFilter.clear();
+        mLapCounter.onDisconnect();
+    }
+
+    /**
+     * Start from the filtered RSSI a device had at the end of an earlier session. It is
+     * reported until the first sample, and the counter measures its first delta from
+     * it. The filter itself starts empty, so its window only ever holds live readings.
+     * @param filteredRssi the remembered filtered RSSI, or NaN if there is none
+     */
+    public void seed(double filteredRssi) {
+        if (Double.isNaN(filteredRssi))
+            return;
+
+        mFilteredRssi = filteredRssi;
+        mLapCounter.seed(Math.abs(filteredRssi));
+    }
+
+    /**
+     * Time the filter and the lap counter from now on.
+     */
+    public void setLatencyStats(LatencyStats latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * Run one RSSI sample through the pipeline.
+     * @param rssi the raw RSSI in dBm
+     * @return false if the sample was ignored because it was a null (0) reading
+     */
+    public boolean onRssi(int rssi) {
+        return onRssi(rssi, 0);
+    }
+
+    /**
+     * @param receivedNanos when the sample was received, in System.nanoTime(), for
+     *                      LatencyStats. 0 if unknown.
+     */
+    public boolean onRssi(int rssi, long receivedNanos) {
+        return onRssi(rssi, mTimestampNanos + NOMINAL_SAMPLE_PERIOD_NANOS, receivedNanos);
+    }
+
+    /**
+     * @param timestampNanos when the sample was taken, on a monotonic clock. It should
+     *                       not go backwards.
+     * @param receivedNanos when the sample was received, in System.nanoTime(), for
+     *                      LatencyStats. 0 if unknown.
+     */
+    public boolean onRssi(int rssi, long timestampNanos, long receivedNanos) {
+        mHasSample = true;
+        mRssi = rssi;
+
+        // Filter out null RSSI values
+        if (rssi == 0)
+            return false;
+
+        LatencyStats latency = mLatency;
+        long ingested = latency == null ? 0 : System.nanoTime();
+
+        mLiveRssi = rssi;
+        mTimestampNanos = timestampNanos;
+        mFilteredRssi = mRssiFilter.filter(rssi, timestampNanos);
+        long filtered = latency == null ? 0 : System.nanoTime();
+
+        // Note: I am taking the absolute value of the RSSI so I do not have to change
+        // the logic of the underlying lap counter
+        mLapCount = mLapCounter.updateCount(Math.abs(mFilteredRssi), timestampNanos);
+
+        if (latency != null) {
+            mCountedNanos = System.nanoTime();
+            mReceivedNanos = receivedNanos == 0 ? ingested : receivedNanos;
+            latency.record(LatencyStats.Stage.FILTER, filtered - ingested);
+            latency.record(LatencyStats.Stage.COUNTER, mCountedNanos - filtered);
+            if (receivedNanos != 0)
+                latency.record(LatencyStats.Stage.HANDOFF, ingested - receivedNanos);
+        }
+
+        pickZoneOnceFull();
+        return true;
+    }
+
+    /**
+     * A stale sample (see StaleSampleDetector) says time has passed, but not where the
+     * swimmer is. The last live reading is held in its place: the windows move on and
+     * fill while a tag lies still, so the counter can still pick its zone, but the
+     * sample can't count a lap by itself.
+     * @param timestampNanos when the sample was taken, on the same clock as onRssi()
+     */
+    public void onStale(long timestampNanos) {
+        if (mLiveRssi == 0 || mSuspended)
+            return;
+
+        mTimestampNanos = timestampNanos;
+        mFilteredRssi = mRssiFilter.filter(mLiveRssi, timestampNanos);
+        mLapCounter.hold(Math.abs(mFilteredRssi), timestampNanos);
+        pickZoneOnceFull();
+    }
+
+    private void pickZoneOnceFull() {
+        boolean windowsFull = mLapCounter.windowIsFull() && mRssiFilter.windowIsFull();
+        if (mLapCounter.getState() == SlidingWindowCounter.State.UNKNOWN && windowsFull) {
+            LapLog.d(TAG, "onRssi() - Windows are full. SlidingWindowCounter should now " +
+                          "pick a state.");
+            boolean isReconnect = mConnectionCount > 1;
+            mLapCounter.pickZone(isReconnect);
+
+            // Picking a zone after a reconnect can complete a lap
+            mLapCount = mLapCounter.getLapCount();
+        }
+    }
+
+    /**
+     * Replace the lap counter, starting the count over.
+     */
+    public void setLapCounter(SlidingWindowCounter lapCounter) {
+        mLapCounter = lapCounter;
+    }
+
+    /**
+     * Change the lap counter's threshold, keeping the count.
+     */
+    public void setThreshold(double threshold) {
+        mLapCounter.setThreshold(threshold);
+    }
+
+    /**
+     * Copy the pipeline's current output.
+     */
+    public LapSnapshot snapshot() {
+        return new LapSnapshot(mHasSample, mRssi, mFilteredRssi, mLapCount, getState(),
+                               mConnectionCount, mLapCounter.getDistance(),
+                               mLapCounter.getThreshold(), mLapCounter.getWindowDelta(),
+                               mReceivedNanos, mCountedNanos);
+    }
+
+    /**
+     * Copy the pipeline's current output into a buffer, for other threads to read.
+     * Unlike snapshot(), this doesn't allocate.
+     */
+    public void publish(LapSnapshot.Buffer buffer) {
+        buffer.set(mHasSample, mRssi, mFilteredRssi, mLapCount, getState(), mConnectionCount,
+                   mLapCounter.getDistance(), mLapCounter.getThreshold(),
+                   mLapCounter.getWindowDelta(), mReceivedNanos, mCountedNanos);
+    }
+
+    public double getFilteredRssi() {
+        return mFilteredRssi;
+    }
+
+    public int getLapCount() {
+        return mLapCount;
+    }
+
+    /**
+     * @return the lap counter's state, or UNKNOWN while disconnected
+     */
+    public SlidingWindowCounter.State getState() {
+        return mSuspended ? SlidingWindowCounter.State.UNKNOWN : mLapCounter.getState();
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount;
+    }
+}
@@ -0,0 +1,99 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * An immutable copy of a LapPipeline's output, safe to hand to another thread.
+ */
+public final class LapSnapshot {
+    // Output of a pipeline that hasn't seen anything yet
+    public static final LapSnapshot EMPTY =
+            new LapSnapshot(false, 0, 0.0, 0, SlidingWindowCounter.State.UNKNOWN, 0,
+                            0.0, 0.0, 0.0, 0, 0);
+
+    // Whether there has been an RSSI sample since the last connect
+    public final boolean hasSample;
+    // The most recent raw RSSI in dBm
+    public final int rssi;
+    public final double filteredRssi;
+    public final int lapCount;
+    public final SlidingWindowCounter.State state;
+    public final int connectionCount;
+    // The lap counter's latest distance, its threshold, and how far the distance
+    // moved over the counter's window
+    public final double distance;
+    public final double threshold;
+    public final double windowDelta;
+    // When the latest sample was received and counted, in System.nanoTime(), or 0 if
+    // the pipeline isn't timed. See LatencyStats.
+    public final long receivedNanos;
+    public final long countedNanos;
+
+    public LapSnapshot(boolean hasSample, int rssi, double filteredRssi, int lapCount,
+                       SlidingWindowCounter.State state, int connectionCount,
+                       double distance, double threshold, double windowDelta,
+                       long receivedNanos, long countedNanos) {
+        this.hasSample = hasSample;
+        this.rssi = rssi;
+        this.filteredRssi = filteredRssi;
+        this.lapCount = lapCount;
+        this.state = state;
+        this.connectionCount = connectionCount;
+        this.distance = distance;
+        this.threshold = threshold;
+        this.windowDelta = windowDelta;
+        this.receivedNanos = receivedNanos;
+        this.countedNanos = countedNanos;
+    }
+
+    /**
+     * A pipeline's latest output, written by the thread that runs the pipeline and read
+     * from any other. Writing doesn't allocate: a snapshot is only built when one is
+     * asked for, and then handed out until the next write.
+     */
+    public static final class Buffer {
+        private boolean mHasSample = false;
+        private int mRssi = 0;
+        private double mFilteredRssi = 0.0;
+        private int mLapCount = 0;
+        private SlidingWindowCounter.State mState = SlidingWindowCounter.State.UNKNOWN;
+        private int mConnectionCount = 0;
+        private double mDistance = 0.0;
+        private double mThreshold = 0.0;
+        private double mWindowDelta = 0.0;
+        private long mReceivedNanos = 0;
+        private long mCountedNanos = 0;
+
+        // Built from the fields above, or null if they changed since
+        private LapSnapshot mSnapshot = EMPTY;
+
+        public synchronized void set(boolean hasSample, int rssi, double filteredRssi,
+                                     int lapCount, SlidingWindowCounter.State state,
+                                     int connectionCount, double distance, double threshold,
+                                     double windowDelta, long receivedNanos,
+                                     long countedNanos) {
+            mHasSample = hasSample;
+            mRssi = rssi;
+            mFilteredRssi = filteredRssi;
+            mLapCount = lapCount;
+            mState = state;
+            mConnectionCount = connectionCount;
+            mDistance = distance;
+            mThreshold = threshold;
+            mWindowDelta = windowDelta;
+            mReceivedNanos = receivedNanos;
+            mCountedNanos = countedNanos;
+            mSnapshot = null;
+        }
+
+        /**
+         * @return the latest output. The same object is returned until the next set().
+         */
+        public synchronized LapSnapshot get() {
+            if (mSnapshot == null) {
+                mSnapshot = new LapSnapshot(mHasSample, mRssi, mFilteredRssi, mLapCount, mState,
+                                            mConnectionCount, mDistance, mThreshold,
+                                            mWindowDelta, mReceivedNanos, mCountedNanos);
+            }
+            return mSnapshot;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * A histogram of durations in nanoseconds, with buckets on a log scale: each power of 2
+ * is split into SUB_BUCKETS linear buckets, so a value is known to within 1/SUB_BUCKETS
+ * (12.5%) of itself, from 1 ns up to about 18 minutes. Longer values land in the last
+ * bucket, but the maximum is kept exactly.
+ *
+ * The buckets are allocated once, so recording a value is a few shifts and an
+ * increment, and never allocates.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Largest power of 2 with its own buckets: 2^40 ns is about 18 minutes
+    private static final int MAX_EXPONENT = 40;
+
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount = 0;
+    private long mMax = 0;
+    private long mSum = 0;
+
+    /**
+     * @param nanos a duration. Negative durations, e.g. from mixing clocks, count as 0.
+     */
+    public synchronized void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        mCounts[bucketOf(nanos)]++;
+        mCount++;
+        mSum += nanos;
+        if (nanos > mMax)
+            mMax = nanos;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized double getMean() {
+        return mCount == 0 ? 0.0 : (double) mSum / mCount;
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return an upper bound on the value below which that fraction of the recorded
+     *         values fall, never more than the maximum. 0 if nothing was recorded.
+     */
+    public synchronized long getPercentile(double fraction) {
+        if (mCount == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank)
+                return Math.min(upperBound(i), mMax);
+        }
+        return mMax;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            mCounts[i] = 0;
+        mCount = 0;
+        mMax = 0;
+        mSum = 0;
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKET_COUNT - 1;
+
+        // The bits below the leading one pick the linear bucket within the octave
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the smallest value in the bucket
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return the largest value in the bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket == BUCKET_COUNT - 1)
+            return Long.MAX_VALUE;
+        return lowerBound(bucket + 1) - 1;
+    }
+}
@@ -0,0 +1,71 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import java.util.Locale;
+
+/**
+ * Where time goes between an RSSI reading arriving and its lap count being shown, as
+ * one LatencyHistogram per stage. Each sample is timestamped with System.nanoTime():
+ *
+ *   received   the GATT callback delivered the reading
+ *   ingested   the session manager took it (after waiting for its lock)
+ *   filtered   the LowPassFilter is done
+ *   counted    the lap counter is done
+ *   rendered   a frame showed its snapshot
+ *
+ * Recording never allocates, so the stats can stay on in production builds. Snapshots
+ * carry the received and counted times to the UI, so coalesced snapshots that never
+ * reach the screen aren't counted in the render stages.
+ */
+public class LatencyStats {
+    public enum Stage {
+        // received -> ingested
+        HANDOFF,
+        // ingested -> filtered
+        FILTER,
+        // filtered -> counted
+        COUNTER,
+        // counted -> rendered
+        RENDER,
+        // received -> rendered
+        END_TO_END,
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGES.length];
+
+    public LatencyStats() {
+        for (int i = 0; i < mHistograms.length; i++)
+            mHistograms[i] = new LatencyHistogram();
+    }
+
+    public void record(Stage stage, long nanos) {
+        mHistograms[stage.ordinal()].record(nanos);
+    }
+
+    public LatencyHistogram get(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    public void clear() {
+        for (LatencyHistogram histogram : mHistograms)
+            histogram.clear();
+    }
+
+    /**
+     * @return a table of count, p50, p99 and max per stage, in microseconds
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-11s %8s %9s %9s %9s%n",
+                                "stage", "count", "p50_us", "p99_us", "max_us"));
+        for (Stage stage : STAGES) {
+            LatencyHistogram h = get(stage);
+            sb.append(String.format(Locale.US, "%-11s %8d %9.1f %9.1f %9.1f%n",
+                                    stage.name().toLowerCase(Locale.US), h.getCount(),
+                                    h.getPercentile(0.5) / 1e3, h.getPercentile(0.99) / 1e3,
+                                    h.getMax() / 1e3));
+        }
+        return sb.toString();
+    }
+}
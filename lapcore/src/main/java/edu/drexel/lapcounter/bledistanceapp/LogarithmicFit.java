@@ -0,0 +1,131 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Fits a LogarithmicModel, rssi = offset + scale * ln(dist), to (distance, RSSI)
+ * samples as they arrive, e.g. while someone holds the tag at marked distances.
+ *
+ * This is ordinary least squares of RSSI on ln(dist), kept as running means and
+ * co-moments (Welford's method), so it takes constant memory, stays numerically
+ * stable over long runs, and the fit is current after every sample.
+ */
+public class LogarithmicFit {
+    // Two-sided 95% critical values of Student's t, for 1 to 30 degrees of freedom
+    private static final double[] T_95 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+    };
+    private static final double Z_95 = 1.959964;
+
+    private long mCount = 0;
+    private double mMeanX = 0.0;
+    private double mMeanY = 0.0;
+    // Sums of squared and cross deviations from the means
+    private double mSxx = 0.0;
+    private double mSxy = 0.0;
+    private double mSyy = 0.0;
+
+    /**
+     * Add one RSSI reading taken at a known distance.
+     * @param distance distance from the phone in meters, > 0
+     * @param rssi the RSSI in dBm
+     */
+    public void addSample(double distance, double rssi) {
+        double x = Math.log(distance);
+        mCount++;
+
+        double dx = x - mMeanX;
+        double dy = rssi - mMeanY;
+        mMeanX += dx / mCount;
+        mMeanY += dy / mCount;
+
+        // Update with one deviation from the old mean and one from the new mean
+        mSxx += dx * (x - mMeanX);
+        mSxy += dx * (rssi - mMeanY);
+        mSyy += dy * (rssi - mMeanY);
+    }
+
+    public long getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * @return true once there are samples at two or more distances and enough of them
+     *         for confidence intervals
+     */
+    public boolean hasFit() {
+        return mCount > 2 && mSxx > 0.0;
+    }
+
+    public double getScale() {
+        return mSxx > 0.0 ? mSxy / mSxx : 0.0;
+    }
+
+    public double getOffset() {
+        return mMeanY - getScale() * mMeanX;
+    }
+
+    /**
+     * @return the half width of the 95% confidence interval of the scale
+     */
+    public double getScaleInterval() {
+        if (!hasFit())
+            return Double.POSITIVE_INFINITY;
+        return tCritical(mCount - 2) * Math.sqrt(residualVariance() / mSxx);
+    }
+
+    /**
+     * @return the half width of the 95% confidence interval of the offset
+     */
+    public double getOffsetInterval() {
+        if (!hasFit())
+            return Double.POSITIVE_INFINITY;
+        double variance = residualVariance() * (1.0 / mCount + mMeanX * mMeanX / mSxx);
+        return tCritical(mCount - 2) * Math.sqrt(variance);
+    }
+
+    /**
+     * @return the standard deviation of the readings around the fitted curve, in dBm
+     */
+    public double getResidualStdDev() {
+        return hasFit() ? Math.sqrt(residualVariance()) : Double.NaN;
+    }
+
+    /**
+     * @return the current fit as a model
+     */
+    public LogarithmicModel toModel() {
+        return new LogarithmicModel(getOffset(), getScale());
+    }
+
+    public void reset() {
+        mCount = 0;
+        mMeanX = 0.0;
+        mMeanY = 0.0;
+        mSxx = 0.0;
+        mSxy = 0.0;
+        mSyy = 0.0;
+    }
+
+    private double residualVariance() {
+        double residual = mSyy - mSxy * mSxy / mSxx;
+        // Rounding can push a perfect fit slightly negative
+        return Math.max(residual, 0.0) / (mCount - 2);
+    }
+
+    /**
+     * Two-sided 95% critical value of Student's t. Past the table, uses the first terms
+     * of the Cornish-Fisher expansion around the normal value, which is good to 3
+     * decimals there.
+     */
+    private static double tCritical(long degrees) {
+        if (degrees <= T_95.length)
+            return T_95[(int) degrees - 1];
+
+        double z = Z_95;
+        double z3 = z * z * z;
+        double z5 = z3 * z * z;
+        double v = degrees;
+        return z + (z3 + z) / (4 * v) + (5 * z5 + 16 * z3 + 3 * z) / (96 * v * v);
+    }
+}
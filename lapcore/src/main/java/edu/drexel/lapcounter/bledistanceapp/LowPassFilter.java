@@ -0,0 +1,46 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+public interface LowPassFilter {
+    /**
+     * Add a data point to the filter. This should update
+     * the LPF's state and calculate the new filtered value.
+     *
+     * @param value the value to filter
+     * @return a new filtered value
+     */
+    double filter(double value);
+
+    /**
+     * Add a data point along with when it was sampled. Filters that window by time
+     * need this; the others ignore the timestamp.
+     *
+     * @param value the value to filter
+     * @param timestampNanos when the value was sampled, on a monotonic clock
+     * @return a new filtered value
+     */
+    double filter(double value, long timestampNanos);
+
+    /**
+     * Whether the filter has seen enough values since it was created or
+     * cleared for its output to be trusted. LapPipeline waits for this before
+     * letting the lap counter pick a zone.
+     *
+     * This was not part of the original interface; filters written against it need
+     * to add it.
+     */
+    boolean windowIsFull();
+
+    /**
+     * In the case of a disconnect or other case of bad data
+     * clear the underlying filter state if it exists
+     */
+    void clear();
+
+    /**
+     * Carry on after a short gap in the data, trusting what came before it less. The
+     * filter may need some new values before its window is full again.
+     *
+     * @param retained how much of the filter's state to keep, from 0 (clear it) to 1
+     */
+    void decay(double retained);
+}
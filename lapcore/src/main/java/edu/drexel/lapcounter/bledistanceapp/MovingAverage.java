@@ -0,0 +1,113 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Compute a moving average of N values
+ *
+ * The values are kept in a fixed ring buffer along with a running sum,
+ * so filtering a value is O(1) and never allocates.
+ */
+public class MovingAverage implements LowPassFilter {
+    // the last N values seen, ending just before mHead
+    private final double[] mValues;
+    // Index where the next value will be written
+    private int mHead = 0;
+    // How many values are currently stored
+    private int mCount = 0;
+    // Running sum of the stored values
+    private double mSum = 0.0;
+    // The size of the buffer
+    private int mMaxSize;
+
+    /**
+     * Create the averaging element with a given size N
+     * @param maxSize Specify how many elements to store at a time.
+     */
+    public MovingAverage(int maxSize) {
+        mMaxSize = maxSize;
+        mValues = new double[Math.max(maxSize, 0)];
+    }
+
+    private void addValue(double value) {
+        if (mValues.length == 0)
+            return;
+
+        // If the buffer has filled up,
+        // throw out the oldest value
+        if (mCount == mValues.length)
+            mSum -= mValues[mHead];
+        else
+            mCount++;
+
+        mValues[mHead] = value;
+        mSum += value;
+
+        mHead++;
+        if (mHead == mValues.length) {
+            mHead = 0;
+
+            // Adding and subtracting lets rounding error creep into the running sum.
+            // Once per trip around the buffer, recompute it from scratch.
+            resum();
+        }
+    }
+
+    private void resum() {
+        double sum = 0.0;
+        for (int i = mHead - mCount; i < mHead; i++)
+            sum += mValues[i < 0 ? i + mValues.length : i];
+        mSum = sum;
+    }
+
+    @Override
+    public boolean windowIsFull() {
+        return mCount == mMaxSize;
+    }
+
+
+    /**
+     * Average points in memory. If there are no points,
+     * return 0 instead. Note that this will not be entirely accurate
+     * until there are N points in memory.
+     * @return the current average of the most recent points.
+     */
+    private double computeAverage() {
+        // If we have no values, just return to avoid dividing by 0.
+        if (mCount == 0)
+            return 0.0;
+
+        // return the average
+        return mSum / mCount;
+    }
+
+    @Override
+    public double filter(double value) {
+        addValue(value);
+        return computeAverage();
+    }
+
+    @Override
+    public double filter(double value, long timestampNanos) {
+        return filter(value);
+    }
+
+    @Override
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+        mSum = 0.0;
+    }
+
+    /**
+     * Keep only the newest retained fraction of the values.
+     */
+    @Override
+    public void decay(double retained) {
+        int keep = (int) Math.round(Math.max(0.0, Math.min(1.0, retained)) * mCount);
+        if (keep == mCount)
+            return;
+
+        // Drop the oldest values; the rest stay where they are in the ring
+        mCount = keep;
+        resum();
+    }
+}
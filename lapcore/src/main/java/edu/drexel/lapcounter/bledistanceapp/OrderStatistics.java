@@ -0,0 +1,90 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Counts of integer values in a fixed range, kept in a Fenwick tree so that adding
+ * or removing a value, counting the values at or below a bound, and finding the
+ * k-th smallest value each take O(log range) steps. The tree is allocated once, so
+ * none of these allocate.
+ *
+ * Values outside the range are clamped to its ends.
+ */
+class OrderStatistics {
+    private final int mMin;
+    private final int mMax;
+    // Fenwick tree over bins 1..mSize, where bin i holds value mMin + i - 1
+    private final int[] mTree;
+    private final int mSize;
+    // Highest power of 2 <= mSize, where select() starts its descent
+    private final int mTopBit;
+    private int mCount = 0;
+
+    OrderStatistics(int min, int max) {
+        mMin = min;
+        mMax = max;
+        mSize = max - min + 1;
+        mTree = new int[mSize + 1];
+        mTopBit = Integer.highestOneBit(mSize);
+    }
+
+    int clamp(int value) {
+        return value < mMin ? mMin : value > mMax ? mMax : value;
+    }
+
+    void add(int value) {
+        update(clamp(value), 1);
+        mCount++;
+    }
+
+    /**
+     * Remove one occurrence of a value previously added.
+     */
+    void remove(int value) {
+        update(clamp(value), -1);
+        mCount--;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * @return how many values are <= bound
+     */
+    int countAtMost(int bound) {
+        if (bound < mMin)
+            return 0;
+
+        int count = 0;
+        for (int i = clamp(bound) - mMin + 1; i > 0; i -= i & -i)
+            count += mTree[i];
+        return count;
+    }
+
+    /**
+     * @param k rank from 0, less than size()
+     * @return the k-th smallest value
+     */
+    int select(int k) {
+        // Descend the tree, keeping the largest bin whose prefix count is <= k
+        int bin = 0;
+        for (int bit = mTopBit; bit > 0; bit >>= 1) {
+            int next = bin + bit;
+            if (next <= mSize && mTree[next] <= k) {
+                bin = next;
+                k -= mTree[next];
+            }
+        }
+        return mMin + bin;
+    }
+
+    void clear() {
+        for (int i = 0; i < mTree.length; i++)
+            mTree[i] = 0;
+        mCount = 0;
+    }
+
+    private void update(int value, int delta) {
+        for (int i = value - mMin + 1; i <= mSize; i += i & -i)
+            mTree[i] += delta;
+    }
+}
@@ -0,0 +1,47 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * A calibration curve made of logarithmic pieces. One log fit rarely matches both the
+ * near field, where the body and water dominate, and the far field, so instead the
+ * curve runs through measured (RSSI, distance) points, with
+ *
+ * rssi = offset + scale * ln(dist)
+ *
+ * fitted exactly between each pair of neighbouring points. The curve is continuous,
+ * and the first and last pieces are extended past the ends.
+ */
+public class PiecewiseLogarithmicModel implements DistanceEstimator {
+    // Calibration points, by increasing RSSI
+    private final double[] mRssi;
+    private final double[] mLogDistance;
+
+    /**
+     * @param rssi measured RSSI values in dBm, strictly increasing
+     * @param distance the distance in meters at which each RSSI was measured
+     */
+    public PiecewiseLogarithmicModel(double[] rssi, double[] distance) {
+        if (rssi.length != distance.length || rssi.length < 2)
+            throw new IllegalArgumentException("Need at least 2 calibration points");
+
+        mRssi = rssi.clone();
+        mLogDistance = new double[distance.length];
+        for (int i = 0; i < distance.length; i++) {
+            if (distance[i] <= 0)
+                throw new IllegalArgumentException("Distances must be positive");
+            if (i > 0 && rssi[i] <= rssi[i - 1])
+                throw new IllegalArgumentException("RSSI values must be increasing");
+            mLogDistance[i] = Math.log(distance[i]);
+        }
+    }
+
+    @Override
+    public double getDistance(double rssi) {
+        // Find the piece, extending the end pieces outwards
+        int i = 1;
+        while (i < mRssi.length - 1 && rssi > mRssi[i])
+            i++;
+
+        double t = (rssi - mRssi[i - 1]) / (mRssi[i] - mRssi[i - 1]);
+        return Math.exp(mLogDistance[i - 1] + t * (mLogDistance[i] - mLogDistance[i - 1]));
+    }
+}
@@ -0,0 +1,127 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import java.util.Locale;
+
+/**
+ * How well RSSI polling actually works: what happened to each poll, and how far apart
+ * samples really arrive compared to the period we asked for.
+ *
+ * Every event is counted in total and in a RollingCounter of one second slots, so recent
+ * rates are available too. Intervals go into LatencyHistograms. None of this allocates,
+ * so it stays on in production builds.
+ *
+ * Times are System.nanoTime().
+ */
+public class PollTelemetry {
+    public enum Event {
+        // An RSSI read was started
+        POLL,
+        // An RSSI sample arrived, from a read or an advertisement
+        SAMPLE,
+        // The GATT stack refused to start a read
+        REJECTED,
+        // A read's callback reported a GATT error
+        GATT_ERROR,
+        // A read's callback never came
+        TIMEOUT,
+        // A sample was the stack repeating itself after a dropout (see StaleSampleDetector)
+        STALE,
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    private static final long SLOT_NANOS = 1000000000L;
+    // Keep a minute of one second slots
+    private static final int SLOT_COUNT = 61;
+
+    // Windows reported by format(), in seconds
+    public static final int SHORT_WINDOW = 10;
+    public static final int LONG_WINDOW = 60;
+
+    private final long[] mTotals = new long[EVENTS.length];
+    private final RollingCounter[] mRecent = new RollingCounter[EVENTS.length];
+
+    // The poll period we asked for, and the time between samples from one device
+    private final LatencyHistogram mRequestedInterval = new LatencyHistogram();
+    private final LatencyHistogram mSampleInterval = new LatencyHistogram();
+
+    public PollTelemetry() {
+        for (int i = 0; i < mRecent.length; i++)
+            mRecent[i] = new RollingCounter(SLOT_NANOS, SLOT_COUNT);
+    }
+
+    public void record(Event event, long nowNanos) {
+        synchronized (mTotals) {
+            mTotals[event.ordinal()]++;
+        }
+        mRecent[event.ordinal()].add(nowNanos, 1);
+    }
+
+    public void recordRequestedInterval(long nanos) {
+        mRequestedInterval.record(nanos);
+    }
+
+    public void recordSampleInterval(long nanos) {
+        mSampleInterval.record(nanos);
+    }
+
+    public long getTotal(Event event) {
+        synchronized (mTotals) {
+            return mTotals[event.ordinal()];
+        }
+    }
+
+    /**
+     * @return events per second over the last windowSeconds whole seconds
+     */
+    public double getRate(Event event, long nowNanos, int windowSeconds) {
+        return mRecent[event.ordinal()].rate(nowNanos, windowSeconds);
+    }
+
+    public LatencyHistogram getRequestedInterval() {
+        return mRequestedInterval;
+    }
+
+    public LatencyHistogram getSampleInterval() {
+        return mSampleInterval;
+    }
+
+    public void clear() {
+        synchronized (mTotals) {
+            for (int i = 0; i < mTotals.length; i++)
+                mTotals[i] = 0;
+        }
+        for (RollingCounter counter : mRecent)
+            counter.clear();
+        mRequestedInterval.clear();
+        mSampleInterval.clear();
+    }
+
+    /**
+     * @return a table of totals and recent rates per event, then the requested and
+     *         actual intervals in ms
+     */
+    public String format(long nowNanos) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-11s %8s %8s %8s%n", "event", "total",
+                                "per_s_" + SHORT_WINDOW, "per_s_" + LONG_WINDOW));
+        for (Event event : EVENTS) {
+            sb.append(String.format(Locale.US, "%-11s %8d %8.2f %8.2f%n",
+                                    event.name().toLowerCase(Locale.US), getTotal(event),
+                                    getRate(event, nowNanos, SHORT_WINDOW),
+                                    getRate(event, nowNanos, LONG_WINDOW)));
+        }
+
+        sb.append(String.format(Locale.US, "%n%-11s %8s %9s %9s %9s%n",
+                                "interval", "count", "p50_ms", "p99_ms", "max_ms"));
+        appendInterval(sb, "requested", mRequestedInterval);
+        appendInterval(sb, "actual", mSampleInterval);
+        return sb.toString();
+    }
+
+    private static void appendInterval(StringBuilder sb, String name, LatencyHistogram h) {
+        sb.append(String.format(Locale.US, "%-11s %8d %9.1f %9.1f %9.1f%n", name,
+                                h.getCount(), h.getPercentile(0.5) / 1e6,
+                                h.getPercentile(0.99) / 1e6, h.getMax() / 1e6));
+    }
+}
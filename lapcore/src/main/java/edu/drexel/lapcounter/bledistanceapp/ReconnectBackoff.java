@@ -0,0 +1,68 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import java.util.Random;
+
+/**
+ * How long to wait between attempts to reconnect to a lost device.
+ *
+ * A swimmer's tag drops out of range near the far wall of every length and comes back
+ * a few seconds later, so the first attempt is made straight away and the delays after
+ * it start short and stay short. Each failure doubles the delay, up to a cap. Delays are
+ * jittered, so tags lost at the same moment don't keep retrying in lockstep.
+ */
+public class ReconnectBackoff {
+    public static final long DEFAULT_INITIAL_NANOS = 250000000L;
+    public static final long DEFAULT_MAX_NANOS = 2000000000L;
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+    // Delays are picked uniformly between (1 - jitter) and 1 times the backoff
+    public static final double DEFAULT_JITTER = 0.5;
+
+    private final long mInitialNanos;
+    private final long mMaxNanos;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final Random mRandom;
+
+    public ReconnectBackoff() {
+        this(DEFAULT_INITIAL_NANOS, DEFAULT_MAX_NANOS, DEFAULT_MULTIPLIER, DEFAULT_JITTER,
+             new Random());
+    }
+
+    /**
+     * @param initialNanos the delay after the first failed attempt
+     * @param maxNanos the longest delay
+     * @param multiplier how much the delay grows with each failure
+     * @param jitter the fraction of each delay that is random, at least 0 and less than 1
+     * @throws IllegalArgumentException if a delay could come out as 0 or shrink
+     */
+    public ReconnectBackoff(long initialNanos, long maxNanos, double multiplier, double jitter,
+                            Random random) {
+        if (initialNanos <= 0 || maxNanos < initialNanos)
+            throw new IllegalArgumentException("Delays must be at least 1ns, got " + initialNanos
+                                               + "ns up to " + maxNanos + "ns");
+        if (!(multiplier >= 1))
+            throw new IllegalArgumentException("The multiplier must be at least 1, got "
+                                               + multiplier);
+        if (!(jitter >= 0 && jitter < 1))
+            throw new IllegalArgumentException("The jitter must be in [0, 1), got " + jitter);
+
+        mInitialNanos = initialNanos;
+        mMaxNanos = maxNanos;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mRandom = random;
+    }
+
+    /**
+     * @param failures how many attempts have failed since the device was lost
+     * @return how long to wait before the next attempt. 0 before the first one.
+     */
+    public long delayNanos(int failures) {
+        if (failures <= 0)
+            return 0;
+
+        double backoff = mInitialNanos * Math.pow(mMultiplier, failures - 1);
+        backoff = Math.min(backoff, mMaxNanos);
+        return (long) (backoff * (1 - mJitter * mRandom.nextDouble()));
+    }
+}
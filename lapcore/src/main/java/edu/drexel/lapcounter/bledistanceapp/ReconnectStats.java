@@ -0,0 +1,126 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import java.util.Locale;
+
+/**
+ * How quickly lost devices come back: the time from losing a connection to having it
+ * again, the time each successful attempt took, and how attempts were made and ended.
+ * Attempts that reused the lost connection are timed apart from those that opened a
+ * new one, to tell whether reuse is worth it.
+ *
+ * Times are on the clock the session manager is given.
+ */
+public class ReconnectStats {
+    // Lost -> connected again
+    private final LatencyHistogram mTimeToReconnect = new LatencyHistogram();
+    // Attempt started -> connected, for the attempts that succeeded, by whether the
+    // attempt reused the lost connection
+    private final LatencyHistogram mReusedAttemptTime = new LatencyHistogram();
+    private final LatencyHistogram mFreshAttemptTime = new LatencyHistogram();
+
+    private long mReconnects = 0;
+    private long mReusedAttempts = 0;
+    private long mFreshAttempts = 0;
+    private long mFailures = 0;
+    private long mTimeouts = 0;
+
+    /**
+     * @param reused whether the attempt reused the device's old GATT handle
+     */
+    public synchronized void recordAttempt(boolean reused) {
+        if (reused)
+            mReusedAttempts++;
+        else
+            mFreshAttempts++;
+    }
+
+    public synchronized void recordFailure(boolean timedOut) {
+        mFailures++;
+        if (timedOut)
+            mTimeouts++;
+    }
+
+    /**
+     * @param reused whether the attempt that succeeded reused the lost connection
+     */
+    public void recordReconnect(long lostNanos, long attemptNanos, boolean reused) {
+        synchronized (this) {
+            mReconnects++;
+        }
+        mTimeToReconnect.record(lostNanos);
+        getAttemptTime(reused).record(attemptNanos);
+    }
+
+    public LatencyHistogram getTimeToReconnect() {
+        return mTimeToReconnect;
+    }
+
+    /**
+     * @param reused whether to get the times of the attempts that reused the lost
+     *               connection, or of those that opened a new one
+     */
+    public LatencyHistogram getAttemptTime(boolean reused) {
+        return reused ? mReusedAttemptTime : mFreshAttemptTime;
+    }
+
+    public synchronized long getReconnects() {
+        return mReconnects;
+    }
+
+    public synchronized long getReusedAttempts() {
+        return mReusedAttempts;
+    }
+
+    public synchronized long getFreshAttempts() {
+        return mFreshAttempts;
+    }
+
+    public synchronized long getFailures() {
+        return mFailures;
+    }
+
+    public synchronized long getTimeouts() {
+        return mTimeouts;
+    }
+
+    public void clear() {
+        synchronized (this) {
+            mReconnects = 0;
+            mReusedAttempts = 0;
+            mFreshAttempts = 0;
+            mFailures = 0;
+            mTimeouts = 0;
+        }
+        mTimeToReconnect.clear();
+        mReusedAttemptTime.clear();
+        mFreshAttemptTime.clear();
+    }
+
+    /**
+     * @return the counters, then the reconnect times and the reused and fresh attempt
+     *         times in ms
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            sb.append(String.format(Locale.US,
+                                    "reconnects %d, attempts %d reused + %d fresh, " +
+                                    "%d failed (%d timed out)%n",
+                                    mReconnects, mReusedAttempts, mFreshAttempts, mFailures,
+                                    mTimeouts));
+        }
+
+        sb.append(String.format(Locale.US, "%-11s %8s %9s %9s %9s%n",
+                                "reconnect", "count", "p50_ms", "p99_ms", "max_ms"));
+        appendTime(sb, "lost", mTimeToReconnect);
+        appendTime(sb, "reused", mReusedAttemptTime);
+        appendTime(sb, "fresh", mFreshAttemptTime);
+        return sb.toString();
+    }
+
+    private static void appendTime(StringBuilder sb, String name, LatencyHistogram h) {
+        sb.append(String.format(Locale.US, "%-11s %8d %9.1f %9.1f %9.1f%n", name,
+                                h.getCount(), h.getPercentile(0.5) / 1e6,
+                                h.getPercentile(0.99) / 1e6, h.getMax() / 1e6));
+    }
+}
@@ -0,0 +1,76 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Counts events over a rolling window of time, e.g. samples in the last 10 seconds.
+ *
+ * Time is split into fixed slots, kept in a ring together with the slot number each
+ * count belongs to, so stale slots are recognized and skipped without ever clearing
+ * them. Adding and summing don't allocate.
+ */
+public class RollingCounter {
+    private final long mSlotNanos;
+    private final long[] mCounts;
+    // Which slot (time / mSlotNanos) each entry of mCounts is counting
+    private final long[] mSlots;
+
+    /**
+     * @param slotNanos how much time each slot covers
+     * @param slotCount how many slots to keep. The longest window is slotCount slots.
+     */
+    public RollingCounter(long slotNanos, int slotCount) {
+        mSlotNanos = slotNanos;
+        mCounts = new long[slotCount];
+        mSlots = new long[slotCount];
+        for (int i = 0; i < slotCount; i++)
+            mSlots[i] = Long.MIN_VALUE;
+    }
+
+    public synchronized void add(long nowNanos, long count) {
+        long slot = nowNanos / mSlotNanos;
+        int index = indexOf(slot);
+        if (mSlots[index] != slot) {
+            mSlots[index] = slot;
+            mCounts[index] = 0;
+        }
+        mCounts[index] += count;
+    }
+
+    /**
+     * @param slots how many of the most recent slots to sum, including the current one
+     * @return the number of events in them
+     */
+    public synchronized long sum(long nowNanos, int slots) {
+        long current = nowNanos / mSlotNanos;
+        slots = Math.min(slots, mCounts.length);
+
+        long sum = 0;
+        for (long slot = current - slots + 1; slot <= current; slot++) {
+            int index = indexOf(slot);
+            if (mSlots[index] == slot)
+                sum += mCounts[index];
+        }
+        return sum;
+    }
+
+    /**
+     * @return events per second over the most recent slots. The current slot is only
+     *         partly over, so it is left out.
+     */
+    public double rate(long nowNanos, int slots) {
+        slots = Math.min(slots, mCounts.length - 1);
+        long events = sum(nowNanos - mSlotNanos, slots);
+        return events / (slots * mSlotNanos / 1e9);
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mSlots[i] = Long.MIN_VALUE;
+            mCounts[i] = 0;
+        }
+    }
+
+    private int indexOf(long slot) {
+        int index = (int) (slot % mCounts.length);
+        return index < 0 ? index + mCounts.length : index;
+    }
+}
@@ -0,0 +1,40 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * The parts of the Bluetooth LE scanner the lap counter uses to hear devices without
+ * connecting to them. The app implements this on top of BluetoothLeScanner; tests can
+ * substitute a fake.
+ */
+public interface ScanLayer {
+
+    /**
+     * Receives advertisements heard by the scan. Events may arrive on any thread.
+     */
+    interface Callback {
+        /**
+         * A batch of advertisements, oldest first. Entry i was heard from addresses[i]
+         * at rssi[i], at timestampNanos[i] on the monotonic clock. The arrays belong to
+         * the scanner and are reused for the next batch.
+         */
+        void onScanResults(String[] addresses, int[] rssi, long[] timestampNanos, int count);
+
+        /**
+         * The scan stopped, or never got going, e.g. because it was started too often.
+         * No more results are delivered until it is started again.
+         * @param errorCode one of the ScanCallback.SCAN_FAILED_ codes, or 0 if unknown
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    /**
+     * Start scanning for advertisements from the given devices, replacing any scan
+     * already running.
+     * @return false if the scan could not be started
+     */
+    boolean startScan(String[] addresses, Callback callback);
+
+    /**
+     * Stop scanning. No more results are delivered.
+     */
+    void stopScan();
+}
@@ -0,0 +1,61 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Layout of a recorded RSSI session file.
+ *
+ * A session file is a fixed size header followed by fixed width little endian records.
+ * Files are preallocated (zero filled), so the first record whose type is
+ * TYPE_NONE marks the end of the data. The type is always written last, which is
+ * what makes a record visible to readers.
+ *
+ * Header:
+ *   int  magic            MAGIC
+ *   int  version          VERSION
+ *   int  record size      RECORD_SIZE
+ *   int  device count     number of addresses in the table below
+ *   long start time       wall clock time the file was opened, in ms since the epoch
+ *   MAX_DEVICES address slots of ADDRESS_SLOT_SIZE bytes, ASCII, zero padded
+ *
+ * Record:
+ *   long  timestamp       monotonic time in ns
+ *   short device index    index into the header's address table
+ *   byte  type            one of the TYPE_ constants
+ *   byte  reserved
+ *   int   rssi            dBm, only meaningful for TYPE_RSSI
+ */
+public final class SessionFormat {
+    public static final int MAGIC = 0x4C415053; // "LAPS"
+    public static final int VERSION = 1;
+
+    public static final int MAX_DEVICES = 16;
+    public static final int ADDRESS_SLOT_SIZE = 24;
+
+    public static final int HEADER_MAGIC_OFFSET = 0;
+    public static final int HEADER_VERSION_OFFSET = 4;
+    public static final int HEADER_RECORD_SIZE_OFFSET = 8;
+    public static final int HEADER_DEVICE_COUNT_OFFSET = 12;
+    public static final int HEADER_START_TIME_OFFSET = 16;
+    public static final int HEADER_ADDRESSES_OFFSET = 24;
+    public static final int HEADER_SIZE = 512;
+
+    public static final int RECORD_SIZE = 16;
+    public static final int RECORD_TIMESTAMP_OFFSET = 0;
+    public static final int RECORD_DEVICE_OFFSET = 8;
+    public static final int RECORD_TYPE_OFFSET = 10;
+    public static final int RECORD_RSSI_OFFSET = 12;
+
+    // Record types
+    public static final byte TYPE_NONE = 0;
+    public static final byte TYPE_RSSI = 1;
+    public static final byte TYPE_CONNECTED = 2;
+    public static final byte TYPE_DISCONNECTED = 3;
+
+    // Device index used when the address table is full
+    public static final int UNKNOWN_DEVICE = 0xFFFF;
+
+    // File name extension for session files
+    public static final String EXTENSION = ".rssi";
+
+    private SessionFormat() {
+    }
+}
@@ -0,0 +1,181 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Streams the records of a session file written by SessionRecorder.
+ *
+ * Records are read through a small fixed buffer, so files of any length can be
+ * replayed in constant memory. Use it like a cursor:
+ *
+ *   while (reader.next()) {
+ *       switch (reader.getType()) { ... }
+ *   }
+ */
+public class SessionReader implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Records read from disk at a time
+    private static final int RECORDS_PER_READ = 4096;
+
+    private final FileInputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+
+    private final long mStartTimeMillis;
+    private final String[] mAddresses;
+
+    // Fields of the current record
+    private long mTimestamp;
+    private int mDevice;
+    private byte mType;
+    private int mRssi;
+
+    // Set once we reach the end of the recorded data
+    private boolean mDone = false;
+
+    public SessionReader(File file) throws IOException {
+        mStream = new FileInputStream(file);
+        mChannel = mStream.getChannel();
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SessionFormat.HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header);
+
+            if (header.getInt(SessionFormat.HEADER_MAGIC_OFFSET) != SessionFormat.MAGIC)
+                throw new IOException(file + " is not a session file");
+            if (header.getInt(SessionFormat.HEADER_VERSION_OFFSET) != SessionFormat.VERSION)
+                throw new IOException(file + " has an unsupported version");
+            if (header.getInt(SessionFormat.HEADER_RECORD_SIZE_OFFSET) != SessionFormat.RECORD_SIZE)
+                throw new IOException(file + " has an unexpected record size");
+
+            mStartTimeMillis = header.getLong(SessionFormat.HEADER_START_TIME_OFFSET);
+
+            int deviceCount = Math.min(header.getInt(SessionFormat.HEADER_DEVICE_COUNT_OFFSET),
+                                       SessionFormat.MAX_DEVICES);
+            mAddresses = new String[deviceCount];
+            for (int i = 0; i < deviceCount; i++)
+                mAddresses[i] = readAddress(header, i);
+        } catch (IOException e) {
+            mStream.close();
+            throw e;
+        }
+
+        mBuffer = ByteBuffer.allocateDirect(RECORDS_PER_READ * SessionFormat.RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.limit(0);
+    }
+
+    /**
+     * Advance to the next record.
+     * @return false at the end of the recorded data
+     */
+    public boolean next() throws IOException {
+        if (mDone)
+            return false;
+
+        if (mBuffer.remaining() < SessionFormat.RECORD_SIZE && !refill()) {
+            mDone = true;
+            return false;
+        }
+
+        int position = mBuffer.position();
+        mType = mBuffer.get(position + SessionFormat.RECORD_TYPE_OFFSET);
+        if (mType == SessionFormat.TYPE_NONE) {
+            // The rest of the file is preallocated space
+            mDone = true;
+            return false;
+        }
+
+        mTimestamp = mBuffer.getLong(position + SessionFormat.RECORD_TIMESTAMP_OFFSET);
+        mDevice = mBuffer.getShort(position + SessionFormat.RECORD_DEVICE_OFFSET) & 0xFFFF;
+        mRssi = mBuffer.getInt(position + SessionFormat.RECORD_RSSI_OFFSET);
+        mBuffer.position(position + SessionFormat.RECORD_SIZE);
+        return true;
+    }
+
+    /**
+     * Monotonic timestamp of the current record in ns.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Index of the current record's device in the address table.
+     */
+    public int getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * One of the SessionFormat.TYPE_ constants.
+     */
+    public byte getType() {
+        return mType;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    public int getDeviceCount() {
+        return mAddresses.length;
+    }
+
+    /**
+     * @param device a device index from a record
+     * @return the device's address, or null if it is not in the table
+     */
+    public String getAddress(int device) {
+        return device < mAddresses.length ? mAddresses[device] : null;
+    }
+
+    /**
+     * Wall clock time the file was started, in ms since the epoch.
+     */
+    public long getStartTimeMillis() {
+        return mStartTimeMillis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+
+    private boolean refill() throws IOException {
+        mBuffer.compact();
+        while (mBuffer.position() < SessionFormat.RECORD_SIZE) {
+            if (mChannel.read(mBuffer) < 0)
+                break;
+        }
+        mBuffer.flip();
+        return mBuffer.remaining() >= SessionFormat.RECORD_SIZE;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+    }
+
+    private static String readAddress(ByteBuffer header, int index) {
+        int offset = SessionFormat.HEADER_ADDRESSES_OFFSET + index * SessionFormat.ADDRESS_SLOT_SIZE;
+        byte[] bytes = new byte[SessionFormat.ADDRESS_SLOT_SIZE];
+        int length = 0;
+        while (length < bytes.length && header.get(offset + length) != 0) {
+            bytes[length] = header.get(offset + length);
+            length++;
+        }
+        return new String(bytes, 0, length, ASCII);
+    }
+}
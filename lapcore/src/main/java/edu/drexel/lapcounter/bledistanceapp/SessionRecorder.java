@@ -0,0 +1,468 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Appends RSSI samples and connection events to memory-mapped session files.
+ *
+ * Each file is preallocated and mapped once, so recording a sample is a few stores
+ * into the mapping: no system calls and no allocations. The kernel owns the dirty
+ * pages, so everything recorded so far survives the process being killed.
+ *
+ * The next file is preallocated and mapped on a background thread while the current
+ * one fills up. When the current file is full, the next one is renamed into place and
+ * recording carries on in it, and the full file is flushed and closed in the
+ * background. If the next file isn't ready in time, one is opened on the spot. Only
+ * the newest maxFiles files are kept.
+ *
+ * Files are named after the time they were started, in ms, bumped as needed so that
+ * every name is unique and later files sort after earlier ones.
+ *
+ * See SessionFormat for the file layout.
+ */
+public class SessionRecorder {
+    // Tag for logging
+    private static final String TAG = SessionRecorder.class.getSimpleName();
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Size of the zeros written at a time to preallocate a file
+    private static final int ZERO_CHUNK_SIZE = 64 * 1024;
+
+    // Where the next file is prepared. Not a session file until it is renamed.
+    private static final String SPARE_NAME = "session-next.tmp";
+
+    /**
+     * Runs background work on a single shared daemon thread, so that it never keeps a
+     * JVM alive.
+     */
+    public static final Executor BACKGROUND_THREAD = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final FileFilter SESSION_FILES = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(SessionFormat.EXTENSION);
+        }
+    };
+
+    // Where session files are written
+    private final File mDirectory;
+    // Size of each session file, including the header
+    private final int mFileSize;
+    // How many session files to keep around
+    private final int mMaxFiles;
+
+    // The current file, or null if not recording
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+
+    // The next file, or null if it isn't ready yet
+    private final File mSpareFile;
+    private RandomAccessFile mSpare;
+    private MappedByteBuffer mSpareBuffer;
+
+    // Where rollovers are finished, and how many tasks it hasn't finished yet
+    private Executor mBackground = BACKGROUND_THREAD;
+    private int mBackgroundTasks = 0;
+
+    // The time in the newest file's name
+    private long mLastNameMillis = 0;
+    // Zeros to preallocate files with, one buffer for each thread that does it
+    private ByteBuffer mZeros;
+    private ByteBuffer mSpareZeros;
+
+    // Device addresses seen so far. Indices are stable across rollovers.
+    private final String[] mAddresses = new String[SessionFormat.MAX_DEVICES];
+    private int mDeviceCount = 0;
+
+    // Cache the last address lookup, since samples almost always come from the same device
+    private String mLastAddress;
+    private int mLastIndex;
+
+    /**
+     * @param directory where to write session files
+     * @param recordsPerFile how many records each file holds before rolling over
+     * @param maxFiles how many session files to keep
+     */
+    public SessionRecorder(File directory, int recordsPerFile, int maxFiles) {
+        mDirectory = directory;
+        mFileSize = SessionFormat.HEADER_SIZE + recordsPerFile * SessionFormat.RECORD_SIZE;
+        mMaxFiles = maxFiles;
+        mSpareFile = new File(directory, SPARE_NAME);
+    }
+
+    /**
+     * Set where the next file is prepared and full files are closed. The executor must
+     * run its tasks one at a time. Defaults to BACKGROUND_THREAD.
+     */
+    public synchronized void setBackgroundExecutor(Executor executor) {
+        mBackground = executor;
+    }
+
+    /**
+     * Open a new session file.
+     * @return true if recording started
+     */
+    public synchronized boolean start() {
+        if (mBuffer != null)
+            return true;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            LapLog.w(TAG, "Unable to create " + mDirectory);
+            return false;
+        }
+
+        if (!openFile())
+            return false;
+
+        deleteOldFiles();
+        finishInBackground(null, null);
+        return true;
+    }
+
+    /**
+     * Flush and close the current session file, once any rollover still being finished
+     * in the background is done.
+     */
+    public synchronized void stop() {
+        closeFile();
+
+        boolean interrupted = false;
+        while (mBackgroundTasks > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        discardSpare();
+    }
+
+    public synchronized boolean isRecording() {
+        return mBuffer != null;
+    }
+
+    /**
+     * Record an RSSI reading.
+     * @param timestampNanos monotonic timestamp of the reading
+     * @param address address of the device the reading came from
+     * @param rssi the reading in dBm
+     */
+    public synchronized void recordRssi(long timestampNanos, String address, int rssi) {
+        append(timestampNanos, address, SessionFormat.TYPE_RSSI, rssi);
+    }
+
+    public synchronized void recordConnected(long timestampNanos, String address) {
+        append(timestampNanos, address, SessionFormat.TYPE_CONNECTED, 0);
+    }
+
+    public synchronized void recordDisconnected(long timestampNanos, String address) {
+        append(timestampNanos, address, SessionFormat.TYPE_DISCONNECTED, 0);
+    }
+
+    private void append(long timestampNanos, String address, byte type, int rssi) {
+        if (mBuffer == null)
+            return;
+
+        if (mBuffer.remaining() < SessionFormat.RECORD_SIZE) {
+            RandomAccessFile full = mFile;
+            MappedByteBuffer fullBuffer = mBuffer;
+            mFile = null;
+            mBuffer = null;
+
+            boolean opened = useSpare() || openFile();
+            finishInBackground(full, fullBuffer);
+            if (!opened)
+                return;
+        }
+
+        int position = mBuffer.position();
+        int index = deviceIndex(address);
+
+        mBuffer.putLong(position + SessionFormat.RECORD_TIMESTAMP_OFFSET, timestampNanos);
+        mBuffer.putShort(position + SessionFormat.RECORD_DEVICE_OFFSET, (short) index);
+        mBuffer.putInt(position + SessionFormat.RECORD_RSSI_OFFSET, rssi);
+
+        // The type goes last. Until it is written, readers treat this slot as the end.
+        mBuffer.put(position + SessionFormat.RECORD_TYPE_OFFSET, type);
+        mBuffer.position(position + SessionFormat.RECORD_SIZE);
+    }
+
+    /**
+     * Look up the address table index for a device, adding it to the table if needed.
+     */
+    private int deviceIndex(String address) {
+        if (address == null)
+            return SessionFormat.UNKNOWN_DEVICE;
+
+        if (address.equals(mLastAddress))
+            return mLastIndex;
+
+        int index = SessionFormat.UNKNOWN_DEVICE;
+        for (int i = 0; i < mDeviceCount; i++) {
+            if (mAddresses[i].equals(address)) {
+                index = i;
+                break;
+            }
+        }
+
+        if (index == SessionFormat.UNKNOWN_DEVICE && mDeviceCount < mAddresses.length) {
+            index = mDeviceCount++;
+            mAddresses[index] = address;
+            writeAddress(index);
+            mBuffer.putInt(SessionFormat.HEADER_DEVICE_COUNT_OFFSET, mDeviceCount);
+        }
+
+        mLastAddress = address;
+        mLastIndex = index;
+        return index;
+    }
+
+    private void writeAddress(int index) {
+        byte[] bytes = mAddresses[index].getBytes(ASCII);
+        int length = Math.min(bytes.length, SessionFormat.ADDRESS_SLOT_SIZE);
+        int offset = SessionFormat.HEADER_ADDRESSES_OFFSET + index * SessionFormat.ADDRESS_SLOT_SIZE;
+        for (int i = 0; i < length; i++)
+            mBuffer.put(offset + i, bytes[i]);
+    }
+
+    private boolean openFile() {
+        File file = null;
+        try {
+            file = createFile();
+            mFile = new RandomAccessFile(file, "rw");
+            FileChannel channel = mFile.getChannel();
+            if (mZeros == null)
+                mZeros = ByteBuffer.allocateDirect(ZERO_CHUNK_SIZE);
+            preallocate(channel, mZeros);
+            mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mFileSize);
+        } catch (IOException e) {
+            LapLog.e(TAG, "Unable to open session file " + file + ": " + e);
+            closeFile();
+            if (file != null && !file.delete())
+                LapLog.w(TAG, "Unable to delete " + file);
+            return false;
+        }
+
+        startFile(file);
+        return true;
+    }
+
+    /**
+     * Rename the next file into place and record into it.
+     * @return false if it isn't ready, or can't be renamed
+     */
+    private boolean useSpare() {
+        if (mSpareBuffer == null) {
+            LapLog.w(TAG, "The next session file isn't ready, opening one now.");
+            return false;
+        }
+
+        File file = null;
+        try {
+            file = createFile();
+        } catch (IOException e) {
+            LapLog.e(TAG, "Unable to name session file: " + e);
+            return false;
+        }
+        if (!mSpareFile.renameTo(file)) {
+            LapLog.e(TAG, "Unable to rename " + mSpareFile + " to " + file);
+            if (!file.delete())
+                LapLog.w(TAG, "Unable to delete " + file);
+            return false;
+        }
+
+        mFile = mSpare;
+        mBuffer = mSpareBuffer;
+        mSpare = null;
+        mSpareBuffer = null;
+        startFile(file);
+        return true;
+    }
+
+    /**
+     * Write the header of a freshly mapped file, and start recording after it.
+     */
+    private void startFile(File file) {
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(SessionFormat.HEADER_MAGIC_OFFSET, SessionFormat.MAGIC);
+        mBuffer.putInt(SessionFormat.HEADER_VERSION_OFFSET, SessionFormat.VERSION);
+        mBuffer.putInt(SessionFormat.HEADER_RECORD_SIZE_OFFSET, SessionFormat.RECORD_SIZE);
+        mBuffer.putLong(SessionFormat.HEADER_START_TIME_OFFSET, System.currentTimeMillis());
+
+        // Carry the address table over so device indices stay the same after a rollover
+        for (int i = 0; i < mDeviceCount; i++)
+            writeAddress(i);
+        mBuffer.putInt(SessionFormat.HEADER_DEVICE_COUNT_OFFSET, mDeviceCount);
+
+        mBuffer.position(SessionFormat.HEADER_SIZE);
+        LapLog.d(TAG, "Recording session to " + file);
+    }
+
+    /**
+     * Flush and close a full file, drop old files and prepare the next file, on the
+     * background executor.
+     * @param full the full file, or null if there is none
+     */
+    private void finishInBackground(final RandomAccessFile full,
+                                    final MappedByteBuffer fullBuffer) {
+        mBackgroundTasks++;
+        mBackground.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (full != null) {
+                        close(full, fullBuffer);
+                        deleteOldFiles();
+                    }
+                    prepareSpare();
+                } finally {
+                    synchronized (SessionRecorder.this) {
+                        mBackgroundTasks--;
+                        SessionRecorder.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Preallocate and map the next file, unless it is already there or recording has
+     * stopped.
+     */
+    private void prepareSpare() {
+        synchronized (this) {
+            if (mBuffer == null || mSpareBuffer != null)
+                return;
+        }
+
+        RandomAccessFile spare = null;
+        MappedByteBuffer buffer;
+        try {
+            if (mSpareFile.exists() && !mSpareFile.delete())
+                throw new IOException("unable to delete the old one");
+
+            spare = new RandomAccessFile(mSpareFile, "rw");
+            FileChannel channel = spare.getChannel();
+            if (mSpareZeros == null)
+                mSpareZeros = ByteBuffer.allocateDirect(ZERO_CHUNK_SIZE);
+            preallocate(channel, mSpareZeros);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mFileSize);
+        } catch (IOException e) {
+            LapLog.e(TAG, "Unable to prepare " + mSpareFile + ": " + e);
+            close(spare, null);
+            if (!mSpareFile.delete())
+                LapLog.w(TAG, "Unable to delete " + mSpareFile);
+            return;
+        }
+
+        synchronized (this) {
+            if (mBuffer != null) {
+                mSpare = spare;
+                mSpareBuffer = buffer;
+                return;
+            }
+        }
+
+        // Stopped in the meantime
+        close(spare, null);
+        if (!mSpareFile.delete())
+            LapLog.w(TAG, "Unable to delete " + mSpareFile);
+    }
+
+    private void discardSpare() {
+        if (mSpare == null)
+            return;
+
+        close(mSpare, null);
+        mSpare = null;
+        mSpareBuffer = null;
+        if (!mSpareFile.delete())
+            LapLog.w(TAG, "Unable to delete " + mSpareFile);
+    }
+
+    /**
+     * Create a new, empty session file with a name no other file has had.
+     */
+    private File createFile() throws IOException {
+        long millis = Math.max(System.currentTimeMillis(), mLastNameMillis + 1);
+        while (true) {
+            File file = new File(mDirectory, "session-" + millis + SessionFormat.EXTENSION);
+            if (file.createNewFile()) {
+                mLastNameMillis = millis;
+                return file;
+            }
+            millis++;
+        }
+    }
+
+    /**
+     * Write the whole file out as zeros. setLength() would leave a sparse file, whose
+     * blocks are only allocated as the mapping is first written to. If the disk fills
+     * up by then, the write faults and kills the process instead of failing here.
+     */
+    private void preallocate(FileChannel channel, ByteBuffer zeros) throws IOException {
+        long position = 0;
+        while (position < mFileSize) {
+            zeros.clear();
+            zeros.limit((int) Math.min(ZERO_CHUNK_SIZE, mFileSize - position));
+            while (zeros.hasRemaining())
+                position += channel.write(zeros, position);
+        }
+    }
+
+    private void closeFile() {
+        close(mFile, mBuffer);
+        mFile = null;
+        mBuffer = null;
+    }
+
+    private static void close(RandomAccessFile file, MappedByteBuffer buffer) {
+        if (buffer != null)
+            buffer.force();
+
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                LapLog.w(TAG, "Unable to close session file: " + e);
+            }
+        }
+    }
+
+    private void deleteOldFiles() {
+        File[] files = mDirectory.listFiles(SESSION_FILES);
+        if (files == null || files.length <= mMaxFiles)
+            return;
+
+        // Names are creation times of the same length, so sorting by name sorts oldest first.
+        Arrays.sort(files);
+        for (int i = 0; i < files.length - mMaxFiles; i++) {
+            if (!files[i].delete())
+                LapLog.w(TAG, "Unable to delete old session file " + files[i]);
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Lap counter that uses a sliding window of
+ * distance deltas along with a distance threshold to
+ * determine when the swimmer returns into range.
+ *
+ * The window holds either the last N deltas, or, for a counter made with timed(), the
+ * deltas from the last windowNanos. A time window covers the same stretch of the swim
+ * however irregularly the samples arrive; it grows its buffer when more samples than
+ * ever before fit in it, and is O(1) per sample otherwise.
+ */
+public class SlidingWindowCounter implements LapCounter {
+
+    // Tag for debugging
+    public static final String TAG = SlidingWindowCounter.class.getSimpleName();
+
+    public static final int LAP_COUNT_INCREMENT = 2;
+
+    private static final int INITIAL_TIMED_CAPACITY = 16;
+
+    /**
+     * The running sum of deltas picks up rounding error as values enter and leave
+     * the window. When its magnitude is this small relative to the sum of the
+     * absolute deltas, its sign can't be trusted and the window is summed exactly.
+     */
+    private static final double DIRECTION_TOLERANCE = 1e-9;
+
+    /**
+     * Whether to log every sample. Formatting the per-sample message is the most
+     * expensive part of updateCount(), so this is off unless explicitly enabled.
+     */
+    private static volatile boolean sTraceEnabled = false;
+
+    /**
+     * Swimmer is either near or far.
+     */
+    public enum State {
+        NEAR,
+        FAR,
+        UNKNOWN,
+    }
+
+    /**
+     * The current lap count.
+     */
+    private int mLapCount = 0;
+    /**
+     * The distance above which the swimmer is no longer "near" the phone.
+     */
+    private double mThreshold;
+    /**
+     * Previous distance value. This is
+     * needed for calculating the current delta and
+     * for comparing to the threshold.
+     */
+    private double mPrevDist = 0.0;
+
+    /**
+     * Sliding window of deltas between
+     * previous distance value and the current one.
+     * This is a ring buffer, the oldest delta is at mDeltaHead once the window is full.
+     */
+    private double[] mDeltaWindow;
+
+    /**
+     * For a time window, when each delta's distance was sampled, in the same ring.
+     * Null for a window of N deltas.
+     */
+    private long[] mDeltaTimes;
+
+    /**
+     * Index where the next delta will be written
+     */
+    private int mDeltaHead = 0;
+
+    /**
+     * Number of deltas currently in the window
+     */
+    private int mDeltaCount = 0;
+
+    /**
+     * Running sum of the deltas in the window, and of their absolute values.
+     */
+    private double mDeltaSum = 0.0;
+    private double mDeltaAbsSum = 0.0;
+
+    /**
+     * Size of the sliding window
+     */
+    private int mWindowSize;
+
+    /**
+     * Length of a time window, or 0 for a window of N deltas.
+     */
+    private final long mWindowNanos;
+
+    /**
+     * For a time window: when the deltas since the window was cleared started, and
+     * when the newest arrived. The window is full once it has been filling for
+     * mWindowNanos.
+     */
+    private boolean mStarted = false;
+    private long mStartNanos = 0;
+    private long mLastNanos = 0;
+
+    /**
+     * Whether the gap before the next sample should be cut out of a time window.
+     */
+    private boolean mGapPending = false;
+
+    /**
+     * Current state of the swimmer (near/far)
+     */
+    private State mState = State.UNKNOWN;
+    private State mDisconnectState = State.UNKNOWN;
+
+    public SlidingWindowCounter(double threshold, int windowSize) {
+        mThreshold = threshold;
+        mWindowSize = windowSize;
+        mWindowNanos = 0;
+        mDeltaWindow = new double[Math.max(windowSize, 0)];
+    }
+
+    private SlidingWindowCounter(double threshold, long windowNanos) {
+        mThreshold = threshold;
+        mWindowSize = 0;
+        mWindowNanos = windowNanos;
+        mDeltaWindow = new double[INITIAL_TIMED_CAPACITY];
+        mDeltaTimes = new long[INITIAL_TIMED_CAPACITY];
+    }
+
+    /**
+     * Create a counter whose window holds the deltas from the last windowNanos.
+     * Distances given without a timestamp are taken to be one
+     * LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS after the one before.
+     */
+    public static SlidingWindowCounter timed(double threshold, long windowNanos) {
+        return new SlidingWindowCounter(threshold, windowNanos);
+    }
+
+    /**
+     * Enable or disable logging of every sample.
+     * @param enabled true to log the state on every call to updateCount()
+     */
+    public static void setTraceEnabled(boolean enabled) {
+        sTraceEnabled = enabled;
+    }
+
+    @Override
+    public int updateCount(double dist) {
+        return updateCount(dist, mLastNanos + LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS);
+    }
+
+    @Override
+    public int updateCount(double dist, long timestampNanos) {
+        if (mDeltaTimes == null)
+            updateWindow(dist);
+        else
+            updateTimedWindow(dist, timestampNanos);
+        updateState();
+        return mLapCount;
+    }
+
+    /**
+     * Add a distance to the window without updating the state or the lap count, e.g. a
+     * reading held over a stale sample.
+     * @param timestampNanos when it was sampled, ignored by a window of N deltas
+     */
+    public void hold(double dist, long timestampNanos) {
+        if (mDeltaTimes == null)
+            updateWindow(dist);
+        else
+            updateTimedWindow(dist, timestampNanos);
+    }
+
+    @Override
+    public void onDisconnect() {
+        clearWindow();
+        mStarted = false;
+        mGapPending = false;
+        mDisconnectState = mState;
+        mState = State.UNKNOWN;
+        log_thread("onDisconnect() - Cleared delta window. State on disconnect was %s. State is " +
+                   "now unknown.", mDisconnectState);
+    }
+
+    /**
+     * Keep the state, the lap count and the last distance, so the first distance after
+     * the gap is compared with the last one before it. Only the newest retained
+     * fraction of the delta window is kept.
+     */
+    @Override
+    public void resume(double retained) {
+        if (mDeltaTimes != null) {
+            resumeTimed(retained);
+            return;
+        }
+
+        int keep = (int) Math.round(Math.max(0.0, Math.min(1.0, retained)) * mDeltaCount);
+        if (keep == mDeltaCount)
+            return;
+
+        // Drop the oldest deltas; the rest stay where they are in the ring
+        mDeltaCount = keep;
+        mDeltaSum = sumWindow();
+        mDeltaAbsSum = sumAbsWindow();
+        log_thread("resume(%.2f) - Kept %d deltas and state %s.", retained, keep, mState);
+    }
+
+    /**
+     * Add a new value to the sliding window
+     * @param dist the new distance to add.
+     */
+    void updateWindow(double dist) {
+        // Add a new delta to the window
+        double delta = dist - mPrevDist;
+        mPrevDist = dist;
+
+        if (mDeltaWindow.length == 0)
+            return;
+
+        //Trim the sliding window to size
+        if (mDeltaCount == mDeltaWindow.length) {
+            double oldest = mDeltaWindow[mDeltaHead];
+            mDeltaSum -= oldest;
+            mDeltaAbsSum -= Math.abs(oldest);
+        } else {
+            mDeltaCount++;
+        }
+
+        mDeltaWindow[mDeltaHead] = delta;
+        mDeltaSum += delta;
+        mDeltaAbsSum += Math.abs(delta);
+
+        mDeltaHead++;
+        if (mDeltaHead == mDeltaWindow.length) {
+            mDeltaHead = 0;
+
+            // Once per trip around the window, throw away the accumulated rounding error.
+            mDeltaSum = sumWindow();
+            mDeltaAbsSum = sumAbsWindow();
+        }
+    }
+
+    /**
+     * Add a new value to a time window, dropping the deltas that have slid out of it.
+     * @param dist the new distance to add.
+     * @param timestampNanos when it was sampled
+     */
+    void updateTimedWindow(double dist, long timestampNanos) {
+        if (mGapPending) {
+            // Carry on as if the kept deltas had arrived just before this one
+            long shift = timestampNanos - mLastNanos;
+            for (int i = 0; i < mDeltaCount; i++)
+                mDeltaTimes[indexOf(i)] += shift;
+            mStartNanos += shift;
+            mGapPending = false;
+        }
+
+        if (!mStarted) {
+            mStarted = true;
+            mStartNanos = timestampNanos;
+        }
+        mLastNanos = timestampNanos;
+
+        double delta = dist - mPrevDist;
+        mPrevDist = dist;
+
+        while (mDeltaCount > 0 && mDeltaTimes[indexOf(0)] <= timestampNanos - mWindowNanos) {
+            double oldest = mDeltaWindow[indexOf(0)];
+            mDeltaSum -= oldest;
+            mDeltaAbsSum -= Math.abs(oldest);
+            mDeltaCount--;
+        }
+
+        if (mDeltaCount == mDeltaWindow.length)
+            growWindow();
+
+        mDeltaWindow[mDeltaHead] = delta;
+        mDeltaTimes[mDeltaHead] = timestampNanos;
+        mDeltaSum += delta;
+        mDeltaAbsSum += Math.abs(delta);
+        mDeltaCount++;
+
+        mDeltaHead++;
+        if (mDeltaHead == mDeltaWindow.length) {
+            mDeltaHead = 0;
+            mDeltaSum = sumWindow();
+            mDeltaAbsSum = sumAbsWindow();
+        }
+    }
+
+    /**
+     * Keep the deltas from the newest retained fraction of a time window. The gap
+     * before the next sample is cut out, so they still count.
+     */
+    private void resumeTimed(double retained) {
+        if (!mStarted)
+            return;
+
+        retained = Math.max(0.0, Math.min(1.0, retained));
+        long keepAfter = mLastNanos - (long) (retained * mWindowNanos);
+        while (mDeltaCount > 0 && mDeltaTimes[indexOf(0)] < keepAfter)
+            mDeltaCount--;
+
+        mDeltaSum = sumWindow();
+        mDeltaAbsSum = sumAbsWindow();
+        mStartNanos = Math.max(mStartNanos, keepAfter);
+        mGapPending = true;
+        log_thread("resume(%.2f) - Kept %d deltas and state %s.", retained, mDeltaCount,
+                   mState);
+    }
+
+    private void growWindow() {
+        double[] deltas = new double[mDeltaWindow.length * 2];
+        long[] times = new long[mDeltaTimes.length * 2];
+        for (int i = 0; i < mDeltaCount; i++) {
+            deltas[i] = mDeltaWindow[indexOf(i)];
+            times[i] = mDeltaTimes[indexOf(i)];
+        }
+        mDeltaWindow = deltas;
+        mDeltaTimes = times;
+        mDeltaHead = mDeltaCount;
+    }
+
+    /**
+     * @param i position from the oldest delta in the window
+     * @return where that delta is in the ring
+     */
+    private int indexOf(int i) {
+        int index = mDeltaHead - mDeltaCount + i;
+        return index < 0 ? index + mDeltaWindow.length : index;
+    }
+
+    private void clearWindow() {
+        mDeltaHead = 0;
+        mDeltaCount = 0;
+        mDeltaSum = 0.0;
+        mDeltaAbsSum = 0.0;
+    }
+
+    /**
+     * Sum the window exactly, oldest delta first.
+     */
+    private double sumWindow() {
+        double sum = 0.0;
+        for (int i = 0; i < mDeltaCount; i++)
+            sum += mDeltaWindow[indexOf(i)];
+        return sum;
+    }
+
+    private double sumAbsWindow() {
+        double sum = 0.0;
+        for (int i = 0; i < mDeltaCount; i++)
+            sum += Math.abs(mDeltaWindow[indexOf(i)]);
+        return sum;
+    }
+
+    /**
+     * Sum up the sliding window of deltas and look at the sign.
+     * + means outwards direction (away from phone)
+     * - means inwards direction (towards phone)
+     * @return the direction, either +1, -1 or 0
+     */
+    int getDirection() {
+        double sum = mDeltaSum;
+
+        // Near zero, the running sum might have the wrong sign (or be nonzero when the
+        // deltas cancel out exactly). Fall back to summing the window.
+        if (Math.abs(sum) <= mDeltaAbsSum * DIRECTION_TOLERANCE)
+            sum = sumWindow();
+
+        return (int)Math.signum(sum);
+    }
+
+    public boolean windowIsFull() {
+        if (mDeltaTimes != null)
+            return mStarted && mLastNanos - mStartNanos >= mWindowNanos;
+        return mDeltaCount == mWindowSize;
+    }
+
+    void updateState() {
+        // If the sliding window is not yet full,
+        // don't do anything
+        if (!windowIsFull())
+            return;
+
+        // Determine if the swimmer is moving inwards or outwards
+        int direction = getDirection();
+
+        if (sTraceEnabled)
+            LapLog.d(TAG, String.format("%s: %.2f %.2f %d", mState.toString(), mPrevDist, mThreshold, direction));
+
+
+        if (mState == State.NEAR && mPrevDist > mThreshold && direction == 1) {
+            // If we cross the threshold in the outward direction while currently near,
+            // we are now FAR away.
+            mState = State.FAR;
+            LapLog.d(TAG, "Near -> FAR");
+        } else if (mState == State.FAR && mPrevDist <= mThreshold && direction == -1) {
+            // If we cross cross the threshold in the other direction while currently far,
+            // we are now near and have completed a lap.
+            mState = State.NEAR;
+
+            // Using swimming terminology, out and back is 2 laps, not 1
+            mLapCount += LAP_COUNT_INCREMENT;
+
+            LapLog.d(TAG, "Far -> Near");
+        }
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public int getLapCount() {
+        return mLapCount;
+    }
+
+    public double getThreshold() {
+        return mThreshold;
+    }
+
+    /**
+     * Change the threshold, keeping the lap count and the window. If the swimmer is
+     * now on the other side of the threshold, the zone changes without counting a lap.
+     */
+    public void setThreshold(double threshold) {
+        mThreshold = threshold;
+        if (mState != State.UNKNOWN)
+            mState = mPrevDist < mThreshold ? State.NEAR : State.FAR;
+    }
+
+    /**
+     * Start from a distance remembered from an earlier session, so the first delta is
+     * the swimmer's movement since then rather than the whole distance from 0.
+     */
+    public void seed(double dist) {
+        mPrevDist = dist;
+    }
+
+    /**
+     * @return the most recent distance value
+     */
+    public double getDistance() {
+        return mPrevDist;
+    }
+
+    /**
+     * @return the sum of the deltas in the window, i.e. how far the swimmer moved
+     *         over the window. + means outwards, - means inwards.
+     */
+    public double getWindowDelta() {
+        return mDeltaSum;
+    }
+
+    public void pickZone(boolean isReconnect) {
+        log_thread("pickZone(%b) - Previous state == %s, mPrevDist == %.2f, mThreshold == %.2f",
+                   isReconnect, mState, mPrevDist, mThreshold);
+
+        if (mPrevDist < mThreshold)
+            mState = State.NEAR;
+        else
+            mState = State.FAR;
+
+        log_thread("pickZone(%b) - mDisconnectState == %s, New state == %s", isReconnect,
+                   mDisconnectState, mState);
+
+        if (isReconnect && mDisconnectState == State.FAR && mState == State.NEAR) {
+            mLapCount += LAP_COUNT_INCREMENT;
+            log_thread("pickZone() - increased lap count to %d on reconnect.", mLapCount);
+        }
+    }
+
+    private void log_thread(String format, Object... args) {
+        String s = String.format(format, args);
+        s = String.format("[Thread %d] %s", Thread.currentThread().getId(), s);
+        LapLog.d(TAG, s);
+    }
+
+}
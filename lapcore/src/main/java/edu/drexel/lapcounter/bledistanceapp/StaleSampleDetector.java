@@ -0,0 +1,156 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Spots the stale RSSI the Bluetooth stack reports after a device drops out: for 10 to
+ * 20 seconds, reads keep succeeding with the last value it heard, until the disconnect
+ * is finally reported. Stale samples should be kept out of the lap counting pipeline,
+ * but the connection should be left alone, since live RSSI can repeat too.
+ *
+ * Live RSSI wanders by a few dBm from one sample to the next. The detector keeps a
+ * running variance of those steps and, from it, how many identical samples in a row
+ * would happen by chance less often than the false positive rate. A run of identical
+ * samples that long, lasting at least minUnchangedNanos, is stale. Reads answered much
+ * quicker than usual were probably answered from the stack's cache, so a run of them
+ * needs half as many samples.
+ *
+ * A run that lasts maxUnchangedNanos is stale regardless, which bounds the detection
+ * delay, but only if something else says the device has gone: a cache-speed read or a
+ * read timeout during the run. A tag lying still can repeat its value for that long,
+ * e.g. three readings at a one second poll period.
+ *
+ * Samples stay stale until the value changes. Each call is O(1) and doesn't allocate.
+ */
+public class StaleSampleDetector {
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 1e-3;
+    // Shorter runs are never stale, so bursts of fast polling can't trip the detector
+    public static final long DEFAULT_MIN_UNCHANGED_NANOS = 500000000L;
+    public static final long DEFAULT_MAX_UNCHANGED_NANOS = 3000000000L;
+
+    // Variance of the step between samples to start with, in dBm^2
+    private static final double INITIAL_STEP_VARIANCE = 8.0;
+    // Weight of each new step in the running variance
+    private static final double ALPHA = 0.05;
+    // A read quicker than this fraction of the typical read was answered from a cache
+    private static final double FAST_READ_FRACTION = 0.25;
+
+    private static final int MIN_REPEATS = 2;
+    private static final int MAX_REPEATS = 20;
+
+    private final double mLogFalsePositiveRate;
+    private final long mMinUnchangedNanos;
+    private final long mMaxUnchangedNanos;
+
+    private double mStepVariance = INITIAL_STEP_VARIANCE;
+    // Running mean of how long live reads take, or 0 until one is known
+    private double mRoundTripNanos = 0.0;
+
+    private boolean mHasSample = false;
+    private int mValue = 0;
+    // When the current value first arrived, and how often it has repeated since
+    private long mRunStartNanos = 0;
+    private int mRepeats = 0;
+    private int mFastRepeats = 0;
+    // Whether a read timed out during the current run
+    private boolean mReadTimedOut = false;
+    private boolean mStale = false;
+
+    public StaleSampleDetector() {
+        this(DEFAULT_FALSE_POSITIVE_RATE, DEFAULT_MIN_UNCHANGED_NANOS,
+             DEFAULT_MAX_UNCHANGED_NANOS);
+    }
+
+    /**
+     * @param falsePositiveRate how likely a run of live samples may be taken for stale
+     * @param minUnchangedNanos how long a value must last before it can be stale
+     * @param maxUnchangedNanos how long a value may last before it is stale regardless
+     */
+    public StaleSampleDetector(double falsePositiveRate, long minUnchangedNanos,
+                               long maxUnchangedNanos) {
+        mLogFalsePositiveRate = Math.log(falsePositiveRate);
+        mMinUnchangedNanos = minUnchangedNanos;
+        mMaxUnchangedNanos = maxUnchangedNanos;
+    }
+
+    /**
+     * @param rssi a non-null RSSI reading in dBm
+     * @param timestampNanos when it arrived, on a monotonic clock
+     * @param roundTripNanos how long the read took from request to callback, or 0 if
+     *                       unknown
+     * @return true if the sample is stale
+     */
+    public boolean isStale(int rssi, long timestampNanos, long roundTripNanos) {
+        if (!mHasSample || rssi != mValue) {
+            if (mHasSample) {
+                // The run was live after all: fold its repeats into the variance, then
+                // the step that ended it
+                int step = rssi - mValue;
+                mStepVariance *= Math.pow(1 - ALPHA, mRepeats);
+                mStepVariance = (1 - ALPHA) * mStepVariance + ALPHA * step * step;
+            }
+            if (roundTripNanos > 0) {
+                mRoundTripNanos = mRoundTripNanos == 0.0
+                        ? roundTripNanos
+                        : (1 - ALPHA) * mRoundTripNanos + ALPHA * roundTripNanos;
+            }
+
+            mHasSample = true;
+            mValue = rssi;
+            mRunStartNanos = timestampNanos;
+            mRepeats = 0;
+            mFastRepeats = 0;
+            mReadTimedOut = false;
+            mStale = false;
+            return false;
+        }
+
+        mRepeats++;
+        if (roundTripNanos > 0 && roundTripNanos < FAST_READ_FRACTION * mRoundTripNanos)
+            mFastRepeats++;
+
+        if (!mStale) {
+            long unchanged = timestampNanos - mRunStartNanos;
+            int required = requiredRepeats();
+            if (mFastRepeats == mRepeats)
+                required = Math.max(MIN_REPEATS, (required + 1) / 2);
+
+            boolean dropoutSeen = mFastRepeats > 0 || mReadTimedOut;
+            mStale = (dropoutSeen && unchanged >= mMaxUnchangedNanos)
+                    || (unchanged >= mMinUnchangedNanos && mRepeats >= required);
+        }
+        return mStale;
+    }
+
+    /**
+     * A read went unanswered. The current run may now be taken for stale once it has
+     * lasted maxUnchangedNanos.
+     */
+    public void onReadTimeout() {
+        if (mHasSample)
+            mReadTimedOut = true;
+    }
+
+    /**
+     * @return how many repeats of a value live RSSI makes less often than the false
+     *         positive rate
+     */
+    public int requiredRepeats() {
+        // A step rounds to 0 dBm about this often, for normally distributed steps
+        double sigma = Math.sqrt(mStepVariance);
+        double repeat = Math.min(0.95, Math.max(0.01, 1 / (sigma * Math.sqrt(2 * Math.PI))));
+
+        int repeats = (int) Math.ceil(mLogFalsePositiveRate / Math.log(repeat));
+        return Math.min(MAX_REPEATS, Math.max(MIN_REPEATS, repeats));
+    }
+
+    /**
+     * Forget the current run, e.g. after a disconnect. What was learned about live
+     * samples is kept.
+     */
+    public void reset() {
+        mHasSample = false;
+        mRepeats = 0;
+        mFastRepeats = 0;
+        mReadTimedOut = false;
+        mStale = false;
+    }
+}
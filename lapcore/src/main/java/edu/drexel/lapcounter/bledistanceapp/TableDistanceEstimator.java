@@ -0,0 +1,80 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Any DistanceEstimator, precomputed into a table over the RSSI range so a lookup is
+ * an array access and a linear interpolation instead of a call to Math.exp().
+ *
+ * RSSI is reported in whole dBm over a small range, so the table is dense and small.
+ * Filtered, fractional RSSI values are interpolated between entries. For a log model,
+ * the relative error of interpolating between entries h dBm apart is about
+ * (h / scale)^2 / 8, e.g. 0.125% at 1 dBm steps with a scale of 10.
+ * maxRelativeError() measures it for any model.
+ */
+public class TableDistanceEstimator implements DistanceEstimator {
+    // Range of RSSI values BLE stacks report
+    public static final int MIN_RSSI = -127;
+    public static final int MAX_RSSI = 20;
+
+    private final double mMin;
+    private final double mMax;
+    // Entries per dBm
+    private final int mResolution;
+    private final double[] mTable;
+
+    /**
+     * Tabulate a model at every whole dBm from MIN_RSSI to MAX_RSSI.
+     */
+    public TableDistanceEstimator(DistanceEstimator model) {
+        this(model, MIN_RSSI, MAX_RSSI, 1);
+    }
+
+    /**
+     * @param resolution table entries per dBm. More entries mean less interpolation error.
+     */
+    public TableDistanceEstimator(DistanceEstimator model, int minRssi, int maxRssi,
+                                  int resolution) {
+        if (maxRssi <= minRssi || resolution < 1)
+            throw new IllegalArgumentException("Bad table range");
+
+        mMin = minRssi;
+        mMax = maxRssi;
+        mResolution = resolution;
+        mTable = new double[(maxRssi - minRssi) * resolution + 1];
+        for (int i = 0; i < mTable.length; i++)
+            mTable[i] = model.getDistance(mMin + (double) i / resolution);
+    }
+
+    /**
+     * Values outside the table's range are clamped to its ends.
+     */
+    @Override
+    public double getDistance(double rssi) {
+        if (rssi <= mMin)
+            return mTable[0];
+        if (rssi >= mMax)
+            return mTable[mTable.length - 1];
+
+        double position = (rssi - mMin) * mResolution;
+        int i = (int) position;
+        double t = position - i;
+        return mTable[i] + t * (mTable[i + 1] - mTable[i]);
+    }
+
+    /**
+     * Compare the table against the model it was built from, at steps points per table
+     * entry across the whole range.
+     * @return the largest relative error found
+     */
+    public double maxRelativeError(DistanceEstimator model, int steps) {
+        double worst = 0.0;
+        int points = (mTable.length - 1) * steps;
+        for (int i = 0; i <= points; i++) {
+            double rssi = mMin + (double) i / (steps * mResolution);
+            double exact = model.getDistance(rssi);
+            double error = Math.abs(getDistance(rssi) - exact) / exact;
+            if (error > worst)
+                worst = error;
+        }
+        return worst;
+    }
+}
@@ -0,0 +1,158 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+/**
+ * Average of the values from the last windowNanos, however many samples that is. Unlike
+ * MovingAverage, it covers the same stretch of the swim whether RSSI is polled every
+ * 250 ms or every second, or samples go missing.
+ *
+ * Values are kept in a ring with their timestamps, and a running sum, so each value is
+ * added and dropped once: O(1) per sample. The ring only allocates when more samples
+ * than ever before fit in the window.
+ *
+ * Values filtered without a timestamp are taken to be one
+ * LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS after the one before.
+ */
+public class TimeWindowAverage implements LowPassFilter {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long mWindowNanos;
+
+    private double[] mValues = new double[INITIAL_CAPACITY];
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    // Index where the next value will be written, and how many values are stored
+    private int mHead = 0;
+    private int mCount = 0;
+    private double mSum = 0.0;
+
+    // When the values since the last clear started, and the newest one arrived. The
+    // window is full once it has been filling for windowNanos.
+    private boolean mStarted = false;
+    private long mStartNanos = 0;
+    private long mLastNanos = 0;
+
+    // Whether the next value comes after a gap, to be cut out of the timeline
+    private boolean mGapPending = false;
+
+    /**
+     * @param windowNanos how far back to average
+     */
+    public TimeWindowAverage(long windowNanos) {
+        mWindowNanos = windowNanos;
+    }
+
+    @Override
+    public double filter(double value) {
+        return filter(value, mLastNanos + LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS);
+    }
+
+    @Override
+    public double filter(double value, long timestampNanos) {
+        if (mGapPending) {
+            // Carry on as if the kept values had arrived just before this one
+            long shift = timestampNanos - mLastNanos;
+            for (int i = 0; i < mCount; i++)
+                mTimes[indexOf(i)] += shift;
+            mStartNanos += shift;
+            mGapPending = false;
+        }
+
+        if (!mStarted) {
+            mStarted = true;
+            mStartNanos = timestampNanos;
+        }
+        mLastNanos = timestampNanos;
+
+        // Drop the values that have slid out of the window
+        while (mCount > 0 && mTimes[indexOf(0)] <= timestampNanos - mWindowNanos) {
+            mSum -= mValues[indexOf(0)];
+            mCount--;
+        }
+
+        if (mCount == mValues.length)
+            grow();
+
+        mValues[mHead] = value;
+        mTimes[mHead] = timestampNanos;
+        mSum += value;
+        mCount++;
+
+        mHead++;
+        if (mHead == mValues.length) {
+            mHead = 0;
+
+            // Once per trip around the ring, throw away the accumulated rounding error
+            resum();
+        }
+
+        return mSum / mCount;
+    }
+
+    @Override
+    public boolean windowIsFull() {
+        return mStarted && mLastNanos - mStartNanos >= mWindowNanos;
+    }
+
+    @Override
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+        mSum = 0.0;
+        mStarted = false;
+        mGapPending = false;
+    }
+
+    /**
+     * Keep the values from the newest retained fraction of the window. The gap before
+     * the next value is cut out, so the kept values still count, and the window is full
+     * again once the rest of it has been filled.
+     */
+    @Override
+    public void decay(double retained) {
+        if (!mStarted)
+            return;
+
+        retained = Math.max(0.0, Math.min(1.0, retained));
+        long keepAfter = mLastNanos - (long) (retained * mWindowNanos);
+        while (mCount > 0 && mTimes[indexOf(0)] < keepAfter) {
+            mSum -= mValues[indexOf(0)];
+            mCount--;
+        }
+
+        if (mCount == 0) {
+            clear();
+            return;
+        }
+
+        mStartNanos = Math.max(mStartNanos, keepAfter);
+        mGapPending = true;
+        resum();
+    }
+
+    /**
+     * @param i position from the oldest stored value
+     * @return where that value is in the ring
+     */
+    private int indexOf(int i) {
+        int index = mHead - mCount + i;
+        return index < 0 ? index + mValues.length : index;
+    }
+
+    private void grow() {
+        double[] values = new double[mValues.length * 2];
+        long[] times = new long[mTimes.length * 2];
+        for (int i = 0; i < mCount; i++) {
+            values[i] = mValues[indexOf(i)];
+            times[i] = mTimes[indexOf(i)];
+        }
+        mValues = values;
+        mTimes = times;
+        mHead = mCount;
+    }
+
+    private void resum() {
+        double sum = 0.0;
+        for (int i = 0; i < mCount; i++)
+            sum += mValues[indexOf(i)];
+        mSum = sum;
+    }
+}
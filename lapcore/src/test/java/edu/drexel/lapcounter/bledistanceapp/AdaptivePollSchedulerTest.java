@@ -0,0 +1,84 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptivePollSchedulerTest {
+    private static final int FAST = 250;
+    private static final int NORMAL = 500;
+    private static final int SLOW = 1000;
+    private static final double THRESHOLD = 60.0;
+
+    private final AdaptivePollScheduler mScheduler =
+            new AdaptivePollScheduler(FAST, NORMAL, SLOW);
+
+    private static LapSnapshot at(double distance, double windowDelta) {
+        SlidingWindowCounter.State state = distance < THRESHOLD
+                ? SlidingWindowCounter.State.NEAR : SlidingWindowCounter.State.FAR;
+        return new LapSnapshot(true, (int) -distance, -distance, 0, state, 1, distance,
+                               THRESHOLD, windowDelta, 0, 0);
+    }
+
+    @Test
+    public void pollsFastUntilTheZoneIsKnown() {
+        assertEquals(FAST, mScheduler.periodFor(LapSnapshot.EMPTY));
+        assertEquals(FAST, mScheduler.periodFor(new LapSnapshot(
+                true, -80, -80, 0, SlidingWindowCounter.State.UNKNOWN, 1, 80, THRESHOLD,
+                5, 0, 0)));
+    }
+
+    @Test
+    public void pollsFastInTheNearBand() {
+        assertEquals(FAST, mScheduler.periodFor(at(THRESHOLD + 4, 3)));
+        assertEquals(FAST, mScheduler.periodFor(at(THRESHOLD - 4, -3)));
+        assertEquals(FAST, mScheduler.periodFor(at(THRESHOLD + 4, 0)));
+    }
+
+    @Test
+    public void pollsSlowlyDeepInAZoneUnlessHeadingBack() {
+        // Going further out, going further in, and resting at either wall
+        assertEquals(SLOW, mScheduler.periodFor(at(THRESHOLD + 20, 3)));
+        assertEquals(SLOW, mScheduler.periodFor(at(THRESHOLD - 20, -3)));
+        assertEquals(SLOW, mScheduler.periodFor(at(THRESHOLD + 20, 0.5)));
+        assertEquals(SLOW, mScheduler.periodFor(at(THRESHOLD - 20, -0.5)));
+
+        // Heading for the threshold
+        assertEquals(NORMAL, mScheduler.periodFor(at(THRESHOLD + 20, -3)));
+        assertEquals(NORMAL, mScheduler.periodFor(at(THRESHOLD - 20, 3)));
+    }
+
+    @Test
+    public void pollsFastWhileTurningShortOfTheDepths() {
+        // Swimming out between the bands, flipping direction, and swimming back
+        assertEquals(NORMAL, mScheduler.periodFor(at(THRESHOLD + 10, 3)));
+        assertEquals(FAST, mScheduler.periodFor(at(THRESHOLD + 12, 0.5)));
+        assertEquals(FAST, mScheduler.periodFor(at(THRESHOLD + 12, -0.5)));
+        assertEquals(NORMAL, mScheduler.periodFor(at(THRESHOLD + 10, -3)));
+
+        // The same on the near side
+        assertEquals(NORMAL, mScheduler.periodFor(at(THRESHOLD - 10, -3)));
+        assertEquals(FAST, mScheduler.periodFor(at(THRESHOLD - 12, 0.2)));
+        assertEquals(NORMAL, mScheduler.periodFor(at(THRESHOLD - 10, 3)));
+    }
+
+    @Test
+    public void countsThePollsSaved() {
+        // The fixed schedule polls fast until the zone is known, so nothing is saved there
+        mScheduler.nextPeriod(LapSnapshot.EMPTY);
+        mScheduler.nextPeriod(LapSnapshot.EMPTY);
+        assertEquals(0.0, mScheduler.getSavedFraction(), 1e-9);
+
+        // Each slow poll stands in for two of the fixed schedule's
+        for (int i = 0; i < 6; i++)
+            assertEquals(SLOW, mScheduler.nextPeriod(at(THRESHOLD + 20, 3)));
+        assertEquals(8, mScheduler.getPollCount());
+        assertEquals(14.0, mScheduler.getBaselinePollCount(), 1e-9);
+        assertEquals(1 - 8 / 14.0, mScheduler.getSavedFraction(), 1e-9);
+        assertTrue(mScheduler.format().contains("saved 42.9%"));
+
+        mScheduler.reset();
+        assertEquals(0, mScheduler.getPollCount());
+        assertEquals(0.0, mScheduler.getSavedFraction(), 0);
+    }
+}
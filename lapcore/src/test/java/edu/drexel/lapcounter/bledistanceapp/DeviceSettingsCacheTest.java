@@ -0,0 +1,99 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class DeviceSettingsCacheTest {
+
+    @Test
+    public void roundTripsThroughText() throws Exception {
+        DeviceSettingsCache cache = new DeviceSettingsCache();
+        cache.put("AA:00", DeviceSettings.DEFAULTS.withThreshold(42.5).withModel(-55.0, -10.0));
+        cache.put("AA:01", DeviceSettings.DEFAULTS.withFilteredRssi(-63.25));
+
+        StringWriter text = new StringWriter();
+        cache.write(text);
+        DeviceSettingsCache loaded = new DeviceSettingsCache();
+        loaded.read(new BufferedReader(new StringReader(text.toString() + "garbage line\n")));
+
+        assertEquals(2, loaded.size());
+        DeviceSettings a = loaded.get("AA:00");
+        assertEquals(42.5, a.threshold, 0.0);
+        assertEquals(LapPipeline.DEFAULT_COUNTER_WINDOW, a.counterWindow);
+        assertEquals(LapPipeline.DEFAULT_FILTER_WINDOW, a.filterWindow);
+        assertTrue(a.hasModel());
+        assertEquals(-10.0, a.modelScale, 0.0);
+        assertFalse(a.hasFilteredRssi());
+
+        DeviceSettings b = loaded.get("AA:01");
+        assertFalse(b.hasModel());
+        assertEquals(-63.25, b.filteredRssi, 0.0);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        DeviceSettingsCache cache = new DeviceSettingsCache(2);
+        cache.put("AA:00", DeviceSettings.DEFAULTS.withThreshold(1));
+        cache.put("AA:01", DeviceSettings.DEFAULTS.withThreshold(2));
+
+        // Using AA:00 makes AA:01 the eldest
+        cache.get("AA:00");
+        cache.put("AA:02", DeviceSettings.DEFAULTS.withThreshold(3));
+
+        assertTrue(cache.contains("AA:00"));
+        assertFalse(cache.contains("AA:01"));
+        assertSame(DeviceSettings.DEFAULTS, cache.get("AA:01"));
+
+        // The order survives saving: AA:00 is now the eldest
+        StringWriter text = new StringWriter();
+        cache.write(text);
+        DeviceSettingsCache loaded = new DeviceSettingsCache(2);
+        loaded.read(new BufferedReader(new StringReader(text.toString())));
+        loaded.put("AA:03", DeviceSettings.DEFAULTS);
+
+        assertFalse(loaded.contains("AA:00"));
+        assertTrue(loaded.contains("AA:02"));
+    }
+
+    @Test
+    public void changingThresholdKeepsTheCount() {
+        LapPipeline pipeline = DeviceSettings.DEFAULTS.withThreshold(60).newPipeline();
+        pipeline.onConnected();
+
+        // Out past the threshold and back counts one out-and-back
+        for (int i = 0; i < 20; i++)
+            pipeline.onRssi(-50);
+        for (int i = 0; i < 30; i++)
+            pipeline.onRssi(-80);
+        for (int i = 0; i < 30; i++)
+            pipeline.onRssi(-50);
+        assertEquals(SlidingWindowCounter.LAP_COUNT_INCREMENT, pipeline.getLapCount());
+
+        // Moving the threshold below the swimmer changes the zone, but not the count
+        pipeline.setThreshold(45);
+        assertEquals(SlidingWindowCounter.State.FAR, pipeline.getState());
+        pipeline.onRssi(-50);
+        assertEquals(SlidingWindowCounter.LAP_COUNT_INCREMENT, pipeline.getLapCount());
+    }
+
+    @Test
+    public void newPipelineStartsFromTheRememberedRssi() {
+        LapPipeline fresh = DeviceSettings.DEFAULTS.newPipeline();
+        LapPipeline seeded = DeviceSettings.DEFAULTS.withFilteredRssi(-70).newPipeline();
+        assertEquals(-70, seeded.getFilteredRssi(), 0.0);
+        assertEquals(70, seeded.snapshot().distance, 0.0);
+
+        // The first delta is the movement since then, not the whole distance from 0
+        fresh.onConnected();
+        seeded.onConnected();
+        fresh.onRssi(-72);
+        seeded.onRssi(-72);
+        assertEquals(72, fresh.snapshot().windowDelta, 0.0);
+        assertEquals(2, seeded.snapshot().windowDelta, 0.0);
+    }
+}
@@ -0,0 +1,599 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives GattSessionManager against a fake GATT stack and scanner.
+ */
+public class GattSessionManagerTest {
+
+    /**
+     * Records the calls the manager makes. Tests deliver callbacks by hand.
+     */
+    private static class FakeGattLayer implements GattLayer {
+        final Map<String, FakeConnection> connections = new HashMap<>();
+        final List<String> reads = new ArrayList<>();
+        // Whether the stack refuses to start reads, or connections
+        boolean rejectReads = false;
+        boolean rejectConnects = false;
+        int connectCalls = 0;
+
+        class FakeConnection implements Connection {
+            final String address;
+            int reconnects = 0;
+            boolean closed = false;
+
+            FakeConnection(String address) {
+                this.address = address;
+            }
+
+            @Override
+            public boolean readRemoteRssi() {
+                if (rejectReads)
+                    return false;
+
+                reads.add(address);
+                return true;
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public boolean reconnect() {
+                reconnects++;
+                return !rejectConnects;
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+            }
+        }
+
+        @Override
+        public Connection connect(String address, Callback callback) {
+            connectCalls++;
+            if (rejectConnects)
+                return null;
+
+            FakeConnection connection = new FakeConnection(address);
+            connections.put(address, connection);
+            return connection;
+        }
+    }
+
+    /**
+     * Remembers what it is scanning for. Tests deliver advertisements by hand.
+     */
+    private static class FakeScanLayer implements ScanLayer {
+        String[] addresses = new String[0];
+        int starts = 0;
+
+        @Override
+        public boolean startScan(String[] addresses, Callback callback) {
+            this.addresses = addresses;
+            starts++;
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            addresses = new String[0];
+        }
+    }
+
+    /**
+     * Logs the events it receives.
+     */
+    private static class EventLog implements GattSessionManager.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onConnected(String address) {
+            events.add("connected " + address);
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            events.add("disconnected " + address);
+        }
+
+        @Override
+        public void onRssi(String address, int rssi, long timestampNanos) {
+        }
+
+        @Override
+        public void onLapUpdate(String address) {
+            events.add("update " + address);
+        }
+    }
+
+    private static final long TIMEOUT = 1000;
+
+    private FakeGattLayer mGatt;
+    private FakeScanLayer mScanner;
+    private EventLog mEvents;
+    private GattSessionManager mManager;
+
+    @Before
+    public void setUp() {
+        mGatt = new FakeGattLayer();
+        mScanner = new FakeScanLayer();
+        mEvents = new EventLog();
+        mManager = new GattSessionManager(mGatt, mScanner, GattSessionManager.DEFAULT_PIPELINES,
+                                          mEvents, 4, 2, TIMEOUT);
+    }
+
+    private void connect(String... addresses) {
+        for (String address : addresses) {
+            assertTrue(mManager.connect(address));
+            mManager.onConnectionStateChange(address, true);
+        }
+    }
+
+    private void connectAt(long nowNanos, String... addresses) {
+        for (String address : addresses) {
+            assertTrue(mManager.connect(address, nowNanos));
+            mManager.onConnectionStateChange(address, true, nowNanos);
+        }
+    }
+
+    private int reconnectCount() {
+        int count = 0;
+        for (FakeGattLayer.FakeConnection connection : mGatt.connections.values())
+            count += connection.reconnects;
+        return count;
+    }
+
+    private void completeReads() {
+        for (String address : mGatt.reads)
+            mManager.onReadRemoteRssi(address, -50, true);
+        mGatt.reads.clear();
+    }
+
+    @Test
+    public void connectionLimit() {
+        connect("A", "B", "C", "D");
+        assertFalse(mManager.connect("E"));
+        assertEquals(4, mManager.getConnectedCount());
+
+        // Reconnecting a known device doesn't count against the limit
+        assertTrue(mManager.connect("A"));
+    }
+
+    @Test
+    public void pollIsRoundRobinUnderReadCap() {
+        connect("A", "B", "C");
+
+        assertEquals(2, mManager.pollRssi(0));
+        assertEquals("[A, B]", mGatt.reads.toString());
+        completeReads();
+
+        assertEquals(2, mManager.pollRssi(1));
+        assertEquals("[C, A]", mGatt.reads.toString());
+        completeReads();
+
+        assertEquals(2, mManager.pollRssi(2));
+        assertEquals("[B, C]", mGatt.reads.toString());
+    }
+
+    @Test
+    public void oneReadInFlightPerConnection() {
+        connect("A");
+
+        assertEquals(1, mManager.pollRssi(0));
+        assertEquals(0, mManager.pollRssi(1));
+
+        // Once the callback arrives, the device can be polled again
+        completeReads();
+        assertEquals(1, mManager.pollRssi(2));
+    }
+
+    @Test
+    public void lostReadTimesOut() {
+        connect("A");
+
+        assertEquals(1, mManager.pollRssi(0));
+        assertEquals(0, mManager.pollRssi(TIMEOUT));
+        assertEquals(1, mManager.pollRssi(TIMEOUT + 1));
+    }
+
+    @Test
+    public void disconnectedDevicesAreNotPolled() {
+        connect("A", "B");
+        mManager.onConnectionStateChange("A", false);
+
+        assertEquals(1, mManager.pollRssi(0));
+        assertEquals("[B]", mGatt.reads.toString());
+    }
+
+    @Test
+    public void countsReceivedProcessedAndDroppedSamples() {
+        connect("A");
+
+        mManager.onReadRemoteRssi("A", -60, true);
+        // A null reading, and a reading for a device we don't know
+        mManager.onReadRemoteRssi("A", 0, true);
+        mManager.onReadRemoteRssi("Z", -60, true);
+        // A failed read never delivered a sample
+        mManager.onReadRemoteRssi("A", 0, false);
+
+        assertEquals(3, mManager.getSamplesReceived());
+        assertEquals(1, mManager.getSamplesProcessed());
+        assertEquals(2, mManager.getSamplesDropped());
+    }
+
+    @Test
+    public void telemetryRecordsWhatHappensToPolls() {
+        PollTelemetry telemetry = new PollTelemetry();
+        mManager.setPollTelemetry(telemetry);
+        connect("A", "B");
+
+        // A gets a sample, B a GATT error
+        final long[] now = {1000};
+        mManager.setClock(new GattSessionManager.Clock() {
+            @Override
+            public long nanos() {
+                return now[0];
+            }
+        });
+        assertEquals(2, mManager.pollRssi(0));
+        mManager.onReadRemoteRssi("A", -50, true, 1000);
+        mManager.onReadRemoteRssi("B", 0, false, 1000);
+        mGatt.reads.clear();
+
+        // The stack refuses both reads
+        mGatt.rejectReads = true;
+        assertEquals(0, mManager.pollRssi(1));
+        mGatt.rejectReads = false;
+
+        // A answers 500 ns after its last sample, B never does
+        assertEquals(2, mManager.pollRssi(2));
+        now[0] = 1500;
+        mManager.onReadRemoteRssi("A", -50, true, 1500);
+        assertEquals(2, mManager.pollRssi(TIMEOUT + 3));
+
+        assertEquals(6, telemetry.getTotal(PollTelemetry.Event.POLL));
+        assertEquals(2, telemetry.getTotal(PollTelemetry.Event.SAMPLE));
+        assertEquals(1, telemetry.getTotal(PollTelemetry.Event.GATT_ERROR));
+        assertEquals(1, telemetry.getTotal(PollTelemetry.Event.TIMEOUT));
+        assertEquals(2, telemetry.getTotal(PollTelemetry.Event.REJECTED));
+        assertEquals(1, telemetry.getSampleInterval().getCount());
+        assertEquals(500, telemetry.getSampleInterval().getMax());
+    }
+
+    @Test
+    public void devicesHaveTheirOwnPipelines() {
+        connect("A", "B");
+
+        // The windows are timed, so the samples need to be spread out. Steady readings
+        // soon look stale, but they still fill the windows.
+        for (int i = 0; i < 20; i++) {
+            long t = i * LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS;
+            mManager.onReadRemoteRssi("A", -40, true, t, 0);
+            mManager.onReadRemoteRssi("B", -90, true, t, 0);
+        }
+
+        assertEquals(SlidingWindowCounter.State.NEAR, mManager.getSnapshot("A").state);
+        assertEquals(SlidingWindowCounter.State.FAR, mManager.getSnapshot("B").state);
+        assertNull(mManager.getSnapshot("E"));
+    }
+
+    @Test
+    public void snapshotsAreOnlyBuiltWhenAskedFor() {
+        connect("A");
+        LapSnapshot connected = mManager.getSnapshot("A");
+        assertSame(connected, mManager.getSnapshot("A"));
+
+        // Samples only mark the output as changed
+        mManager.onReadRemoteRssi("A", -40, true, 1, 0);
+        mManager.onReadRemoteRssi("A", -45, true, 2, 0);
+        LapSnapshot sampled = mManager.getSnapshot("A");
+        assertNotSame(connected, sampled);
+        assertEquals(-45, sampled.rssi);
+        assertSame(sampled, mManager.getSnapshot("A"));
+    }
+
+    @Test
+    public void pipelineWorkIsDoneOnTheExecutorWithoutTheLock() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Boolean> locked = new ArrayList<>();
+        mManager = new GattSessionManager(mGatt, mScanner, GattSessionManager.DEFAULT_PIPELINES,
+                                          new EventLog() {
+            @Override
+            public void onLapUpdate(String address) {
+                super.onLapUpdate(address);
+                locked.add(Thread.holdsLock(mManager));
+            }
+        }, 4, 2, TIMEOUT);
+        mManager.setPipelineExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+
+        connect("A");
+        mManager.onReadRemoteRssi("A", -40, true, 1, 0);
+        mManager.onReadRemoteRssi("A", -45, true, 2, 0);
+
+        // Nothing reaches the pipeline until the executor gets to it, and polling
+        // doesn't wait for it
+        assertEquals(1, tasks.size());
+        assertFalse(mManager.getSnapshot("A").hasSample);
+        assertEquals(1, mManager.pollRssi(3));
+
+        // One task does all the work queued before it finished, in order
+        tasks.remove(0).run();
+        assertTrue(tasks.isEmpty());
+        assertEquals(-45, mManager.getSnapshot("A").rssi);
+        assertEquals(Arrays.asList(false, false, false), locked);
+
+        mManager.onReadRemoteRssi("A", -50, true, 4, 0);
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void listenedDevicesAreFedByAdvertisements() {
+        connect("A");
+        assertTrue(mManager.listen("B", 0));
+        assertEquals("[B]", Arrays.toString(mScanner.addresses));
+        mEvents.events.clear();
+
+        String[] addresses = {"B", "C", "B"};
+        int[] rssi = {-40, -40, -40};
+        long[] timestamps = {1, 2, 3};
+        mManager.onScanResults(addresses, rssi, timestamps, 3);
+
+        // One update for the whole batch, and nothing for devices we aren't listening to
+        assertEquals("[connected B, update B]", mEvents.events.toString());
+        assertEquals(-40, mManager.getSnapshot("B").rssi);
+
+        // Only the connected device is polled
+        assertEquals(1, mManager.pollRssi(4));
+        assertEquals("[A]", mGatt.reads.toString());
+    }
+
+    @Test
+    public void silentDeviceDisconnects() {
+        assertTrue(mManager.listen("B", 0));
+        mManager.onScanResults(new String[]{"B"}, new int[]{-40}, new long[]{10}, 1);
+        assertTrue(mManager.isConnected("B"));
+
+        mManager.pollRssi(10 + GattSessionManager.ADVERTISEMENT_TIMEOUT_NANOS);
+        assertTrue(mManager.isConnected("B"));
+
+        mManager.pollRssi(11 + GattSessionManager.ADVERTISEMENT_TIMEOUT_NANOS);
+        assertFalse(mManager.isConnected("B"));
+        assertTrue(mEvents.events.contains("disconnected B"));
+
+        // Hearing it again brings it back
+        mManager.onScanResults(new String[]{"B"}, new int[]{-40}, new long[]{20}, 1);
+        assertTrue(mManager.isConnected("B"));
+    }
+
+    @Test
+    public void connectingStopsListening() {
+        assertTrue(mManager.listen("B", 0));
+        assertTrue(mManager.connect("B"));
+
+        assertFalse(mManager.isListening("B"));
+        assertEquals(0, mScanner.addresses.length);
+    }
+
+    @Test
+    public void scanRestartsAreCoalescedAndRateLimited() {
+        long second = 1000000000L;
+        assertTrue(mManager.listen("A", 0));
+        assertEquals(1, mScanner.starts);
+
+        // A burst of devices is added in one restart
+        assertTrue(mManager.listen("B", 1));
+        assertTrue(mManager.listen("C", 2));
+        assertEquals(1, mScanner.starts);
+        assertEquals(GattSessionManager.SCAN_RESTART_DELAY_NANOS,
+                     mManager.runScan(0));
+        assertEquals(-1, mManager.runScan(GattSessionManager.SCAN_RESTART_DELAY_NANOS));
+        assertEquals(2, mScanner.starts);
+        assertEquals("[A, B, C]", Arrays.toString(mScanner.addresses));
+
+        // Dropping a device doesn't restart the scan; its advertisements are ignored
+        mManager.disconnect("C");
+        assertEquals(2, mScanner.starts);
+        mManager.onScanResults(new String[]{"C"}, new int[]{-40}, new long[]{2 * second}, 1);
+        assertFalse(mManager.isConnected("C"));
+
+        // No more than MAX_SCAN_STARTS starts in any SCAN_START_WINDOW_NANOS
+        String[] more = {"D", "E", "F", "G"};
+        long now = 2 * second;
+        for (String address : more) {
+            assertTrue(mManager.listen(address, now));
+            mManager.runScan(now);
+            now += 2 * second;
+        }
+        assertEquals(GattSessionManager.MAX_SCAN_STARTS, mScanner.starts);
+        assertFalse(Arrays.asList(mScanner.addresses).contains("G"));
+
+        long allowed = GattSessionManager.SCAN_START_WINDOW_NANOS;
+        assertEquals(allowed - now, mManager.runScan(now));
+        assertEquals(-1, mManager.runScan(allowed));
+        assertEquals(GattSessionManager.MAX_SCAN_STARTS + 1, mScanner.starts);
+        assertTrue(Arrays.asList(mScanner.addresses).contains("G"));
+    }
+
+    @Test
+    public void failedScanIsRetried() {
+        final long[] now = {0};
+        mManager.setClock(new GattSessionManager.Clock() {
+            @Override
+            public long nanos() {
+                return now[0];
+            }
+        });
+        assertTrue(mManager.listen("A", 0));
+        assertEquals(-1, mManager.runScan(0));
+
+        now[0] = 10;
+        mManager.onScanFailed(2);
+        assertEquals(1, mManager.getScanFailures());
+        assertEquals(GattSessionManager.SCAN_RETRY_NANOS, mManager.runScan(10));
+        assertEquals(1, mScanner.starts);
+
+        assertEquals(-1, mManager.runScan(10 + GattSessionManager.SCAN_RETRY_NANOS));
+        assertEquals(2, mScanner.starts);
+        assertEquals("[A]", Arrays.toString(mScanner.addresses));
+    }
+
+    @Test
+    public void lostDeviceIsReconnectedOnItsConnectionFirst() {
+        long ms = 1000000L;
+        ReconnectStats stats = new ReconnectStats();
+        mManager.setReconnectStats(stats);
+        mManager.setReconnectBackoff(new ReconnectBackoff(500 * ms, 4000 * ms, 2, 0,
+                                                          new Random(0)));
+        connectAt(0, "A");
+        FakeGattLayer.FakeConnection first = mGatt.connections.get("A");
+
+        // The first attempt is made straight away
+        mManager.onConnectionStateChange("A", false, 1000 * ms);
+        mEvents.events.clear();
+        mManager.runReconnects(1000 * ms);
+        assertEquals(1, first.reconnects);
+
+        // Failures back off, and aren't reported again
+        mManager.onConnectionStateChange("A", false, 1100 * ms);
+        assertEquals(500 * ms, mManager.runReconnects(1100 * ms));
+        mManager.runReconnects(1600 * ms);
+        assertEquals(2, first.reconnects);
+        assertTrue(mEvents.events.isEmpty());
+
+        // Once the device has been gone for a while, the connection is replaced
+        mManager.onConnectionStateChange("A", false, 2000 * ms);
+        assertEquals(1000 * ms, mManager.runReconnects(2000 * ms));
+        mManager.runReconnects(3000 * ms);
+        assertEquals(2, first.reconnects);
+        assertTrue(first.closed);
+        assertNotSame(first, mGatt.connections.get("A"));
+
+        mManager.onConnectionStateChange("A", true, 3500 * ms);
+        assertTrue(mManager.isConnected("A"));
+        assertEquals(1, stats.getReconnects());
+        assertEquals(2, stats.getReusedAttempts());
+        assertEquals(1, stats.getFreshAttempts());
+        assertEquals(2, stats.getFailures());
+        assertEquals(2500 * ms, stats.getTimeToReconnect().getMax());
+        assertEquals(500 * ms, stats.getAttemptTime(false).getMax());
+        assertEquals(0, stats.getAttemptTime(true).getCount());
+    }
+
+    @Test
+    public void timedOutAttemptIsClosedAndNotBlamedOnTheNext() {
+        ReconnectStats stats = new ReconnectStats();
+        mManager.setReconnectStats(stats);
+        mManager.setReconnectBackoff(new ReconnectBackoff(100, 1000, 2, 0, new Random(0)));
+        connectAt(0, "A");
+        FakeGattLayer.FakeConnection first = mGatt.connections.get("A");
+
+        mManager.onConnectionStateChange("A", false, 10);
+        mManager.runReconnects(10);
+        assertEquals(1, first.reconnects);
+
+        // The attempt times out, and the next one opens a new connection
+        long timedOut = 11 + GattSessionManager.DEFAULT_CONNECT_TIMEOUT_NANOS;
+        mManager.runReconnects(timedOut);
+        assertTrue(first.closed);
+        assertEquals(1, stats.getTimeouts());
+        mManager.runReconnects(timedOut + 100);
+        assertNotSame(first, mGatt.connections.get("A"));
+        assertEquals(1, stats.getFailures());
+
+        // The new attempt succeeds, and is timed as a fresh one
+        mManager.onConnectionStateChange("A", true, timedOut + 300);
+        assertTrue(mManager.isConnected("A"));
+        assertEquals(1, stats.getFailures());
+        assertEquals(200, stats.getAttemptTime(false).getMax());
+    }
+
+    @Test
+    public void refusedAttemptsAreRetriedOncePerPass() {
+        // A backoff with no delay at all, which ReconnectBackoff itself won't allow
+        mManager.setReconnectBackoff(new ReconnectBackoff() {
+            @Override
+            public long delayNanos(int failures) {
+                return 0;
+            }
+        });
+        connectAt(0, "A", "B");
+        mManager.onConnectionStateChange("A", false, 10);
+        mManager.onConnectionStateChange("B", false, 10);
+        mGatt.rejectConnects = true;
+        mGatt.connectCalls = 0;
+
+        // Each device is tried once, and retried on the next pass
+        assertEquals(1, mManager.runReconnects(20));
+        assertEquals(2, reconnectCount());
+        assertEquals(2, mGatt.connectCalls);
+        assertEquals(1, mManager.runReconnects(21));
+        assertEquals(4, mGatt.connectCalls);
+    }
+
+    @Test
+    public void backoffMustDelayEveryRetry() {
+        for (double jitter : new double[] {-0.1, 1.0, Double.NaN}) {
+            try {
+                new ReconnectBackoff(100, 1000, 2, jitter, new Random(0));
+                fail("Accepted a jitter of " + jitter);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        try {
+            new ReconnectBackoff(0, 1000, 2, 0, new Random(0));
+            fail("Accepted an initial delay of 0");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void disconnectStopsReconnecting() {
+        connectAt(0, "A");
+        mManager.onConnectionStateChange("A", false, 10);
+        mManager.disconnect("A");
+
+        assertEquals(-1, mManager.runReconnects(20));
+        assertEquals(0, reconnectCount());
+    }
+
+    @Test
+    public void pendingAttemptsAreCapped() {
+        ReconnectStats stats = new ReconnectStats();
+        mManager.setReconnectStats(stats);
+        connectAt(0, "A", "B", "C");
+        for (String address : new String[]{"A", "B", "C"})
+            mManager.onConnectionStateChange(address, false, 10);
+
+        mManager.runReconnects(10);
+        assertEquals(GattSessionManager.DEFAULT_MAX_CONNECT_ATTEMPTS, reconnectCount());
+
+        // A connecting frees a slot for C
+        mManager.onConnectionStateChange("A", true, 20);
+        mManager.runReconnects(20);
+        assertEquals(3, reconnectCount());
+
+        // Attempts that never finish are given up on, and retried
+        mManager.runReconnects(30 + GattSessionManager.DEFAULT_CONNECT_TIMEOUT_NANOS);
+        assertEquals(2, stats.getTimeouts());
+    }
+}
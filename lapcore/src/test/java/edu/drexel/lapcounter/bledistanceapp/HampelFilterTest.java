@@ -0,0 +1,105 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HampelFilterTest {
+
+    /**
+     * Passes samples through unchanged, so tests see what the prefilter produced.
+     */
+    private static class Identity implements LowPassFilter {
+        @Override
+        public double filter(double value) {
+            return value;
+        }
+
+        @Override
+        public double filter(double value, long timestampNanos) {
+            return value;
+        }
+
+        @Override
+        public boolean windowIsFull() {
+            return true;
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public void decay(double retained) {
+        }
+    }
+
+    @Test
+    public void zeroThresholdIsARunningMedian() {
+        int window = 7;
+        HampelFilter filter = new HampelFilter(new Identity(), window, 0.0);
+        Random random = new Random(1);
+        int[] values = new int[500];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = -90 + random.nextInt(60);
+
+            int start = Math.max(0, i - window + 1);
+            int[] sorted = Arrays.copyOfRange(values, start, i + 1);
+            Arrays.sort(sorted);
+            int median = sorted[(sorted.length - 1) / 2];
+
+            assertEquals(median, filter.filter(values[i]), 0.0);
+        }
+    }
+
+    @Test
+    public void spikeIsReplacedByMedian() {
+        HampelFilter filter = new HampelFilter(new Identity(), 7, 3.0);
+        int[] values = {-60, -61, -59, -60, -62, -60, -20, -61, -60};
+
+        for (int value : values) {
+            double filtered = filter.filter(value);
+            if (value == -20)
+                assertEquals(-60, filtered, 0.0);
+            else
+                assertEquals(value, filtered, 0.0);
+        }
+        assertEquals(1, filter.getRejectedCount());
+    }
+
+    @Test
+    public void clearEmptiesTheWindow() {
+        HampelFilter filter = new HampelFilter(new Identity(), 3, 0.0);
+        filter.filter(-40);
+        filter.filter(-40);
+        filter.filter(-40);
+        assertTrue(filter.windowIsFull());
+
+        filter.clear();
+        assertFalse(filter.windowIsFull());
+        assertEquals(-80, filter.filter(-80), 0.0);
+    }
+
+    @Test
+    public void decayKeepsTheNewestValues() {
+        HampelFilter filter = new HampelFilter(new Identity(), 5, 0.0);
+        for (int i = 0; i < 8; i++)
+            filter.filter(i < 6 ? -40 : -80);
+
+        // The two newest are kept, and outvote the next reading
+        filter.decay(0.4);
+        assertFalse(filter.windowIsFull());
+        assertEquals(-80, filter.filter(-40), 0.0);
+
+        // Then the window fills and slides as usual
+        assertEquals(-80, filter.filter(-40), 0.0);
+        assertEquals(-40, filter.filter(-40), 0.0);
+        assertTrue(filter.windowIsFull());
+        assertEquals(-40, filter.filter(-40), 0.0);
+        assertEquals(-40, filter.filter(-40), 0.0);
+    }
+}
@@ -0,0 +1,95 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KalmanFilterTest {
+    private static final long PERIOD = LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS;
+
+    @Test
+    public void followsASteadyRampWithoutLag() {
+        KalmanFilter kalman = new KalmanFilter();
+        MovingAverage average = new MovingAverage(10);
+
+        double value = 0.0;
+        double kalmanOutput = 0.0;
+        double averageOutput = 0.0;
+        for (int i = 0; i < 400; i++) {
+            value = -90 + 0.1 * i;
+            kalmanOutput = kalman.filter(value);
+            averageOutput = average.filter(value);
+        }
+
+        // The average trails by half its window; the Kalman filter catches up
+        assertEquals(0.45, value - averageOutput, 1e-9);
+        assertEquals(value, kalmanOutput, 0.01);
+        assertEquals(0.1, kalman.getVelocity(), 0.001);
+    }
+
+    @Test
+    public void stepsByTheTimeBetweenReadings() {
+        KalmanFilter filter = new KalmanFilter();
+
+        // The same ramp, 0.1 dBm per period, read at an uneven rate
+        long now = 0;
+        double value = 0.0;
+        double output = 0.0;
+        for (int i = 0; i < 400; i++) {
+            now += i % 3 == 0 ? 4 * PERIOD : PERIOD / 2;
+            value = -90 + 0.1 * now / PERIOD;
+            output = filter.filter(value, now);
+        }
+
+        assertEquals(value, output, 0.01);
+        assertEquals(0.1, filter.getVelocity(), 0.001);
+    }
+
+    @Test
+    public void decayKeepsTheEstimateWithLessConfidence() {
+        KalmanFilter filter = new KalmanFilter();
+        for (int i = 0; i < 400; i++)
+            filter.filter(-90 + 0.1 * i, i * PERIOD);
+        assertTrue(filter.windowIsFull());
+        double velocity = filter.getVelocity();
+
+        filter.decay(0.5);
+        assertEquals(velocity / 2, filter.getVelocity(), 1e-9);
+        assertFalse(filter.windowIsFull());
+
+        // The velocity isn't carried across the gap: a minute later, the reading is
+        // taken to be one period on
+        double output = filter.filter(-50, 400 * PERIOD + 60000000000L);
+        assertEquals(-50, output, 0.5);
+        assertTrue(filter.windowIsFull());
+    }
+
+    @Test
+    public void decayingEverythingClears() {
+        KalmanFilter filter = new KalmanFilter();
+        for (int i = 0; i < 10; i++)
+            filter.filter(-60);
+
+        filter.decay(0.0);
+        assertFalse(filter.windowIsFull());
+        assertEquals(-80, filter.filter(-80), 0);
+        assertEquals(0, filter.getVelocity(), 0);
+    }
+
+    @Test
+    public void clearStartsOverAtTheNextReading() {
+        KalmanFilter filter = new KalmanFilter();
+        for (int i = 0; i < 10; i++)
+            filter.filter(-60 + i);
+
+        filter.clear();
+        assertFalse(filter.windowIsFull());
+        assertEquals(-80, filter.filter(-80, 123), 0);
+        assertEquals(0, filter.getVelocity(), 0);
+
+        filter.filter(-80, 123 + PERIOD);
+        assertFalse(filter.windowIsFull());
+        filter.filter(-80, 123 + 2 * PERIOD);
+        assertTrue(filter.windowIsFull());
+    }
+}
@@ -0,0 +1,106 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LapPipelineTest {
+    private static final long SECOND = 1000000000L;
+
+    /**
+     * A pipeline whose swimmer swam out of range: near, then far.
+     */
+    private static LapPipeline swumOut() {
+        LapPipeline pipeline = new LapPipeline();
+        pipeline.onConnected(0);
+        for (int i = 0; i < 20; i++)
+            pipeline.onRssi(-40);
+        for (int i = 0; i < 20; i++)
+            pipeline.onRssi(-80);
+
+        assertEquals(SlidingWindowCounter.State.FAR, pipeline.getState());
+        return pipeline;
+    }
+
+    /**
+     * Feed near samples until the lap is counted.
+     * @return how many samples it took
+     */
+    private static int samplesUntilLap(LapPipeline pipeline) {
+        int laps = pipeline.getLapCount();
+        for (int i = 1; i <= 50; i++) {
+            pipeline.onRssi(-40);
+            if (pipeline.getLapCount() > laps)
+                return i;
+        }
+        fail("the lap was never counted");
+        return -1;
+    }
+
+    @Test
+    public void shortGapRestartsWarm() {
+        LapPipeline cold = swumOut();
+        cold.onDisconnected();
+        cold.onConnected();
+        int coldSamples = samplesUntilLap(cold);
+
+        LapPipeline warm = swumOut();
+        warm.onDisconnected(10 * SECOND);
+        assertEquals(SlidingWindowCounter.State.UNKNOWN, warm.getState());
+        warm.onConnected(11 * SECOND);
+        assertEquals(SlidingWindowCounter.State.FAR, warm.getState());
+        int warmSamples = samplesUntilLap(warm);
+
+        assertEquals(cold.getLapCount(), warm.getLapCount());
+        assertTrue(warmSamples + " vs " + coldSamples, warmSamples < coldSamples);
+    }
+
+    @Test
+    public void longGapStartsOver() {
+        LapPipeline cold = swumOut();
+        cold.onDisconnected();
+        cold.onConnected();
+
+        LapPipeline late = swumOut();
+        late.onDisconnected(10 * SECOND);
+        late.onConnected(11 * SECOND + LapPipeline.DEFAULT_WARM_RESTART_LIMIT_NANOS);
+        assertEquals(SlidingWindowCounter.State.UNKNOWN, late.getState());
+
+        assertEquals(samplesUntilLap(cold), samplesUntilLap(late));
+    }
+
+    @Test
+    public void staleSamplesFillTheWindowsWithoutCounting() {
+        long period = LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS;
+        LapPipeline pipeline = new LapPipeline();
+        pipeline.onConnected(0);
+        for (int i = 0; i < 3; i++)
+            pipeline.onRssi(-40, i * period, 0);
+        assertEquals(SlidingWindowCounter.State.UNKNOWN, pipeline.getState());
+
+        // A tag lying still: the rest of its readings look stale
+        for (int i = 3; i < 20; i++)
+            pipeline.onStale(i * period);
+        assertEquals(SlidingWindowCounter.State.NEAR, pipeline.getState());
+
+        // Holding a far reading can't complete a lap either
+        LapPipeline out = swumOut();
+        for (int i = 0; i < 20; i++)
+            out.onStale(40 * period + i * period);
+        assertEquals(0, out.getLapCount());
+    }
+
+    @Test
+    public void timedCounterTakesUntimedDistances() {
+        SlidingWindowCounter counter = SlidingWindowCounter.timed(
+                60, LapPipeline.windowNanos(LapPipeline.DEFAULT_COUNTER_WINDOW));
+        for (int i = 0; i < 10; i++)
+            counter.updateCount(40);
+        assertTrue(counter.windowIsFull());
+
+        counter.pickZone(false);
+        for (int i = 0; i < 10; i++)
+            counter.updateCount(40 + 5 * i);
+        assertEquals(SlidingWindowCounter.State.FAR, counter.getState());
+    }
+}
@@ -0,0 +1,48 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithinAnEighth() {
+        for (long value = 0; value < 1L << 41; value = value * 9 / 8 + 1) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long low = LatencyHistogram.lowerBound(bucket);
+            long high = LatencyHistogram.upperBound(bucket);
+
+            assertTrue(value + " below bucket " + bucket, low <= value);
+            assertTrue(value + " above bucket " + bucket, value <= high);
+            // The last bucket also takes everything too long to have its own
+            if (bucket < LatencyHistogram.BUCKET_COUNT - 1)
+                assertTrue(high - low <= low / 8);
+        }
+
+        // Buckets are in order, with no gaps
+        for (int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++)
+            assertEquals(LatencyHistogram.upperBound(i - 1) + 1, LatencyHistogram.lowerBound(i));
+    }
+
+    @Test
+    public void percentilesAreUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+
+        // 1 ms to 100 ms in 1 ms steps
+        for (int ms = 1; ms <= 100; ms++)
+            histogram.record(ms * 1000000L);
+
+        long p50 = histogram.getPercentile(0.5);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(p50 >= 50000000L && p50 <= 50000000L * 9 / 8);
+        assertTrue(p99 >= 99000000L && p99 <= 100000000L);
+        assertEquals(100000000L, histogram.getMax());
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5e6, histogram.getMean(), 1e-6);
+
+        histogram.clear();
+        assertEquals(0, histogram.getCount());
+    }
+}
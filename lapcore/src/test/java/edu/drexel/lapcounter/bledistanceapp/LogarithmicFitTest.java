@@ -0,0 +1,59 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LogarithmicFitTest {
+
+    @Test
+    public void recoversExactModel() {
+        LogarithmicModel model = new LogarithmicModel(-55.0, -10.0);
+        LogarithmicFit fit = new LogarithmicFit();
+
+        double[] distances = {1.0, 2.0, 5.0, 10.0, 25.0};
+        for (double distance : distances) {
+            double rssi = -55.0 - 10.0 * Math.log(distance);
+            fit.addSample(distance, rssi);
+        }
+
+        assertTrue(fit.hasFit());
+        assertEquals(-55.0, fit.getOffset(), 1e-9);
+        assertEquals(-10.0, fit.getScale(), 1e-9);
+        assertEquals(0.0, fit.getScaleInterval(), 1e-6);
+        assertEquals(model.getDistance(-70.0), fit.toModel().getDistance(-70.0), 1e-9);
+    }
+
+    @Test
+    public void needsTwoDistances() {
+        LogarithmicFit fit = new LogarithmicFit();
+        for (int i = 0; i < 10; i++)
+            fit.addSample(5.0, -70 + i % 3);
+        assertFalse(fit.hasFit());
+    }
+
+    @Test
+    public void intervalsCoverTheTrueModel() {
+        Random random = new Random(3);
+        double[] distances = {1.0, 3.0, 10.0, 25.0};
+        int trials = 400;
+        int covered = 0;
+
+        for (int trial = 0; trial < trials; trial++) {
+            LogarithmicFit fit = new LogarithmicFit();
+            for (int i = 0; i < 12; i++) {
+                double distance = distances[i % distances.length];
+                fit.addSample(distance, -55.0 - 10.0 * Math.log(distance)
+                                        + 4.0 * random.nextGaussian());
+            }
+            if (Math.abs(fit.getScale() + 10.0) <= fit.getScaleInterval())
+                covered++;
+        }
+
+        // 95% intervals should cover the truth about 95% of the time
+        assertTrue(covered > 0.92 * trials);
+        assertTrue(covered < 0.98 * trials);
+    }
+}
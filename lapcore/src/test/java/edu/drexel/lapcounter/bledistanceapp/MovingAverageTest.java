@@ -0,0 +1,205 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class MovingAverageTest {
+
+    /**
+     * The Deque based average MovingAverage used to be, as a reference.
+     */
+    private static class DequeAverage {
+        private final Deque<Double> mValues = new ArrayDeque<>();
+        private final int mMaxSize;
+
+        DequeAverage(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        double filter(double value) {
+            mValues.addLast(value);
+            if (mValues.size() > mMaxSize)
+                mValues.pollFirst();
+
+            if (mValues.isEmpty())
+                return 0.0;
+
+            double sum = 0.0;
+            for (double x : mValues)
+                sum += x;
+            return sum / mValues.size();
+        }
+
+        boolean windowIsFull() {
+            return mValues.size() == mMaxSize;
+        }
+
+        void clear() {
+            mValues.clear();
+        }
+
+        void keepNewest(int keep) {
+            while (mValues.size() > keep)
+                mValues.pollFirst();
+        }
+    }
+
+    /**
+     * @return the JVM's per-thread allocation counter, or skip the test if there is none
+     */
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(bean.isThreadAllocatedMemorySupported()
+                   && bean.isThreadAllocatedMemoryEnabled());
+        return bean;
+    }
+
+    @Test
+    public void matchesTheDequeAverageOverALongTrace() {
+        Random random = new Random(7);
+        for (int window : new int[] {0, 1, 2, 3, 10, 100}) {
+            MovingAverage average = new MovingAverage(window);
+            DequeAverage reference = new DequeAverage(window);
+
+            // Many trips around the buffer, with a clear now and then at any point in it
+            for (int i = 0; i < 100000; i++) {
+                if (random.nextInt(5000) == 0) {
+                    average.clear();
+                    reference.clear();
+                }
+
+                double value = random.nextInt(50) == 0 ? 0.0 : -70 + 20 * random.nextGaussian();
+                assertEquals(reference.filter(value), average.filter(value), 1e-9);
+                assertEquals(reference.windowIsFull(), average.windowIsFull());
+            }
+        }
+    }
+
+    @Test
+    public void resumDropsTheRoundingErrorOfTheRunningSum() {
+        MovingAverage average = new MovingAverage(4);
+        for (int i = 0; i < 4; i++)
+            average.filter(1e17);
+
+        // Each 1 is lost in the running sum, next to the 1e17 values still in it. Once
+        // the buffer wraps, the sum is recomputed from what it holds.
+        for (int i = 0; i < 3; i++)
+            average.filter(1.0);
+        assertEquals(1.0, average.filter(1.0), 0.0);
+    }
+
+    @Test
+    public void windowIsFullOnceItHoldsNValues() {
+        MovingAverage average = new MovingAverage(3);
+        assertFalse(average.windowIsFull());
+
+        average.filter(1);
+        average.filter(2);
+        assertFalse(average.windowIsFull());
+        assertEquals(2.0, average.filter(3), 0.0);
+        assertTrue(average.windowIsFull());
+
+        // And stays full as the oldest values drop out
+        assertEquals(3.0, average.filter(4), 0.0);
+        assertTrue(average.windowIsFull());
+
+        MovingAverage empty = new MovingAverage(0);
+        assertTrue(empty.windowIsFull());
+        assertEquals(0.0, empty.filter(-60), 0.0);
+    }
+
+    @Test
+    public void clearStartsOverAnywhereInTheBuffer() {
+        MovingAverage average = new MovingAverage(3);
+        for (int i = 0; i < 5; i++)
+            average.filter(-90);
+
+        average.clear();
+        assertFalse(average.windowIsFull());
+        assertEquals(0.0, average.filter(0), 0.0);
+        assertEquals(-20.0, average.filter(-40), 0.0);
+        assertEquals(-30.0, average.filter(-50), 0.0);
+        assertTrue(average.windowIsFull());
+        assertEquals(-50.0, average.filter(-60), 0.0);
+    }
+
+    @Test
+    public void decayKeepsTheNewestValuesWhereverTheBufferIs() {
+        for (int filled = 0; filled < 12; filled++) {
+            MovingAverage average = new MovingAverage(5);
+            DequeAverage reference = new DequeAverage(5);
+            for (int i = 0; i < filled; i++)
+                assertEquals(reference.filter(-i), average.filter(-i), 1e-9);
+
+            int size = Math.min(filled, 5);
+            average.decay(0.6);
+            reference.keepNewest((int) Math.round(0.6 * size));
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals(reference.filter(-50 - i), average.filter(-50 - i), 1e-9);
+                assertEquals(reference.windowIsFull(), average.windowIsFull());
+            }
+        }
+    }
+
+    @Test
+    public void filterDoesNotAllocate() {
+        com.sun.management.ThreadMXBean bean = allocationCounter();
+        long thread = Thread.currentThread().getId();
+        MovingAverage average = new MovingAverage(10);
+        double sum = 0.0;
+
+        // Warm up, and measure what asking for the count allocates by itself
+        for (int i = 0; i < 10000; i++)
+            sum += average.filter(-(i % 50));
+        long start = bean.getThreadAllocatedBytes(thread);
+        long overhead = bean.getThreadAllocatedBytes(thread) - start;
+
+        start = bean.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++)
+            sum += average.filter(-(i % 50));
+        long allocated = bean.getThreadAllocatedBytes(thread) - start;
+
+        assertTrue("filter() allocated " + (allocated - overhead) + " bytes",
+                   allocated <= overhead);
+        assertTrue(sum < 0);
+    }
+
+    @Test
+    public void decayDoesNotAllocate() {
+        com.sun.management.ThreadMXBean bean = allocationCounter();
+        long thread = Thread.currentThread().getId();
+        MovingAverage average = new MovingAverage(100);
+        double sum = 0.0;
+
+        for (int i = 0; i < 10000; i++) {
+            sum += average.filter(-(i % 50));
+            if (i % 150 == 0)
+                average.decay(0.5);
+        }
+        long start = bean.getThreadAllocatedBytes(thread);
+        long overhead = bean.getThreadAllocatedBytes(thread) - start;
+
+        start = bean.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            sum += average.filter(-(i % 50));
+            if (i % 150 == 0)
+                average.decay(0.5);
+        }
+        long allocated = bean.getThreadAllocatedBytes(thread) - start;
+
+        assertTrue("decay() allocated " + (allocated - overhead) + " bytes",
+                   allocated <= overhead);
+        assertTrue(sum < 0);
+    }
+}
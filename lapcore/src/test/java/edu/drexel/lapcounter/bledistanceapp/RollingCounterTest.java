@@ -0,0 +1,26 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RollingCounterTest {
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void oldSlotsFallOutOfTheWindow() {
+        RollingCounter counter = new RollingCounter(SECOND, 11);
+
+        // 4 events per second for 20 seconds
+        for (long t = 0; t < 20 * SECOND; t += SECOND / 4)
+            counter.add(t, 1);
+
+        long now = 20 * SECOND;
+        assertEquals(40, counter.sum(now - 1, 10));
+        assertEquals(4.0, counter.rate(now, 10), 1e-9);
+
+        // After a silent stretch, only the tail of the samples is left
+        assertEquals(4.0 * 5 / 10, counter.rate(now + 5 * SECOND, 10), 1e-9);
+        assertEquals(0.0, counter.rate(now + 30 * SECOND, 10), 0.0);
+    }
+}
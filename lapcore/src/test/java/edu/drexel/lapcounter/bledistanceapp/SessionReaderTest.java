@@ -0,0 +1,125 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class SessionReaderTest {
+    private static final String SWIMMER = "AA:BB:CC:DD:EE:01";
+    private static final String BYSTANDER = "AA:BB:CC:DD:EE:02";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Record a connect, count RSSI readings alternating between two devices, and a
+     * disconnect.
+     * @return the session file
+     */
+    private File record(int count) throws IOException {
+        File directory = mFolder.newFolder();
+        SessionRecorder recorder = new SessionRecorder(directory, count + 2, 1);
+        assertTrue(recorder.start());
+
+        recorder.recordConnected(0, SWIMMER);
+        for (int i = 0; i < count; i++)
+            recorder.recordRssi(i + 1, i % 2 == 0 ? SWIMMER : BYSTANDER, -40 - i % 50);
+        recorder.recordDisconnected(count + 1, SWIMMER);
+        recorder.stop();
+
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    @Test
+    public void readsBackWhatWasRecorded() throws IOException {
+        // More records than the reader buffers at once
+        int count = 10000;
+        try (SessionReader reader = new SessionReader(record(count))) {
+            assertEquals(2, reader.getDeviceCount());
+            assertEquals(SWIMMER, reader.getAddress(0));
+            assertEquals(BYSTANDER, reader.getAddress(1));
+            assertNull(reader.getAddress(2));
+            assertTrue(reader.getStartTimeMillis() > 0);
+
+            assertTrue(reader.next());
+            assertEquals(SessionFormat.TYPE_CONNECTED, reader.getType());
+            assertEquals(0, reader.getDevice());
+            assertEquals(0, reader.getTimestamp());
+
+            for (int i = 0; i < count; i++) {
+                assertTrue(reader.next());
+                assertEquals(SessionFormat.TYPE_RSSI, reader.getType());
+                assertEquals(i % 2, reader.getDevice());
+                assertEquals(i + 1, reader.getTimestamp());
+                assertEquals(-40 - i % 50, reader.getRssi());
+            }
+
+            assertTrue(reader.next());
+            assertEquals(SessionFormat.TYPE_DISCONNECTED, reader.getType());
+            assertEquals(count + 1, reader.getTimestamp());
+
+            assertFalse(reader.next());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void stopsAtTheUnusedSpace() throws IOException {
+        File directory = mFolder.newFolder();
+        SessionRecorder recorder = new SessionRecorder(directory, 100, 1);
+        assertTrue(recorder.start());
+        recorder.recordRssi(1, SWIMMER, -50);
+        recorder.stop();
+
+        File file = directory.listFiles()[0];
+        assertEquals(SessionFormat.HEADER_SIZE + 100 * SessionFormat.RECORD_SIZE,
+                     file.length());
+        try (SessionReader reader = new SessionReader(file)) {
+            assertTrue(reader.next());
+            assertEquals(-50, reader.getRssi());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void dropsARecordCutOffPartWayThrough() throws IOException {
+        File file = record(10);
+        truncate(file, SessionFormat.HEADER_SIZE + 5 * SessionFormat.RECORD_SIZE
+                + SessionFormat.RECORD_SIZE / 2);
+
+        try (SessionReader reader = new SessionReader(file)) {
+            int records = 0;
+            while (reader.next())
+                records++;
+            assertEquals(5, records);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAFileCutOffInTheHeader() throws IOException {
+        File file = record(10);
+        truncate(file, SessionFormat.HEADER_SIZE / 2);
+        new SessionReader(file).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAFileThatIsNotASession() throws IOException {
+        File file = mFolder.newFile();
+        truncate(file, SessionFormat.HEADER_SIZE + SessionFormat.RECORD_SIZE);
+        new SessionReader(file).close();
+    }
+}
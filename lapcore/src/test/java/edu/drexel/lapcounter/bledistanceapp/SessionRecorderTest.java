@@ -0,0 +1,170 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class SessionRecorderTest {
+    private static final String SWIMMER = "AA:BB:CC:DD:EE:01";
+    private static final String BYSTANDER = "AA:BB:CC:DD:EE:02";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static File[] sortedFiles(File directory) {
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    public void rolloversGetUniqueNamesInOrder() throws IOException {
+        File directory = mFolder.newFolder();
+        SessionRecorder recorder = new SessionRecorder(directory, 2, 100);
+        assertTrue(recorder.start());
+
+        // Fast enough that several files are started within the same millisecond
+        for (int i = 0; i < 40; i++)
+            recorder.recordRssi(i, i < 3 ? SWIMMER : BYSTANDER, -40 - i);
+        recorder.stop();
+        assertFalse(recorder.isRecording());
+
+        File[] files = sortedFiles(directory);
+        assertEquals(20, files.length);
+
+        // Read back in name order, the records come out in the order they were made,
+        // with the device indices carried across files
+        int next = 0;
+        for (File file : files) {
+            assertEquals(SessionFormat.HEADER_SIZE + 2 * SessionFormat.RECORD_SIZE,
+                         file.length());
+            try (SessionReader reader = new SessionReader(file)) {
+                while (reader.next()) {
+                    assertEquals(next, reader.getTimestamp());
+                    assertEquals(-40 - next, reader.getRssi());
+                    assertEquals(next < 3 ? SWIMMER : BYSTANDER,
+                                 reader.getAddress(reader.getDevice()));
+                    next++;
+                }
+            }
+        }
+        assertEquals(40, next);
+    }
+
+    @Test
+    public void restartingDoesNotOverwriteTheLastFile() throws IOException {
+        File directory = mFolder.newFolder();
+        SessionRecorder first = new SessionRecorder(directory, 10, 10);
+        SessionRecorder second = new SessionRecorder(directory, 10, 10);
+
+        assertTrue(first.start());
+        first.recordRssi(1, SWIMMER, -41);
+        first.stop();
+        assertTrue(second.start());
+        second.recordRssi(2, SWIMMER, -42);
+        second.stop();
+
+        File[] files = sortedFiles(directory);
+        assertEquals(2, files.length);
+        for (int i = 0; i < files.length; i++) {
+            try (SessionReader reader = new SessionReader(files[i])) {
+                assertTrue(reader.next());
+                assertEquals(-41 - i, reader.getRssi());
+            }
+        }
+    }
+
+    @Test
+    public void keepsOnlyTheNewestFiles() throws IOException {
+        File directory = mFolder.newFolder();
+        SessionRecorder recorder = new SessionRecorder(directory, 2, 3);
+        assertTrue(recorder.start());
+        for (int i = 0; i < 10; i++)
+            recorder.recordRssi(i, SWIMMER, -40);
+        recorder.stop();
+
+        File[] files = sortedFiles(directory);
+        assertEquals(3, files.length);
+        try (SessionReader reader = new SessionReader(files[0])) {
+            assertTrue(reader.next());
+            assertEquals(4, reader.getTimestamp());
+        }
+    }
+
+    @Test
+    public void rolloverSwitchesToTheFilePreparedInTheBackground() throws IOException {
+        File directory = mFolder.newFolder();
+        SessionRecorder recorder = new SessionRecorder(directory, 2, 10);
+        final List<Runnable> tasks = new ArrayList<>();
+        recorder.setBackgroundExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+
+        assertTrue(recorder.start());
+        assertEquals(1, directory.listFiles().length);
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        File spare = new File(directory, "session-next.tmp");
+        assertTrue(spare.isFile());
+
+        // The third record rolls over into the spare, and leaves the rest to the task
+        for (int i = 0; i < 3; i++)
+            recorder.recordRssi(i, SWIMMER, -40 - i);
+        assertFalse(spare.exists());
+        assertEquals(2, directory.listFiles().length);
+        assertEquals(1, tasks.size());
+
+        tasks.remove(0).run();
+        assertTrue(spare.isFile());
+        recorder.stop();
+        assertFalse(spare.exists());
+
+        File[] files = sortedFiles(directory);
+        assertEquals(2, files.length);
+        int next = 0;
+        for (File file : files) {
+            assertEquals(SessionFormat.HEADER_SIZE + 2 * SessionFormat.RECORD_SIZE,
+                         file.length());
+            try (SessionReader reader = new SessionReader(file)) {
+                while (reader.next()) {
+                    assertEquals(-40 - next, reader.getRssi());
+                    assertEquals(SWIMMER, reader.getAddress(reader.getDevice()));
+                    next++;
+                }
+            }
+        }
+        assertEquals(3, next);
+    }
+
+    @Test
+    public void ignoresRecordsWhileStopped() throws IOException {
+        File directory = mFolder.newFolder();
+        SessionRecorder recorder = new SessionRecorder(directory, 10, 10);
+        recorder.recordConnected(0, SWIMMER);
+        assertEquals(0, directory.listFiles().length);
+
+        assertTrue(recorder.start());
+        assertTrue(recorder.isRecording());
+        recorder.recordDisconnected(1, SWIMMER);
+        recorder.stop();
+        recorder.recordRssi(2, SWIMMER, -40);
+
+        try (SessionReader reader = new SessionReader(directory.listFiles()[0])) {
+            assertTrue(reader.next());
+            assertEquals(SessionFormat.TYPE_DISCONNECTED, reader.getType());
+            assertFalse(reader.next());
+        }
+    }
+}
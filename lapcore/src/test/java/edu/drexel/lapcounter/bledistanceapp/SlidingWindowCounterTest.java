@@ -0,0 +1,154 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SlidingWindowCounterTest {
+
+    /**
+     * The counter as it was before its window became a primitive ring: a deque of boxed
+     * deltas, summed on every sample.
+     */
+    private static class ReferenceCounter {
+        final double threshold;
+        final int windowSize;
+        final Deque<Double> window = new ArrayDeque<>();
+        double prevDist = 0.0;
+        SlidingWindowCounter.State state = SlidingWindowCounter.State.UNKNOWN;
+        int lapCount = 0;
+
+        ReferenceCounter(double threshold, int windowSize) {
+            this.threshold = threshold;
+            this.windowSize = windowSize;
+        }
+
+        void updateCount(double dist) {
+            window.addLast(dist - prevDist);
+            prevDist = dist;
+            if (window.size() > windowSize)
+                window.pollFirst();
+            if (window.size() != windowSize)
+                return;
+
+            double sum = 0.0;
+            for (double dx : window)
+                sum += dx;
+            int direction = (int) Math.signum(sum);
+
+            if (state == SlidingWindowCounter.State.NEAR && prevDist > threshold
+                    && direction == 1) {
+                state = SlidingWindowCounter.State.FAR;
+            } else if (state == SlidingWindowCounter.State.FAR && prevDist <= threshold
+                    && direction == -1) {
+                state = SlidingWindowCounter.State.NEAR;
+                lapCount += SlidingWindowCounter.LAP_COUNT_INCREMENT;
+            }
+        }
+
+        void pickZone() {
+            state = prevDist < threshold
+                    ? SlidingWindowCounter.State.NEAR : SlidingWindowCounter.State.FAR;
+        }
+    }
+
+    /**
+     * A swimmer going out past the threshold and back, with noise.
+     */
+    private static double[] laps(Random random, int count) {
+        double[] trace = new double[count];
+        for (int i = 0; i < count; i++) {
+            double phase = 2 * Math.PI * i / 80.0;
+            trace[i] = 60 - 20 * Math.cos(phase) + 3 * random.nextGaussian();
+        }
+        return trace;
+    }
+
+    @Test
+    public void lapCountsMatchTheReference() {
+        for (int windowSize = 1; windowSize <= 12; windowSize++) {
+            SlidingWindowCounter counter = new SlidingWindowCounter(60, windowSize);
+            ReferenceCounter reference = new ReferenceCounter(60, windowSize);
+
+            double[] trace = laps(new Random(windowSize), 4000);
+            for (double dist : trace) {
+                counter.updateCount(dist);
+                reference.updateCount(dist);
+                if (counter.getState() == SlidingWindowCounter.State.UNKNOWN
+                        && counter.windowIsFull()) {
+                    counter.pickZone(false);
+                    reference.pickZone();
+                }
+
+                assertEquals(reference.state, counter.getState());
+                assertEquals(reference.lapCount, counter.getLapCount());
+            }
+            assertTrue(counter.getLapCount() > 0);
+        }
+    }
+
+    @Test
+    public void resumeKeepsTheNewestDeltasWhereverTheRingIs() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(60, 4);
+
+        // Deltas 0 to 5: the window wraps, holding 2 to 5
+        for (double dist : new double[] {0, 1, 3, 6, 10, 15})
+            counter.updateCount(dist);
+        assertEquals(14, counter.getWindowDelta(), 0.0);
+
+        counter.resume(0.5);
+        assertFalse(counter.windowIsFull());
+        assertEquals(9, counter.getWindowDelta(), 0.0);
+
+        counter.updateCount(21);
+        assertEquals(15, counter.getWindowDelta(), 0.0);
+        counter.updateCount(28);
+        assertTrue(counter.windowIsFull());
+        assertEquals(22, counter.getWindowDelta(), 0.0);
+
+        // The oldest kept delta is the first to go
+        counter.updateCount(36);
+        assertEquals(26, counter.getWindowDelta(), 0.0);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        double[] trace = laps(new Random(1), 100000);
+        SlidingWindowCounter counted = new SlidingWindowCounter(60, 3);
+        SlidingWindowCounter timed = SlidingWindowCounter.timed(
+                60, LapPipeline.windowNanos(LapPipeline.DEFAULT_COUNTER_WINDOW));
+        long period = LapPipeline.NOMINAL_SAMPLE_PERIOD_NANOS;
+
+        // Warm up, which also grows the timed window to its working size
+        for (int i = 0; i < 1000; i++) {
+            counted.updateCount(trace[i]);
+            timed.updateCount(trace[i], i * period);
+        }
+        counted.pickZone(false);
+        timed.pickZone(false);
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 1000; i < trace.length; i++) {
+            counted.updateCount(trace[i]);
+            timed.updateCount(trace[i], i * period);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // A boxed delta per sample would be megabytes; allow for the measurement itself
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+        assertTrue(counted.getLapCount() > 0);
+    }
+}
@@ -0,0 +1,121 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StaleSampleDetectorTest {
+    private static final long PERIOD = 250000000L;
+
+    /**
+     * Feed noisy live RSSI, one sample per PERIOD.
+     * @return how many samples were flagged stale
+     */
+    private static int feedLive(StaleSampleDetector detector, Random random, int count,
+                                long start) {
+        int flagged = 0;
+        for (int i = 0; i < count; i++) {
+            int rssi = -70 + (int) Math.round(3 * random.nextGaussian());
+            if (detector.isStale(rssi, start + i * PERIOD, 0))
+                flagged++;
+        }
+        return flagged;
+    }
+
+    @Test
+    public void liveRssiIsRarelyStale() {
+        StaleSampleDetector detector = new StaleSampleDetector();
+        int flagged = feedLive(detector, new Random(1), 10000, 0);
+
+        assertTrue("flagged " + flagged, flagged < 10);
+    }
+
+    @Test
+    public void repeatedValueIsStaleWithinTheBound() {
+        StaleSampleDetector detector = new StaleSampleDetector();
+        feedLive(detector, new Random(2), 200, 0);
+
+        // The stack repeats -75 after the device drops out
+        long start = 200 * PERIOD;
+        long detected = -1;
+        for (int i = 0; i < 80 && detected < 0; i++) {
+            if (detector.isStale(-75, start + i * PERIOD, 0))
+                detected = i * PERIOD;
+        }
+
+        assertTrue(detected >= StaleSampleDetector.DEFAULT_MIN_UNCHANGED_NANOS);
+        assertTrue(detected <= StaleSampleDetector.DEFAULT_MAX_UNCHANGED_NANOS);
+
+        // Until the value changes
+        assertTrue(detector.isStale(-75, start + 100 * PERIOD, 0));
+        assertFalse(detector.isStale(-74, start + 101 * PERIOD, 0));
+    }
+
+    @Test
+    public void cachedReadsAreStaleSooner() {
+        StaleSampleDetector slow = new StaleSampleDetector();
+        StaleSampleDetector fast = new StaleSampleDetector();
+        long roundTrip = 40000000L;
+
+        // Live reads take roundTrip, then the same value comes back in far less time
+        int slowAt = -1, fastAt = -1;
+        for (int i = 0; i < 40; i++) {
+            long t = i * PERIOD;
+            int rssi = i < 20 ? -60 - (i % 4) : -80;
+            long cached = i < 20 ? roundTrip : roundTrip / 10;
+            if (slow.isStale(rssi, t, roundTrip) && slowAt < 0)
+                slowAt = i;
+            if (fast.isStale(rssi, t, cached) && fastAt < 0)
+                fastAt = i;
+        }
+
+        assertTrue(fastAt > 0);
+        assertTrue(fastAt < slowAt);
+    }
+
+    @Test
+    public void stationaryTagAtTheSlowPeriodIsLive() {
+        long slowPeriod = 1000000000L;
+        long roundTrip = 40000000L;
+        StaleSampleDetector live = new StaleSampleDetector();
+        StaleSampleDetector cached = new StaleSampleDetector();
+
+        // A tag lying still: each value holds for four readings, 3 s, then moves 1 dBm
+        int liveFlagged = 0, cachedFlagged = 0;
+        for (int i = 0; i < 200; i++) {
+            long t = i * slowPeriod;
+            int rssi = -70 - (i / 4) % 2;
+            boolean repeat = i % 4 != 0;
+            if (live.isStale(rssi, t, roundTrip))
+                liveFlagged++;
+            if (cached.isStale(rssi, t, repeat ? roundTrip / 10 : roundTrip))
+                cachedFlagged++;
+        }
+
+        assertEquals(0, liveFlagged);
+        // The same runs answered from the cache reach the cap
+        assertTrue(cachedFlagged > 0);
+    }
+
+    @Test
+    public void readTimeoutAllowsTheCap() {
+        long slowPeriod = 1000000000L;
+        StaleSampleDetector timedOut = new StaleSampleDetector();
+        StaleSampleDetector answered = new StaleSampleDetector();
+        feedLive(timedOut, new Random(3), 200, 0);
+        feedLive(answered, new Random(3), 200, 0);
+
+        // Too few repeats for the statistical rule, so only the timeout makes a difference
+        long start = 200 * PERIOD;
+        timedOut.isStale(-75, start, 0);
+        answered.isStale(-75, start, 0);
+        timedOut.onReadTimeout();
+        assertTrue(timedOut.requiredRepeats() > 2);
+        assertFalse(timedOut.isStale(-75, start + 2 * slowPeriod, 0));
+        assertTrue(timedOut.isStale(-75, start + 3 * slowPeriod, 0));
+        answered.isStale(-75, start + 2 * slowPeriod, 0);
+        assertFalse(answered.isStale(-75, start + 3 * slowPeriod, 0));
+    }
+}
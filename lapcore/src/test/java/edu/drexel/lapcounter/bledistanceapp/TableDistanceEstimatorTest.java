@@ -0,0 +1,44 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TableDistanceEstimatorTest {
+
+    @Test
+    public void tableMatchesLogarithmicModel() {
+        DistanceEstimator model = new LogarithmicModel(-55.0, -10.0);
+        TableDistanceEstimator table = new TableDistanceEstimator(model);
+
+        // (1 / 10)^2 / 8 = 0.125%
+        assertTrue(table.maxRelativeError(model, 16) < 0.00126);
+        assertEquals(model.getDistance(-60), table.getDistance(-60), 1e-12);
+    }
+
+    @Test
+    public void finerTableIsMoreAccurate() {
+        DistanceEstimator model = new LogarithmicModel(-55.0, -10.0);
+        TableDistanceEstimator table = new TableDistanceEstimator(
+                model, TableDistanceEstimator.MIN_RSSI, TableDistanceEstimator.MAX_RSSI, 4);
+
+        assertTrue(table.maxRelativeError(model, 16) < 0.0001);
+    }
+
+    @Test
+    public void piecewiseModelPassesThroughItsPoints() {
+        double[] rssi = {-90, -70, -50};
+        double[] distance = {25.0, 8.0, 1.0};
+        PiecewiseLogarithmicModel model = new PiecewiseLogarithmicModel(rssi, distance);
+
+        for (int i = 0; i < rssi.length; i++)
+            assertEquals(distance[i], model.getDistance(rssi[i]), 1e-9);
+
+        // Each piece is logarithmic: halfway in RSSI is the geometric mean in distance
+        assertEquals(Math.sqrt(25.0 * 8.0), model.getDistance(-80), 1e-9);
+
+        // And it tabulates just as well
+        TableDistanceEstimator table = new TableDistanceEstimator(model);
+        assertTrue(table.maxRelativeError(model, 16) < 0.002);
+    }
+}
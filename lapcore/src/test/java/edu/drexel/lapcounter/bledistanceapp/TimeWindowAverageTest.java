@@ -0,0 +1,73 @@
+package edu.drexel.lapcounter.bledistanceapp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimeWindowAverageTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void matchesMovingAverageAtAFixedRate() {
+        int window = 10;
+        long period = 250 * MS;
+        MovingAverage counted = new MovingAverage(window);
+        TimeWindowAverage timed = new TimeWindowAverage(window * period);
+
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            double value = -70 + 5 * random.nextGaussian();
+            assertEquals(counted.filter(value), timed.filter(value, i * period), 1e-9);
+        }
+    }
+
+    @Test
+    public void irregularSamplesCoverTheSameTime() {
+        TimeWindowAverage filter = new TimeWindowAverage(1000 * MS);
+
+        // A burst, then a late sample: only what is within a second of it counts
+        filter.filter(-40, 0);
+        filter.filter(-40, 100 * MS);
+        filter.filter(-50, 200 * MS);
+        assertFalse(filter.windowIsFull());
+
+        assertEquals(-60, filter.filter(-70, 1150 * MS), 1e-9);
+        assertTrue(filter.windowIsFull());
+
+        // A long gap empties the window
+        assertEquals(-80, filter.filter(-80, 5000 * MS), 1e-9);
+    }
+
+    @Test
+    public void decayKeepsTheNewestValuesAcrossTheGap() {
+        TimeWindowAverage filter = new TimeWindowAverage(1000 * MS);
+        for (int i = 0; i <= 10; i++)
+            filter.filter(i < 5 ? -40 : -60, i * 100 * MS);
+        assertTrue(filter.windowIsFull());
+
+        // Keep the newest half, then carry on 10 s later as if there was no gap
+        filter.decay(0.5);
+        assertFalse(filter.windowIsFull());
+        assertEquals(-60, filter.filter(-60, 11000 * MS), 1e-9);
+
+        // Full again once the other half of the window has been filled
+        for (int i = 1; i <= 5; i++)
+            filter.filter(-60, 11000 * MS + i * 100 * MS);
+        assertTrue(filter.windowIsFull());
+    }
+
+    @Test
+    public void untimedValuesAreOneNominalPeriodApart() {
+        MovingAverage counted = new MovingAverage(LapPipeline.DEFAULT_FILTER_WINDOW);
+        TimeWindowAverage timed = new TimeWindowAverage(
+                LapPipeline.windowNanos(LapPipeline.DEFAULT_FILTER_WINDOW));
+
+        Random random = new Random(2);
+        for (int i = 0; i < 100; i++) {
+            double value = -70 + 5 * random.nextGaussian();
+            assertEquals(counted.filter(value), timed.filter(value), 1e-9);
+        }
+    }
+}
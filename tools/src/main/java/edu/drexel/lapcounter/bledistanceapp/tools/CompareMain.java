@@ -0,0 +1,158 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import edu.drexel.lapcounter.bledistanceapp.KalmanFilter;
+import edu.drexel.lapcounter.bledistanceapp.LapPipeline;
+import edu.drexel.lapcounter.bledistanceapp.SessionFormat;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares a KalmanFilter against a MovingAverage on recorded sessions: the lag and
+ * residual variance of each filter (see FilterComparison), and how much earlier or
+ * later the Kalman pipeline registers each lap.
+ *
+ * Usage: compare [--filter-window N] [--kalman Q:R] FILE|DIR...
+ *
+ * Output is one tab separated line per device, with lags in seconds:
+ *   file, address, samples, moving average lag and variance, Kalman lag and variance,
+ *   moving average laps, Kalman laps, median lap time difference (Kalman - moving
+ *   average), pairing each moving average lap with the nearest Kalman lap
+ */
+public class CompareMain {
+
+    private static final FileFilter SESSION_FILES = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(SessionFormat.EXTENSION);
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        int filterWindow = LapPipeline.DEFAULT_FILTER_WINDOW;
+        double processNoise = KalmanFilter.DEFAULT_PROCESS_NOISE;
+        double measurementNoise = KalmanFilter.DEFAULT_MEASUREMENT_NOISE;
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--filter-window") && i + 1 < args.length) {
+                filterWindow = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--kalman") && i + 1 < args.length) {
+                String[] parts = args[++i].split(":");
+                if (parts.length != 2) {
+                    usage();
+                    return;
+                }
+                processNoise = Double.parseDouble(parts[0]);
+                measurementNoise = Double.parseDouble(parts[1]);
+            } else if (arg.startsWith("--")) {
+                usage();
+                return;
+            } else {
+                addSessionFiles(new File(arg), files);
+            }
+        }
+
+        if (files.isEmpty()) {
+            usage();
+            return;
+        }
+
+        SessionReplay.Settings defaults = SessionReplay.Settings.defaults();
+        SessionReplay.Settings average = new SessionReplay.Settings(
+                defaults.threshold, defaults.counterWindow, filterWindow);
+        SessionReplay.Settings kalman = SessionReplay.Settings.kalman(
+                defaults.threshold, defaults.counterWindow, processNoise, measurementNoise);
+
+        // Totals over all devices, weighted by samples
+        double averageLag = 0.0, averageVariance = 0.0;
+        double kalmanLag = 0.0, kalmanVariance = 0.0;
+        long samples = 0;
+
+        System.out.println("file\taddress\tsamples\tma_lag_s\tma_var\tkf_lag_s\tkf_var\t" +
+                           "ma_laps\tkf_laps\tlap_shift_s");
+        for (File file : files) {
+            List<FilterComparison.Trace> traces = FilterComparison.load(file);
+            SessionReplay.DeviceResult[] averageLaps = SessionReplay.replay(file, average);
+            SessionReplay.DeviceResult[] kalmanLaps = SessionReplay.replay(file, kalman);
+
+            for (int d = 0; d < traces.size(); d++) {
+                FilterComparison.Trace trace = traces.get(d);
+                FilterComparison.Result a = FilterComparison.measure(trace, average.newFilter());
+                FilterComparison.Result k = FilterComparison.measure(trace, kalman.newFilter());
+                if (a == null || k == null)
+                    continue;
+
+                double interval = trace.medianIntervalNanos() / 1e9;
+                System.out.printf(Locale.US, "%s\t%s\t%d\t%.2f\t%.2f\t%.2f\t%.2f\t%d\t%d\t%s%n",
+                                  file.getPath(), trace.address, a.samples,
+                                  a.lag * interval, a.variance, k.lag * interval, k.variance,
+                                  averageLaps[d].lapCount, kalmanLaps[d].lapCount,
+                                  lapShift(averageLaps[d], kalmanLaps[d]));
+
+                averageLag += a.lag * interval * a.samples;
+                averageVariance += a.variance * a.samples;
+                kalmanLag += k.lag * interval * k.samples;
+                kalmanVariance += k.variance * k.samples;
+                samples += a.samples;
+            }
+        }
+
+        if (samples > 0) {
+            System.err.printf(Locale.US, "MovingAverage(%d): lag %.2f s, variance %.2f dBm^2%n",
+                              filterWindow, averageLag / samples, averageVariance / samples);
+            System.err.printf(Locale.US, "KalmanFilter(%s, %s): lag %.2f s, variance %.2f " +
+                              "dBm^2%n", processNoise, measurementNoise, kalmanLag / samples,
+                              kalmanVariance / samples);
+        }
+    }
+
+    /**
+     * Pair each moving average lap with the nearest Kalman lap.
+     * @return the median difference in lap times in seconds, or "-" if either counted none
+     */
+    private static String lapShift(SessionReplay.DeviceResult average,
+                                   SessionReplay.DeviceResult kalman) {
+        int laps = average.getLapTimeCount();
+        int kalmanLaps = kalman.getLapTimeCount();
+        if (laps == 0 || kalmanLaps == 0)
+            return "-";
+
+        // Both lists of lap times are in order, so the nearest lap only moves forward
+        long[] shifts = new long[laps];
+        int k = 0;
+        for (int i = 0; i < laps; i++) {
+            long time = average.getLapTime(i);
+            while (k + 1 < kalmanLaps && Math.abs(kalman.getLapTime(k + 1) - time)
+                    <= Math.abs(kalman.getLapTime(k) - time))
+                k++;
+            shifts[i] = kalman.getLapTime(k) - time;
+        }
+
+        Arrays.sort(shifts);
+        return String.format(Locale.US, "%.2f", shifts[laps / 2] / 1e9);
+    }
+
+    private static void addSessionFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles(SESSION_FILES);
+            if (children != null) {
+                Arrays.sort(children);
+                files.addAll(Arrays.asList(children));
+            }
+        } else {
+            files.add(file);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: compare [--filter-window N] [--kalman Q:R] FILE|DIR...");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,203 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import edu.drexel.lapcounter.bledistanceapp.LowPassFilter;
+import edu.drexel.lapcounter.bledistanceapp.SessionFormat;
+import edu.drexel.lapcounter.bledistanceapp.SessionReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how far behind the RSSI a LowPassFilter runs, and how much noise it lets
+ * through, on the RSSI of a recorded session.
+ *
+ * There is no ground truth in a recording, so the filter is compared against a
+ * centered moving average of the raw RSSI, which has no lag. The lag is the delay at
+ * which the filter output best matches that reference, and the residual variance is
+ * how far the output strays from the reference at that delay.
+ */
+public class FilterComparison {
+    // Half width of the centered reference average, in samples
+    public static final int REFERENCE_RADIUS = 10;
+    // Longest lag looked for, in samples
+    public static final int MAX_LAG = 40;
+
+    /**
+     * The non-null RSSI samples of one device, split where it connected or disconnected.
+     */
+    public static class Trace {
+        public final String address;
+        private int[] mRssi = new int[1024];
+        private long[] mTimes = new long[1024];
+        private int mCount = 0;
+        // Index of the first sample of each segment
+        private int[] mSegments = new int[16];
+        private int mSegmentCount = 0;
+
+        Trace(String address) {
+            this.address = address;
+        }
+
+        void add(long time, int rssi) {
+            if (mCount == mRssi.length) {
+                mRssi = Arrays.copyOf(mRssi, mCount * 2);
+                mTimes = Arrays.copyOf(mTimes, mCount * 2);
+            }
+            if (mSegmentCount == 0)
+                split();
+
+            mRssi[mCount] = rssi;
+            mTimes[mCount] = time;
+            mCount++;
+        }
+
+        void split() {
+            if (mSegmentCount > 0 && mSegments[mSegmentCount - 1] == mCount)
+                return;
+            if (mSegmentCount == mSegments.length)
+                mSegments = Arrays.copyOf(mSegments, mSegmentCount * 2);
+            mSegments[mSegmentCount++] = mCount;
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        /**
+         * @return the median time between samples in ns, or 0 if there are too few
+         */
+        public long medianIntervalNanos() {
+            if (mCount < 2)
+                return 0;
+
+            long[] intervals = new long[mCount - 1];
+            for (int i = 1; i < mCount; i++)
+                intervals[i - 1] = mTimes[i] - mTimes[i - 1];
+            Arrays.sort(intervals);
+            return intervals[intervals.length / 2];
+        }
+
+        private int segmentEnd(int segment) {
+            return segment + 1 < mSegmentCount ? mSegments[segment + 1] : mCount;
+        }
+    }
+
+    /**
+     * How a filter did on a trace.
+     */
+    public static class Result {
+        // Delay in samples at which the filter best matches the reference
+        public final int lag;
+        // Mean squared difference from the reference at that delay, in dBm^2
+        public final double variance;
+        // Number of samples the figures are based on
+        public final int samples;
+
+        Result(int lag, double variance, int samples) {
+            this.lag = lag;
+            this.variance = variance;
+            this.samples = samples;
+        }
+    }
+
+    private FilterComparison() {
+    }
+
+    /**
+     * Read the RSSI traces of every device in a session file, in the same order as
+     * SessionReplay.replay() returns its results.
+     */
+    public static List<Trace> load(File file) throws IOException {
+        List<Trace> traces = new ArrayList<>();
+
+        try (SessionReader reader = new SessionReader(file)) {
+            // One slot per device in the table, plus one for unknown devices
+            int slots = reader.getDeviceCount() + 1;
+            Trace[] bySlot = new Trace[slots];
+
+            while (reader.next()) {
+                int device = reader.getDevice();
+                int slot = device < slots - 1 ? device : slots - 1;
+                if (bySlot[slot] == null)
+                    bySlot[slot] = new Trace(reader.getAddress(device));
+
+                switch (reader.getType()) {
+                    case SessionFormat.TYPE_CONNECTED:
+                    case SessionFormat.TYPE_DISCONNECTED:
+                        bySlot[slot].split();
+                        break;
+                    case SessionFormat.TYPE_RSSI:
+                        if (reader.getRssi() != 0)
+                            bySlot[slot].add(reader.getTimestamp(), reader.getRssi());
+                        break;
+                }
+            }
+
+            for (Trace trace : bySlot) {
+                if (trace != null)
+                    traces.add(trace);
+            }
+        }
+
+        return traces;
+    }
+
+    /**
+     * Run a trace through a filter, clearing it between segments, and compare the output
+     * against the reference.
+     * @return the result, or null if no segment is long enough to measure
+     */
+    public static Result measure(Trace trace, LowPassFilter filter) {
+        int n = trace.mCount;
+        double[] filtered = new double[n];
+        double[] reference = new double[n];
+
+        for (int s = 0; s < trace.mSegmentCount; s++) {
+            int start = trace.mSegments[s];
+            int end = trace.segmentEnd(s);
+
+            filter.clear();
+            for (int i = start; i < end; i++)
+                filtered[i] = filter.filter(trace.mRssi[i], trace.mTimes[i]);
+
+            // Centered average, from a running sum
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+                sum += trace.mRssi[i];
+                if (i - start >= 2 * REFERENCE_RADIUS + 1)
+                    sum -= trace.mRssi[i - 2 * REFERENCE_RADIUS - 1];
+                if (i - start >= 2 * REFERENCE_RADIUS)
+                    reference[i - REFERENCE_RADIUS] = (double) sum / (2 * REFERENCE_RADIUS + 1);
+            }
+        }
+
+        // The same samples are scored at every lag, so the errors are comparable
+        double[] errors = new double[MAX_LAG + 1];
+        int samples = 0;
+        for (int s = 0; s < trace.mSegmentCount; s++) {
+            int first = trace.mSegments[s] + MAX_LAG + REFERENCE_RADIUS;
+            int last = trace.segmentEnd(s) - 1 - REFERENCE_RADIUS;
+
+            for (int i = first; i <= last; i++) {
+                for (int lag = 0; lag <= MAX_LAG; lag++) {
+                    double error = filtered[i] - reference[i - lag];
+                    errors[lag] += error * error;
+                }
+                samples++;
+            }
+        }
+
+        if (samples == 0)
+            return null;
+
+        int best = 0;
+        for (int lag = 1; lag <= MAX_LAG; lag++) {
+            if (errors[lag] < errors[best])
+                best = lag;
+        }
+        return new Result(best, errors[best] / samples, samples);
+    }
+}
@@ -0,0 +1,174 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import edu.drexel.lapcounter.bledistanceapp.SessionFormat;
+import edu.drexel.lapcounter.bledistanceapp.SessionReader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A recorded session of one swimmer along with the number of laps they actually swam.
+ *
+ * A session file can hold several devices. Only the records of the labeled device are
+ * kept, in memory, since a parameter sweep runs them through the pipeline many times.
+ */
+public class LabeledSession {
+    public final File file;
+    // Address of the device whose records were kept
+    public final String address;
+    public final int trueLapCount;
+
+    // Record types, RSSI values and timestamps, in order
+    private final byte[] mTypes;
+    private final int[] mRssi;
+    private final long[] mTimes;
+
+    private LabeledSession(File file, String address, int trueLapCount, byte[] types,
+                           int[] rssi, long[] times) {
+        this.file = file;
+        this.address = address;
+        this.trueLapCount = trueLapCount;
+        mTypes = types;
+        mRssi = rssi;
+        mTimes = times;
+    }
+
+    public int size() {
+        return mTypes.length;
+    }
+
+    /**
+     * @return one of the SessionFormat.TYPE_ constants
+     */
+    public byte getType(int i) {
+        return mTypes[i];
+    }
+
+    public int getRssi(int i) {
+        return mRssi[i];
+    }
+
+    /**
+     * @return monotonic timestamp of the record in ns
+     */
+    public long getTimestamp(int i) {
+        return mTimes[i];
+    }
+
+    /**
+     * Load a session file that holds a single device.
+     * @throws IOException if the file holds more than one device, since there is no
+     *                     telling which of them swam trueLapCount laps
+     */
+    public static LabeledSession load(File file, int trueLapCount) throws IOException {
+        String address;
+        try (SessionReader reader = new SessionReader(file)) {
+            if (reader.getDeviceCount() > 1) {
+                StringBuilder addresses = new StringBuilder();
+                for (int i = 0; i < reader.getDeviceCount(); i++)
+                    addresses.append(i == 0 ? "" : ", ").append(reader.getAddress(i));
+                throw new IOException(file + " holds " + reader.getDeviceCount()
+                        + " devices (" + addresses + "), label each as FILE ADDRESS LAPS");
+            }
+            address = reader.getAddress(0);
+        }
+
+        return load(file, address, trueLapCount);
+    }
+
+    /**
+     * Load the records of one device from a session file.
+     * @param address the device's address, or null for a file holding no devices
+     * @throws IOException if the device is not in the file
+     */
+    public static LabeledSession load(File file, String address, int trueLapCount)
+            throws IOException {
+        byte[] types = new byte[1024];
+        int[] rssi = new int[1024];
+        long[] times = new long[1024];
+        int count = 0;
+
+        try (SessionReader reader = new SessionReader(file)) {
+            int device = SessionFormat.UNKNOWN_DEVICE;
+            for (int i = 0; i < reader.getDeviceCount(); i++) {
+                if (reader.getAddress(i).equalsIgnoreCase(address))
+                    device = i;
+            }
+            if (address != null && device == SessionFormat.UNKNOWN_DEVICE)
+                throw new IOException(file + " has no records from " + address);
+
+            while (reader.next()) {
+                if (reader.getDevice() != device)
+                    continue;
+
+                if (count == types.length) {
+                    types = Arrays.copyOf(types, count * 2);
+                    rssi = Arrays.copyOf(rssi, count * 2);
+                    times = Arrays.copyOf(times, count * 2);
+                }
+                types[count] = reader.getType();
+                rssi[count] = reader.getRssi();
+                times[count] = reader.getTimestamp();
+                count++;
+            }
+        }
+
+        return new LabeledSession(file, address, trueLapCount, Arrays.copyOf(types, count),
+                                  Arrays.copyOf(rssi, count), Arrays.copyOf(times, count));
+    }
+
+    /**
+     * Load the sessions listed in a labels file. Each line holds a session file path,
+     * relative to the labels file, optionally the address of the labeled device, and
+     * the true lap count, separated by whitespace. The address can only be left out for
+     * files that hold a single device. A file with several swimmers gets a line per
+     * swimmer. Blank lines and lines starting with # are ignored.
+     */
+    public static List<LabeledSession> loadAll(File labels) throws IOException {
+        List<LabeledSession> sessions = new ArrayList<>();
+        File directory = labels.getAbsoluteFile().getParentFile();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(labels), Charset.forName("UTF-8")))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2 && fields.length != 3) {
+                    throw new IOException(labels + ":" + lineNumber
+                            + ": expected FILE [ADDRESS] LAPS");
+                }
+
+                File file = new File(fields[0]);
+                if (!file.isAbsolute())
+                    file = new File(directory, fields[0]);
+
+                int laps;
+                try {
+                    laps = Integer.parseInt(fields[fields.length - 1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException(labels + ":" + lineNumber + ": bad lap count");
+                }
+
+                if (fields.length == 3)
+                    sessions.add(load(file, fields[1], laps));
+                else
+                    sessions.add(load(file, laps));
+            }
+        }
+
+        return sessions;
+    }
+}
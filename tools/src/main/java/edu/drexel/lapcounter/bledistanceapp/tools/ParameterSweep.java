@@ -0,0 +1,332 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import edu.drexel.lapcounter.bledistanceapp.LapPipeline;
+import edu.drexel.lapcounter.bledistanceapp.LowPassFilter;
+import edu.drexel.lapcounter.bledistanceapp.SlidingWindowCounter;
+import edu.drexel.lapcounter.bledistanceapp.TimeWindowAverage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Searches threshold x counter window x filter window for the settings that
+ * best reproduce the true lap counts of a set of labeled sessions.
+ *
+ * Sessions are replayed with their timestamps through the app's pipeline: a
+ * TimeWindowAverage filter, a timed SlidingWindowCounter, and the connection handling
+ * of GattSessionManager (see RecordedDevice), warm restarts included. Filtering
+ * doesn't depend on the threshold or counter window, so each session is filtered once
+ * per filter window and the result is shared by every threshold and counter window
+ * combination. Both the filtering and the evaluation are split
+ * across a fork-join pool.
+ */
+public class ParameterSweep {
+
+    // Configurations evaluated by one leaf task
+    private static final int CONFIGS_PER_TASK = 16;
+
+    /**
+     * One point in the search space and how well it did.
+     */
+    public static class Config {
+        public final double threshold;
+        public final int counterWindow;
+        public final int filterWindow;
+
+        // Sum over all sessions of |counted laps - true laps|
+        public int totalError = 0;
+        // Sessions where the count was exactly right
+        public int exactSessions = 0;
+
+        Config(double threshold, int counterWindow, int filterWindow) {
+            this.threshold = threshold;
+            this.counterWindow = counterWindow;
+            this.filterWindow = filterWindow;
+        }
+    }
+
+    /**
+     * Best configurations first: lowest total error, then most exact sessions.
+     */
+    public static final Comparator<Config> BEST_FIRST = new Comparator<Config>() {
+        @Override
+        public int compare(Config a, Config b) {
+            if (a.totalError != b.totalError)
+                return a.totalError < b.totalError ? -1 : 1;
+            if (a.exactSessions != b.exactSessions)
+                return a.exactSessions > b.exactSessions ? -1 : 1;
+            return 0;
+        }
+    };
+
+    private final List<LabeledSession> mSessions;
+    private final double[] mThresholds;
+    private final int[] mCounterWindows;
+    private final int[] mFilterWindows;
+
+    public ParameterSweep(List<LabeledSession> sessions, double[] thresholds,
+                          int[] counterWindows, int[] filterWindows) {
+        mSessions = sessions;
+        mThresholds = thresholds;
+        mCounterWindows = counterWindows;
+        mFilterWindows = filterWindows;
+    }
+
+    public int getConfigCount() {
+        return mThresholds.length * mCounterWindows.length * mFilterWindows.length;
+    }
+
+    /**
+     * Evaluate every configuration.
+     * @return all configurations, best first
+     */
+    public List<Config> run(ForkJoinPool pool) {
+        List<Config> results = new ArrayList<>(getConfigCount());
+
+        for (int filterWindow : mFilterWindows) {
+            FilteredSession[] filtered = new FilteredSession[mSessions.size()];
+            pool.invoke(new FilterTask(mSessions, filterWindow, filtered, 0, filtered.length));
+
+            Config[] configs = new Config[mThresholds.length * mCounterWindows.length];
+            for (int i = 0; i < configs.length; i++) {
+                configs[i] = new Config(mThresholds[i % mThresholds.length],
+                                        mCounterWindows[i / mThresholds.length],
+                                        filterWindow);
+            }
+
+            pool.invoke(new EvaluateTask(filtered, configs, 0, configs.length));
+            results.addAll(Arrays.asList(configs));
+        }
+
+        Collections.sort(results, BEST_FIRST);
+        return results;
+    }
+
+    /**
+     * Count the laps in a filtered session with the given counter settings, using
+     * the same LapPipeline, timed counter and connection handling the app uses.
+     */
+    static int countLaps(FilteredSession session, double threshold, int counterWindow) {
+        LapPipeline pipeline = new LapPipeline(new PrecomputedFilter(session),
+                SlidingWindowCounter.timed(threshold, LapPipeline.windowNanos(counterWindow)));
+        play(session.source, pipeline);
+        return pipeline.getLapCount();
+    }
+
+    private static void play(LabeledSession session, LapPipeline pipeline) {
+        RecordedDevice device = new RecordedDevice(pipeline);
+        for (int i = 0; i < session.size(); i++)
+            device.onRecord(session.getType(i), session.getRssi(i), session.getTimestamp(i));
+    }
+
+    /**
+     * Everything a session's pipeline does to its filter, recorded once per filter window.
+     * What the pipeline does to its filter doesn't depend on the counter, so the
+     * recording plays back the same for every threshold and counter window.
+     */
+    static class FilteredSession {
+        static final byte OP_FILTER = 0;
+        static final byte OP_CLEAR = 1;
+        static final byte OP_DECAY = 2;
+
+        final LabeledSession source;
+        // Per call: which call it was, the filter's output or the retained fraction
+        // it was decayed by, and windowIsFull() after it
+        byte[] ops = new byte[256];
+        double[] values = new double[256];
+        boolean[] full = new boolean[256];
+        int count = 0;
+
+        FilteredSession(LabeledSession source, int filterWindow) {
+            this.source = source;
+            LowPassFilter filter = new RecordingFilter(
+                    new TimeWindowAverage(LapPipeline.windowNanos(filterWindow)), this);
+            play(source, new LapPipeline(filter, SlidingWindowCounter.timed(
+                    LapPipeline.DEFAULT_THRESHOLD,
+                    LapPipeline.windowNanos(LapPipeline.DEFAULT_COUNTER_WINDOW))));
+
+            ops = Arrays.copyOf(ops, count);
+            values = Arrays.copyOf(values, count);
+            full = Arrays.copyOf(full, count);
+        }
+
+        void add(byte op, double value, boolean windowIsFull) {
+            if (count == ops.length) {
+                ops = Arrays.copyOf(ops, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+                full = Arrays.copyOf(full, count * 2);
+            }
+            ops[count] = op;
+            values[count] = value;
+            full[count] = windowIsFull;
+            count++;
+        }
+    }
+
+    /**
+     * Records every call to a filter into a FilteredSession.
+     */
+    private static class RecordingFilter implements LowPassFilter {
+        private final LowPassFilter mFilter;
+        private final FilteredSession mOut;
+
+        RecordingFilter(LowPassFilter filter, FilteredSession out) {
+            mFilter = filter;
+            mOut = out;
+        }
+
+        @Override
+        public double filter(double value) {
+            throw new UnsupportedOperationException("The sweep's pipelines are timed");
+        }
+
+        @Override
+        public double filter(double value, long timestampNanos) {
+            double filtered = mFilter.filter(value, timestampNanos);
+            mOut.add(FilteredSession.OP_FILTER, filtered, mFilter.windowIsFull());
+            return filtered;
+        }
+
+        @Override
+        public boolean windowIsFull() {
+            return mFilter.windowIsFull();
+        }
+
+        @Override
+        public void clear() {
+            mFilter.clear();
+            mOut.add(FilteredSession.OP_CLEAR, 0.0, mFilter.windowIsFull());
+        }
+
+        @Override
+        public void decay(double retained) {
+            mFilter.decay(retained);
+            mOut.add(FilteredSession.OP_DECAY, retained, mFilter.windowIsFull());
+        }
+    }
+
+    /**
+     * Plays back a FilteredSession. Each call must be the one that was recorded next.
+     */
+    private static class PrecomputedFilter implements LowPassFilter {
+        private final FilteredSession mSession;
+        // Next call to play back
+        private int mIndex = 0;
+        private boolean mFull = false;
+
+        PrecomputedFilter(FilteredSession session) {
+            mSession = session;
+        }
+
+        @Override
+        public double filter(double value) {
+            throw new UnsupportedOperationException("The sweep's pipelines are timed");
+        }
+
+        @Override
+        public double filter(double value, long timestampNanos) {
+            return next(FilteredSession.OP_FILTER);
+        }
+
+        @Override
+        public boolean windowIsFull() {
+            return mFull;
+        }
+
+        @Override
+        public void clear() {
+            next(FilteredSession.OP_CLEAR);
+        }
+
+        @Override
+        public void decay(double retained) {
+            if (next(FilteredSession.OP_DECAY) != retained)
+                throw new IllegalStateException("Decayed by " + retained + " instead of "
+                                                + mSession.values[mIndex - 1]);
+        }
+
+        private double next(byte op) {
+            if (mIndex == mSession.count || mSession.ops[mIndex] != op) {
+                throw new IllegalStateException(mSession.source.file + ": call "
+                        + mIndex + " to the filter doesn't match the recording");
+            }
+            mFull = mSession.full[mIndex];
+            return mSession.values[mIndex++];
+        }
+    }
+
+    private static class FilterTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<LabeledSession> mSessions;
+        private final int mFilterWindow;
+        private final FilteredSession[] mOut;
+        private final int mStart;
+        private final int mEnd;
+
+        FilterTask(List<LabeledSession> sessions, int filterWindow, FilteredSession[] out,
+                   int start, int end) {
+            mSessions = sessions;
+            mFilterWindow = filterWindow;
+            mOut = out;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart == 1) {
+                mOut[mStart] = new FilteredSession(mSessions.get(mStart), mFilterWindow);
+                return;
+            }
+
+            if (mEnd - mStart > 1) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new FilterTask(mSessions, mFilterWindow, mOut, mStart, middle),
+                          new FilterTask(mSessions, mFilterWindow, mOut, middle, mEnd));
+            }
+        }
+    }
+
+    private static class EvaluateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FilteredSession[] mSessions;
+        private final Config[] mConfigs;
+        private final int mStart;
+        private final int mEnd;
+
+        EvaluateTask(FilteredSession[] sessions, Config[] configs, int start, int end) {
+            mSessions = sessions;
+            mConfigs = configs;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > CONFIGS_PER_TASK) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new EvaluateTask(mSessions, mConfigs, mStart, middle),
+                          new EvaluateTask(mSessions, mConfigs, middle, mEnd));
+                return;
+            }
+
+            for (int i = mStart; i < mEnd; i++) {
+                Config config = mConfigs[i];
+                for (FilteredSession session : mSessions) {
+                    int laps = countLaps(session, config.threshold, config.counterWindow);
+                    int error = Math.abs(laps - session.source.trueLapCount);
+                    config.totalError += error;
+                    if (error == 0)
+                        config.exactSessions++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import edu.drexel.lapcounter.bledistanceapp.GattSessionManager;
+import edu.drexel.lapcounter.bledistanceapp.LapPipeline;
+import edu.drexel.lapcounter.bledistanceapp.SessionFormat;
+import edu.drexel.lapcounter.bledistanceapp.StaleSampleDetector;
+
+/**
+ * Feeds one device's recorded events to a LapPipeline the way GattSessionManager feeds
+ * its pipeline live, so the tools count what the app would have:
+ *
+ * - A device is connected to once it has a CONNECTED record. Its RSSI was read over
+ *   GATT and goes through a StaleSampleDetector first, which is reset on every connect.
+ *   Only the loss of a connection that was up reaches the pipeline: a DISCONNECTED
+ *   record while not connected is a failed reconnect attempt, which the manager retries
+ *   without telling the pipeline.
+ * - Until then, the device is listened to and its RSSI came from advertisements. Being
+ *   heard connects it, and being silent for ADVERTISEMENT_TIMEOUT_NANOS disconnects it,
+ *   as of the last time it was heard.
+ *
+ * Session files don't record read round trips or read timeouts, so the StaleSampleDetector
+ * gets neither and only catches stale runs by their length.
+ */
+class RecordedDevice {
+    private final LapPipeline mPipeline;
+    private final StaleSampleDetector mStaleness = new StaleSampleDetector();
+
+    private boolean mListening = true;
+    private boolean mConnected = false;
+    private long mLastHeardNanos = 0;
+    private int mStaleSamples = 0;
+
+    RecordedDevice(LapPipeline pipeline) {
+        mPipeline = pipeline;
+    }
+
+    public LapPipeline getPipeline() {
+        return mPipeline;
+    }
+
+    /**
+     * @return how many GATT samples were stale
+     */
+    public int getStaleSamples() {
+        return mStaleSamples;
+    }
+
+    /**
+     * Play one record.
+     * @param type one of the SessionFormat.TYPE_ constants
+     * @return whether the record was an RSSI sample the pipeline counted with
+     */
+    public boolean onRecord(byte type, int rssi, long timestampNanos) {
+        switch (type) {
+            case SessionFormat.TYPE_CONNECTED:
+                onConnected(timestampNanos);
+                return false;
+            case SessionFormat.TYPE_DISCONNECTED:
+                onDisconnected(timestampNanos);
+                return false;
+            case SessionFormat.TYPE_RSSI:
+                return onRssi(rssi, timestampNanos);
+            default:
+                return false;
+        }
+    }
+
+    public void onConnected(long timestampNanos) {
+        checkHeard(timestampNanos);
+        mListening = false;
+        mConnected = true;
+        mStaleness.reset();
+        mPipeline.onConnected(timestampNanos);
+    }
+
+    public void onDisconnected(long timestampNanos) {
+        checkHeard(timestampNanos);
+        if (mListening || !mConnected)
+            return;
+
+        mConnected = false;
+        mPipeline.onDisconnected(timestampNanos);
+    }
+
+    public boolean onRssi(int rssi, long timestampNanos) {
+        checkHeard(timestampNanos);
+        if (mListening) {
+            if (!mConnected) {
+                mConnected = true;
+                mPipeline.onConnected(timestampNanos);
+            }
+            mLastHeardNanos = timestampNanos;
+            return mPipeline.onRssi(rssi, timestampNanos, 0);
+        }
+
+        if (rssi != 0 && mStaleness.isStale(rssi, timestampNanos, 0)) {
+            mStaleSamples++;
+            mPipeline.onStale(timestampNanos);
+            return false;
+        }
+        return mPipeline.onRssi(rssi, timestampNanos, 0);
+    }
+
+    // Disconnect a listened-to device that went silent before this record
+    private void checkHeard(long timestampNanos) {
+        if (mListening && mConnected && timestampNanos - mLastHeardNanos
+                > GattSessionManager.ADVERTISEMENT_TIMEOUT_NANOS) {
+            mConnected = false;
+            mPipeline.onDisconnected(mLastHeardNanos);
+        }
+    }
+}
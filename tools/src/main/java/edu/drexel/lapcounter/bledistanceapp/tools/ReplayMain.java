@@ -0,0 +1,163 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import edu.drexel.lapcounter.bledistanceapp.SessionFormat;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays recorded session files through the lap counting pipeline and prints the
+ * lap count and lap times for every device in every session. Sessions are spread
+ * across all cores.
+ *
+ * Usage: replay [--threshold X] [--counter-window N] [--filter-window N] [--kalman Q:R]
+ *               [--hampel N:T] FILE|DIR...
+ *
+ * --kalman replaces the moving average with a KalmanFilter with process noise Q and
+ * measurement noise R. --hampel puts a HampelFilter with window N and threshold T in
+ * front of it.
+ *
+ * Output is one tab separated line per device:
+ *   file, address, RSSI samples, lap count, lap times in seconds (comma separated)
+ */
+public class ReplayMain {
+
+    private static final FileFilter SESSION_FILES = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(SessionFormat.EXTENSION);
+        }
+    };
+
+    public static void main(String[] args) throws InterruptedException {
+        SessionReplay.Settings defaults = SessionReplay.Settings.defaults();
+        double threshold = defaults.threshold;
+        int counterWindow = defaults.counterWindow;
+        int filterWindow = defaults.filterWindow;
+        double processNoise = 0.0;
+        double measurementNoise = 0.0;
+        int hampelWindow = 0;
+        double hampelThreshold = 0.0;
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--threshold") && i + 1 < args.length) {
+                threshold = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--counter-window") && i + 1 < args.length) {
+                counterWindow = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--filter-window") && i + 1 < args.length) {
+                filterWindow = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--kalman") && i + 1 < args.length) {
+                String[] parts = args[++i].split(":");
+                if (parts.length != 2) {
+                    usage();
+                    return;
+                }
+                processNoise = Double.parseDouble(parts[0]);
+                measurementNoise = Double.parseDouble(parts[1]);
+            } else if (arg.equals("--hampel") && i + 1 < args.length) {
+                String[] parts = args[++i].split(":");
+                if (parts.length != 2) {
+                    usage();
+                    return;
+                }
+                hampelWindow = Integer.parseInt(parts[0]);
+                hampelThreshold = Double.parseDouble(parts[1]);
+            } else if (arg.startsWith("--")) {
+                usage();
+                return;
+            } else {
+                addSessionFiles(new File(arg), files);
+            }
+        }
+
+        if (files.isEmpty()) {
+            usage();
+            return;
+        }
+
+        SessionReplay.Settings filterSettings = processNoise > 0
+                ? SessionReplay.Settings.kalman(threshold, counterWindow, processNoise,
+                                                measurementNoise)
+                : new SessionReplay.Settings(threshold, counterWindow, filterWindow);
+        final SessionReplay.Settings settings = hampelWindow > 0
+                ? filterSettings.withHampel(hampelWindow, hampelThreshold)
+                : filterSettings;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<String>> results = new ArrayList<>(files.size());
+
+        long start = System.nanoTime();
+        for (final File file : files) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return format(file, SessionReplay.replay(file, settings));
+                }
+            }));
+        }
+
+        int failures = 0;
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                System.out.print(results.get(i).get());
+            } catch (ExecutionException e) {
+                System.err.println(files.get(i) + ": " + e.getCause());
+                failures++;
+            }
+        }
+        executor.shutdown();
+
+        System.err.printf(Locale.US, "Replayed %d sessions on %d threads in %.2f s%n",
+                          files.size() - failures, threads, (System.nanoTime() - start) / 1e9);
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    private static void addSessionFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles(SESSION_FILES);
+            if (children != null) {
+                Arrays.sort(children);
+                files.addAll(Arrays.asList(children));
+            }
+        } else {
+            files.add(file);
+        }
+    }
+
+    private static String format(File file, SessionReplay.DeviceResult[] results) {
+        StringBuilder out = new StringBuilder();
+        for (SessionReplay.DeviceResult result : results) {
+            out.append(file.getPath()).append('\t')
+               .append(result.address).append('\t')
+               .append(result.samples).append('\t')
+               .append(result.lapCount).append('\t');
+
+            for (int i = 0; i < result.getLapTimeCount(); i++) {
+                if (i > 0)
+                    out.append(',');
+                out.append(String.format(Locale.US, "%.2f", result.getLapTime(i) / 1e9));
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: replay [--threshold X] [--counter-window N] " +
+                           "[--filter-window N] [--kalman Q:R] [--hampel N:T] FILE|DIR...");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,183 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import edu.drexel.lapcounter.bledistanceapp.HampelFilter;
+import edu.drexel.lapcounter.bledistanceapp.KalmanFilter;
+import edu.drexel.lapcounter.bledistanceapp.LapPipeline;
+import edu.drexel.lapcounter.bledistanceapp.LowPassFilter;
+import edu.drexel.lapcounter.bledistanceapp.SessionFormat;
+import edu.drexel.lapcounter.bledistanceapp.SessionReader;
+import edu.drexel.lapcounter.bledistanceapp.SlidingWindowCounter;
+import edu.drexel.lapcounter.bledistanceapp.TimeWindowAverage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs one recorded session through a LapPipeline per device, the same way
+ * GattSessionManager feeds its pipelines live events. See RecordedDevice for how the
+ * records are played: disconnects of failed reconnect attempts are left out, devices
+ * that were only listened to connect and disconnect as they are heard, and stale GATT
+ * RSSI is held over. Session files don't record read round trips or read timeouts, so
+ * stale runs are only caught by their length.
+ */
+public class SessionReplay {
+
+    /**
+     * Pipeline settings to replay with. The RSSI filter is a TimeWindowAverage as long
+     * as filterWindow samples at the nominal period, or a KalmanFilter if processNoise
+     * is positive. If hampelWindow is positive, a HampelFilter prefilter goes in front
+     * of it. The counter windows by time too, like the app's.
+     */
+    public static class Settings {
+        public final double threshold;
+        public final int counterWindow;
+        public final int filterWindow;
+        public final double processNoise;
+        public final double measurementNoise;
+        public final int hampelWindow;
+        public final double hampelThreshold;
+
+        public Settings(double threshold, int counterWindow, int filterWindow) {
+            this(threshold, counterWindow, filterWindow, 0.0, 0.0, 0, 0.0);
+        }
+
+        private Settings(double threshold, int counterWindow, int filterWindow,
+                         double processNoise, double measurementNoise, int hampelWindow,
+                         double hampelThreshold) {
+            this.threshold = threshold;
+            this.counterWindow = counterWindow;
+            this.filterWindow = filterWindow;
+            this.processNoise = processNoise;
+            this.measurementNoise = measurementNoise;
+            this.hampelWindow = hampelWindow;
+            this.hampelThreshold = hampelThreshold;
+        }
+
+        /**
+         * Settings that filter with a KalmanFilter instead of a TimeWindowAverage.
+         */
+        public static Settings kalman(double threshold, int counterWindow, double processNoise,
+                                      double measurementNoise) {
+            return new Settings(threshold, counterWindow, 0, processNoise, measurementNoise,
+                                0, 0.0);
+        }
+
+        /**
+         * These settings with a HampelFilter in front of the filter.
+         */
+        public Settings withHampel(int window, double threshold) {
+            return new Settings(this.threshold, counterWindow, filterWindow, processNoise,
+                                measurementNoise, window, threshold);
+        }
+
+        public static Settings defaults() {
+            return new Settings(LapPipeline.DEFAULT_THRESHOLD,
+                                LapPipeline.DEFAULT_COUNTER_WINDOW,
+                                LapPipeline.DEFAULT_FILTER_WINDOW);
+        }
+
+        LowPassFilter newFilter() {
+            LowPassFilter filter = processNoise > 0
+                    ? new KalmanFilter(processNoise, measurementNoise)
+                    : new TimeWindowAverage(LapPipeline.windowNanos(filterWindow));
+
+            if (hampelWindow > 0)
+                filter = new HampelFilter(filter, hampelWindow, hampelThreshold);
+            return filter;
+        }
+
+        LapPipeline newPipeline() {
+            return new LapPipeline(newFilter(), SlidingWindowCounter.timed(
+                    threshold, LapPipeline.windowNanos(counterWindow)));
+        }
+    }
+
+    /**
+     * What the pipeline counted for one device.
+     */
+    public static class DeviceResult {
+        public final String address;
+        public int samples = 0;
+        public int staleSamples = 0;
+        public int lapCount = 0;
+
+        // Time of each lap in ns since the start of the session
+        private long[] mLapTimes = new long[16];
+        private int mLapTimeCount = 0;
+
+        DeviceResult(String address) {
+            this.address = address;
+        }
+
+        void addLap(long time) {
+            if (mLapTimeCount == mLapTimes.length)
+                mLapTimes = Arrays.copyOf(mLapTimes, mLapTimes.length * 2);
+            mLapTimes[mLapTimeCount++] = time;
+        }
+
+        public int getLapTimeCount() {
+            return mLapTimeCount;
+        }
+
+        public long getLapTime(int i) {
+            return mLapTimes[i];
+        }
+    }
+
+    private SessionReplay() {
+    }
+
+    /**
+     * Replay a session file.
+     * @return a result for every device that has records in the file
+     */
+    public static DeviceResult[] replay(File file, Settings settings) throws IOException {
+        try (SessionReader reader = new SessionReader(file)) {
+            // One slot per device in the table, plus one for unknown devices
+            int slots = reader.getDeviceCount() + 1;
+            RecordedDevice[] devices = new RecordedDevice[slots];
+            DeviceResult[] results = new DeviceResult[slots];
+
+            boolean started = false;
+            long start = 0;
+
+            while (reader.next()) {
+                if (!started) {
+                    start = reader.getTimestamp();
+                    started = true;
+                }
+
+                int device = reader.getDevice();
+                int slot = device < slots - 1 ? device : slots - 1;
+                if (devices[slot] == null) {
+                    devices[slot] = new RecordedDevice(settings.newPipeline());
+                    results[slot] = new DeviceResult(reader.getAddress(device));
+                }
+
+                RecordedDevice recorded = devices[slot];
+                LapPipeline pipeline = recorded.getPipeline();
+                DeviceResult result = results[slot];
+
+                byte type = reader.getType();
+                if (type == SessionFormat.TYPE_RSSI)
+                    result.samples++;
+
+                if (recorded.onRecord(type, reader.getRssi(), reader.getTimestamp())
+                        && pipeline.getLapCount() != result.lapCount) {
+                    result.lapCount = pipeline.getLapCount();
+                    result.addLap(reader.getTimestamp() - start);
+                }
+            }
+
+            int count = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                if (results[slot] != null) {
+                    results[slot].staleSamples = devices[slot].getStaleSamples();
+                    results[count++] = results[slot];
+                }
+            }
+            return Arrays.copyOf(results, count);
+        }
+    }
+}
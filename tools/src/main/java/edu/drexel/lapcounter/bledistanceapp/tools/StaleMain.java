@@ -0,0 +1,254 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import edu.drexel.lapcounter.bledistanceapp.SessionFormat;
+import edu.drexel.lapcounter.bledistanceapp.SessionReader;
+import edu.drexel.lapcounter.bledistanceapp.StaleSampleDetector;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures a StaleSampleDetector on recorded sessions.
+ *
+ * A recorded disconnect that ends a run of identical RSSI values is taken to be a
+ * dropout that started when the run did: everything in the run after its first sample
+ * was the stack repeating itself. The detector should flag those runs quickly, and
+ * should not flag runs that end with the value changing, which were live.
+ *
+ * Recordings have no read round trips or timeouts, so only the statistical rule can
+ * flag a run here: --max-unchanged has no effect unless that evidence is available.
+ *
+ * Usage: stale [--fp-rate X] [--min-unchanged S] [--max-unchanged S] FILE|DIR...
+ *
+ * Output is one tab separated line per device, with times in seconds:
+ *   file, address, samples, dropouts, dropouts detected, median and maximum time from
+ *   the start of a dropout to its detection, median time detection beat the recorded
+ *   disconnect by, live runs flagged stale, live samples flagged stale
+ */
+public class StaleMain {
+
+    private static final FileFilter SESSION_FILES = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(SessionFormat.EXTENSION);
+        }
+    };
+
+    /**
+     * How the detector did on one device.
+     */
+    private static class DeviceStats {
+        final String address;
+        final StaleSampleDetector detector;
+
+        int samples = 0;
+        int liveSamples = 0;
+        int dropouts = 0;
+        final List<Long> latencies = new ArrayList<>();
+        final List<Long> leads = new ArrayList<>();
+        int falseRuns = 0;
+        int falseSamples = 0;
+
+        // The current run of identical values
+        boolean inRun = false;
+        int runValue = 0;
+        long runStart = 0;
+        int runLength = 0;
+        int runFlagged = 0;
+        long firstFlag = 0;
+
+        DeviceStats(String address, StaleSampleDetector detector) {
+            this.address = address;
+            this.detector = detector;
+        }
+
+        void onRssi(int rssi, long timestamp) {
+            samples++;
+            if (rssi == 0)
+                return;
+
+            boolean stale = detector.isStale(rssi, timestamp, 0);
+            if (!inRun || rssi != runValue) {
+                endRun(false, timestamp);
+                inRun = true;
+                runValue = rssi;
+                runStart = timestamp;
+            }
+
+            runLength++;
+            if (stale && runFlagged++ == 0)
+                firstFlag = timestamp;
+        }
+
+        /**
+         * @param disconnected whether the run ended with a disconnect, rather than the
+         *                     value changing
+         */
+        void endRun(boolean disconnected, long timestamp) {
+            if (!inRun)
+                return;
+
+            if (disconnected && runLength > 1) {
+                dropouts++;
+                if (runFlagged > 0) {
+                    latencies.add(firstFlag - runStart);
+                    leads.add(timestamp - firstFlag);
+                }
+            } else {
+                liveSamples += runLength;
+                if (runFlagged > 0) {
+                    falseRuns++;
+                    falseSamples += runFlagged;
+                }
+            }
+
+            inRun = false;
+            runLength = 0;
+            runFlagged = 0;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        double falsePositiveRate = StaleSampleDetector.DEFAULT_FALSE_POSITIVE_RATE;
+        long minUnchanged = StaleSampleDetector.DEFAULT_MIN_UNCHANGED_NANOS;
+        long maxUnchanged = StaleSampleDetector.DEFAULT_MAX_UNCHANGED_NANOS;
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--fp-rate") && i + 1 < args.length) {
+                falsePositiveRate = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--min-unchanged") && i + 1 < args.length) {
+                minUnchanged = (long) (Double.parseDouble(args[++i]) * 1e9);
+            } else if (arg.equals("--max-unchanged") && i + 1 < args.length) {
+                maxUnchanged = (long) (Double.parseDouble(args[++i]) * 1e9);
+            } else if (arg.startsWith("--")) {
+                usage();
+                return;
+            } else {
+                addSessionFiles(new File(arg), files);
+            }
+        }
+
+        if (files.isEmpty()) {
+            usage();
+            return;
+        }
+
+        // Totals over all devices
+        int dropouts = 0, detected = 0, liveSamples = 0, falseSamples = 0;
+        List<Long> latencies = new ArrayList<>();
+
+        System.out.println("file\taddress\tsamples\tdropouts\tdetected\tlatency_s\t" +
+                           "max_latency_s\tlead_s\tfalse_runs\tfalse_samples");
+        for (File file : files) {
+            for (DeviceStats stats : measure(file, falsePositiveRate, minUnchanged,
+                                             maxUnchanged)) {
+                System.out.printf(Locale.US, "%s\t%s\t%d\t%d\t%d\t%s\t%s\t%s\t%d\t%d%n",
+                                  file.getPath(), stats.address, stats.samples,
+                                  stats.dropouts, stats.latencies.size(),
+                                  seconds(median(stats.latencies)),
+                                  seconds(max(stats.latencies)), seconds(median(stats.leads)),
+                                  stats.falseRuns, stats.falseSamples);
+
+                dropouts += stats.dropouts;
+                detected += stats.latencies.size();
+                latencies.addAll(stats.latencies);
+                liveSamples += stats.liveSamples;
+                falseSamples += stats.falseSamples;
+            }
+        }
+
+        System.err.printf(Locale.US, "Detected %d of %d dropouts, median latency %s s, " +
+                          "max %s s. %d of %d live samples flagged stale.%n", detected,
+                          dropouts, seconds(median(latencies)), seconds(max(latencies)),
+                          falseSamples, liveSamples);
+    }
+
+    private static List<DeviceStats> measure(File file, double falsePositiveRate,
+                                             long minUnchanged, long maxUnchanged)
+            throws IOException {
+        try (SessionReader reader = new SessionReader(file)) {
+            // One slot per device in the table, plus one for unknown devices
+            int slots = reader.getDeviceCount() + 1;
+            DeviceStats[] devices = new DeviceStats[slots];
+
+            while (reader.next()) {
+                int device = reader.getDevice();
+                int slot = device < slots - 1 ? device : slots - 1;
+                if (devices[slot] == null) {
+                    devices[slot] = new DeviceStats(reader.getAddress(device),
+                            new StaleSampleDetector(falsePositiveRate, minUnchanged,
+                                                    maxUnchanged));
+                }
+
+                DeviceStats stats = devices[slot];
+                switch (reader.getType()) {
+                    case SessionFormat.TYPE_CONNECTED:
+                        stats.detector.reset();
+                        break;
+                    case SessionFormat.TYPE_DISCONNECTED:
+                        stats.endRun(true, reader.getTimestamp());
+                        break;
+                    case SessionFormat.TYPE_RSSI:
+                        stats.onRssi(reader.getRssi(), reader.getTimestamp());
+                        break;
+                }
+            }
+
+            // A run still going at the end of the file could have been either
+            List<DeviceStats> result = new ArrayList<>();
+            for (DeviceStats stats : devices) {
+                if (stats != null)
+                    result.add(stats);
+            }
+            return result;
+        }
+    }
+
+    private static long median(List<Long> values) {
+        if (values.isEmpty())
+            return -1;
+
+        Long[] sorted = values.toArray(new Long[values.size()]);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static long max(List<Long> values) {
+        long max = -1;
+        for (long value : values)
+            max = Math.max(max, value);
+        return max;
+    }
+
+    /**
+     * @return the time in seconds, or "-" if there is none
+     */
+    private static String seconds(long nanos) {
+        return nanos < 0 ? "-" : String.format(Locale.US, "%.2f", nanos / 1e9);
+    }
+
+    private static void addSessionFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles(SESSION_FILES);
+            if (children != null) {
+                Arrays.sort(children);
+                files.addAll(Arrays.asList(children));
+            }
+        } else {
+            files.add(file);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: stale [--fp-rate X] [--min-unchanged S] " +
+                           "[--max-unchanged S] FILE|DIR...");
+        System.exit(2);
+    }
+}
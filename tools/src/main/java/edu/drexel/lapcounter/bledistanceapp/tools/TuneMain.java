@@ -0,0 +1,125 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Finds the threshold, counter window and filter window that best reproduce the
+ * true lap counts of a set of labeled sessions, and prints the top configurations.
+ *
+ * Usage: tune [--thresholds FROM:TO:STEP] [--counter-windows FROM:TO]
+ *             [--filter-windows FROM:TO] [--top N] LABELS
+ *
+ * See LabeledSession.loadAll() for the format of the labels file.
+ */
+public class TuneMain {
+
+    public static void main(String[] args) throws IOException {
+        double[] thresholds = doubleRange("40:90:1");
+        int[] counterWindows = intRange("1:20");
+        int[] filterWindows = intRange("1:30");
+        int top = 20;
+        File labels = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--thresholds") && i + 1 < args.length) {
+                    thresholds = doubleRange(args[++i]);
+                } else if (arg.equals("--counter-windows") && i + 1 < args.length) {
+                    counterWindows = intRange(args[++i]);
+                } else if (arg.equals("--filter-windows") && i + 1 < args.length) {
+                    filterWindows = intRange(args[++i]);
+                } else if (arg.equals("--top") && i + 1 < args.length) {
+                    top = Integer.parseInt(args[++i]);
+                } else if (!arg.startsWith("--") && labels == null) {
+                    labels = new File(arg);
+                } else {
+                    usage();
+                    return;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            return;
+        }
+
+        if (labels == null) {
+            usage();
+            return;
+        }
+
+        List<LabeledSession> sessions = LabeledSession.loadAll(labels);
+        ParameterSweep sweep = new ParameterSweep(sessions, thresholds, counterWindows,
+                                                  filterWindows);
+
+        ForkJoinPool pool = new ForkJoinPool();
+        System.err.printf(Locale.US, "Evaluating %d configurations on %d sessions with %d " +
+                          "threads%n", sweep.getConfigCount(), sessions.size(),
+                          pool.getParallelism());
+
+        long start = System.nanoTime();
+        List<ParameterSweep.Config> results = sweep.run(pool);
+        pool.shutdown();
+        System.err.printf(Locale.US, "Done in %.1f s%n", (System.nanoTime() - start) / 1e9);
+
+        System.out.println("rank\tthreshold\tcounter_window\tfilter_window\ttotal_error\texact");
+        for (int i = 0; i < Math.min(top, results.size()); i++) {
+            ParameterSweep.Config config = results.get(i);
+            System.out.printf(Locale.US, "%d\t%.2f\t%d\t%d\t%d\t%d/%d%n", i + 1,
+                              config.threshold, config.counterWindow, config.filterWindow,
+                              config.totalError, config.exactSessions, sessions.size());
+        }
+    }
+
+    /**
+     * Parse FROM:TO:STEP, inclusive.
+     */
+    private static double[] doubleRange(String spec) {
+        String[] parts = spec.split(":");
+        if (parts.length != 3)
+            throw new IllegalArgumentException("Expected FROM:TO:STEP, got " + spec);
+
+        double from = Double.parseDouble(parts[0]);
+        double to = Double.parseDouble(parts[1]);
+        double step = Double.parseDouble(parts[2]);
+        if (step <= 0 || to < from)
+            throw new IllegalArgumentException("Bad range " + spec);
+
+        // Compute each value from the index so rounding error doesn't accumulate
+        int count = (int) Math.floor((to - from) / step + 1e-9) + 1;
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++)
+            values[i] = from + i * step;
+        return values;
+    }
+
+    /**
+     * Parse FROM:TO, inclusive.
+     */
+    private static int[] intRange(String spec) {
+        String[] parts = spec.split(":");
+        if (parts.length != 2)
+            throw new IllegalArgumentException("Expected FROM:TO, got " + spec);
+
+        int from = Integer.parseInt(parts[0]);
+        int to = Integer.parseInt(parts[1]);
+        if (from < 1 || to < from)
+            throw new IllegalArgumentException("Bad range " + spec);
+
+        int[] values = new int[to - from + 1];
+        for (int i = 0; i < values.length; i++)
+            values[i] = from + i;
+        return values;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: tune [--thresholds FROM:TO:STEP] [--counter-windows FROM:TO] " +
+                           "[--filter-windows FROM:TO] [--top N] LABELS");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,151 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import edu.drexel.lapcounter.bledistanceapp.LapPipeline;
+import edu.drexel.lapcounter.bledistanceapp.SessionRecorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ParameterSweepTest {
+    private static final String SWIMMER = "AA:BB:CC:DD:EE:01";
+    private static final String BYSTANDER = "AA:BB:CC:DD:EE:02";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Record a swimmer going out to 80 dB and back to 40 dB, cycles times. If bystander
+     * is set, a second device sits next to the phone the whole time.
+     * @return the session file
+     */
+    private File record(String name, int cycles, boolean bystander) throws IOException {
+        File directory = mFolder.newFolder(name);
+        SessionRecorder recorder = new SessionRecorder(directory, 4096, 1);
+        assertTrue(recorder.start());
+
+        long now = 0;
+        recorder.recordConnected(now, SWIMMER);
+        for (int i = 0; i <= cycles * 40; i++) {
+            now += 250000000L;
+            recorder.recordRssi(now, SWIMMER,
+                    (int) -Math.round(60 - 20 * Math.cos(2 * Math.PI * i / 40.0)));
+            if (bystander)
+                recorder.recordRssi(now, BYSTANDER, -45);
+        }
+        recorder.stop();
+
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private File labels(String... lines) throws IOException {
+        File labels = mFolder.newFile();
+        try (FileOutputStream out = new FileOutputStream(labels)) {
+            for (String line : lines)
+                out.write((line + "\n").getBytes(Charset.forName("UTF-8")));
+        }
+        return labels;
+    }
+
+    @Test
+    public void ranksTheSettingsThatReproduceTheLabelsFirst() throws IOException {
+        File single = record("single", 5, false);
+        File shared = record("shared", 3, true);
+        List<LabeledSession> sessions = LabeledSession.loadAll(labels(
+                "# file [address] laps",
+                single.getPath() + " 10",
+                shared.getPath() + " " + SWIMMER + " 6"));
+
+        // Below 40 dB everything is far, above 80 dB everything is near: no laps at all
+        ParameterSweep sweep = new ParameterSweep(sessions, new double[] {30, 60, 90},
+                                                  new int[] {3}, new int[] {1, 3});
+        List<ParameterSweep.Config> results = sweep.run(new ForkJoinPool(2));
+        assertEquals(sweep.getConfigCount(), results.size());
+
+        ParameterSweep.Config best = results.get(0);
+        assertEquals(60, best.threshold, 0);
+        assertEquals(0, best.totalError);
+        assertEquals(2, best.exactSessions);
+        assertEquals(60, results.get(1).threshold, 0);
+
+        ParameterSweep.Config worst = results.get(results.size() - 1);
+        assertEquals(16, worst.totalError);
+        assertEquals(0, worst.exactSessions);
+
+        for (int i = 1; i < results.size(); i++)
+            assertTrue(ParameterSweep.BEST_FIRST.compare(results.get(i - 1), results.get(i)) <= 0);
+    }
+
+    @Test
+    public void playsBackWarmRestartsLikeTheApp() throws IOException {
+        File directory = mFolder.newFolder("dropout");
+        SessionRecorder recorder = new SessionRecorder(directory, 4096, 1);
+        assertTrue(recorder.start());
+
+        // Drop out for 2 s halfway through, with a failed attempt before the reconnect
+        long now = 0;
+        recorder.recordConnected(now, SWIMMER);
+        for (int i = 0; i <= 3 * 40; i++) {
+            now += 250000000L;
+            if (i == 50) {
+                recorder.recordDisconnected(now, SWIMMER);
+                recorder.recordDisconnected(now + 1000000000L, SWIMMER);
+                now += 2000000000L;
+                recorder.recordConnected(now, SWIMMER);
+            }
+            recorder.recordRssi(now, SWIMMER,
+                    (int) -Math.round(60 - 20 * Math.cos(2 * Math.PI * i / 40.0)));
+        }
+        recorder.stop();
+
+        LabeledSession session = LabeledSession.load(directory.listFiles()[0], 6);
+        ParameterSweep.FilteredSession filtered = new ParameterSweep.FilteredSession(session, 3);
+        boolean decayed = false;
+        for (int i = 0; i < filtered.count; i++)
+            decayed |= filtered.ops[i] == ParameterSweep.FilteredSession.OP_DECAY;
+        assertTrue(decayed);
+
+        RecordedDevice device = new RecordedDevice(LapPipeline.timed(60, 3, 3));
+        for (int i = 0; i < session.size(); i++)
+            device.onRecord(session.getType(i), session.getRssi(i), session.getTimestamp(i));
+
+        assertEquals(2, device.getPipeline().getConnectionCount());
+        assertEquals(device.getPipeline().getLapCount(),
+                     ParameterSweep.countLaps(filtered, 60, 3));
+    }
+
+    @Test
+    public void keepsOnlyTheLabeledDevice() throws IOException {
+        File shared = record("shared", 3, true);
+
+        LabeledSession swimmer = LabeledSession.load(shared, SWIMMER, 6);
+        assertEquals(SWIMMER, swimmer.address);
+        assertEquals(1 + 3 * 40 + 1, swimmer.size());
+
+        LabeledSession bystander = LabeledSession.load(shared, BYSTANDER, 0);
+        assertEquals(3 * 40 + 1, bystander.size());
+        for (int i = 0; i < bystander.size(); i++)
+            assertEquals(-45, bystander.getRssi(i));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToGuessTheSwimmerInASharedFile() throws IOException {
+        LabeledSession.loadAll(labels(record("shared", 3, true).getPath() + " 6"));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesAnAddressThatIsNotInTheFile() throws IOException {
+        LabeledSession.load(record("single", 1, false), BYSTANDER, 2);
+    }
+}
@@ -0,0 +1,88 @@
+package edu.drexel.lapcounter.bledistanceapp.tools;
+
+import edu.drexel.lapcounter.bledistanceapp.SessionRecorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SessionReplayTest {
+    private static final String SWIMMER = "AA:BB:CC:DD:EE:01";
+    private static final long PERIOD_NANOS = 250000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Record a swimmer going out to 80 dB and back to 40 dB, cycles times.
+     * @param connected whether the swimmer was connected to, or only listened to
+     * @param failedRetries how many reconnect attempts fail after the swimmer is lost
+     *                      halfway through, or -1 to not lose it
+     * @return the session file
+     */
+    private File record(String name, int cycles, boolean connected, int failedRetries)
+            throws IOException {
+        File directory = mFolder.newFolder(name);
+        SessionRecorder recorder = new SessionRecorder(directory, 4096, 1);
+        assertTrue(recorder.start());
+
+        long now = 0;
+        if (connected)
+            recorder.recordConnected(now, SWIMMER);
+        for (int i = 0; i <= cycles * 40; i++) {
+            now += PERIOD_NANOS;
+            if (connected && failedRetries >= 0 && i == cycles * 20) {
+                // Lost for a second, at the far wall
+                recorder.recordDisconnected(now, SWIMMER);
+                for (int retry = 0; retry < failedRetries; retry++)
+                    recorder.recordDisconnected(now + (retry + 1) * PERIOD_NANOS, SWIMMER);
+                now += 4 * PERIOD_NANOS;
+                recorder.recordConnected(now, SWIMMER);
+            }
+            recorder.recordRssi(now, SWIMMER,
+                    (int) -Math.round(60 - 20 * Math.cos(2 * Math.PI * i / 40.0)));
+        }
+        recorder.stop();
+
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static SessionReplay.DeviceResult replay(File file) throws IOException {
+        SessionReplay.DeviceResult[] results = SessionReplay.replay(
+                file, SessionReplay.Settings.defaults());
+        assertEquals(1, results.length);
+        assertEquals(SWIMMER, results[0].address);
+        return results[0];
+    }
+
+    @Test
+    public void countsAListenedToDeviceLikeAConnectedOne() throws IOException {
+        SessionReplay.DeviceResult connected = replay(record("connected", 4, true, -1));
+        SessionReplay.DeviceResult listened = replay(record("listened", 4, false, -1));
+
+        assertEquals(8, connected.lapCount);
+        assertEquals(connected.lapCount, listened.lapCount);
+        assertEquals(connected.samples, listened.samples);
+        // Lap times count from the first record, which is a sample later without a connect
+        for (int i = 0; i < connected.getLapTimeCount(); i++)
+            assertEquals(connected.getLapTime(i) - PERIOD_NANOS, listened.getLapTime(i));
+    }
+
+    @Test
+    public void ignoresTheDisconnectsOfFailedReconnectAttempts() throws IOException {
+        SessionReplay.DeviceResult once = replay(record("once", 4, true, 0));
+        SessionReplay.DeviceResult retried = replay(record("retried", 4, true, 3));
+
+        assertEquals(once.lapCount, retried.lapCount);
+        assertEquals(once.getLapTimeCount(), retried.getLapTimeCount());
+        for (int i = 0; i < once.getLapTimeCount(); i++)
+            assertEquals(once.getLapTime(i), retried.getLapTime(i));
+    }
+}